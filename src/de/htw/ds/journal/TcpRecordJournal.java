@@ -0,0 +1,532 @@
+package de.htw.ds.journal;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import de.htw.ds.tcp.TcpMonitorCapture;
+import de.htw.ds.tcp.TcpMonitorRecord;
+import de.htw.tool.Copyright;
+
+
+/**
+ * Instances of this class model append-only journals of TCP monitor records, stored as a sequence
+ * of segment files within a directory. Each record is stored as a length-prefixed binary entry
+ * containing it's identity, timestamps, and request and response data. Appending is buffered and
+ * strictly sequential, which allows records to be written at the speed of the underlying storage.
+ * Segments are rolled over once they reach a given size, and are accompanied by an index file
+ * once sealed.<br />
+ * Each segment's index consists of a sparse timestamp index, with one entry per block of about
+ * 64KiB of records denoting the block's earliest open and latest close timestamp, and of an
+ * identity index, sorted by identity. Queries by time range therefore only scan the blocks
+ * overlapping the range, and queries by identity perform a binary search per segment. Segments
+ * and index files are read using memory mapping.<br />
+ * Upon opening an existing journal, a torn record at the end of the last segment is truncated,
+ * and missing index files are rebuilt. Instances are thread safe, and may be passed directly as a
+ * monitor's record consumer.
+ */
+@Copyright(year=2017, holders="Sascha Baumeister")
+public class TcpRecordJournal implements Consumer<TcpMonitorRecord>, AutoCloseable {
+	static private final String SEGMENT_FORMAT = "%08d.segment";
+	static private final String INDEX_FORMAT = "%08d.index";
+	static private final String SEGMENT_GLOB = "*.segment";
+	static private final int DEFAULT_SEGMENT_SIZE = 0x4000000;
+	static private final int WRITE_BUFFER_SIZE = 0x10000;
+	static private final int INDEX_BLOCK_SIZE = 0x10000;
+	static private final int RECORD_HEADER_SIZE = 4 + 8 + 8 + 8 + 4 + 4;
+
+	private final Path directory;
+	private final int segmentSize;
+	private final List<Segment> segments;
+	private final ByteBuffer writeBuffer;
+	private FileChannel writeChannel;
+	private boolean closed;
+
+
+	/**
+	 * Opens the journal within the given directory, using segments of 64MiB. The directory is
+	 * created if it doesn't exist.
+	 * @param directory the journal directory
+	 * @throws NullPointerException if the given directory is {@code null}
+	 * @throws IOException if there is an I/O related problem
+	 */
+	public TcpRecordJournal (final Path directory) throws NullPointerException, IOException {
+		this(directory, DEFAULT_SEGMENT_SIZE);
+	}
+
+
+	/**
+	 * Opens the journal within the given directory, using segments of the given size. The directory
+	 * is created if it doesn't exist. Note that segments may exceed the given size if they contain
+	 * a single record that is larger.
+	 * @param directory the journal directory
+	 * @param segmentSize the segment size in bytes
+	 * @throws NullPointerException if the given directory is {@code null}
+	 * @throws IllegalArgumentException if the given segment size is not strictly positive
+	 * @throws IOException if there is an I/O related problem
+	 */
+	public TcpRecordJournal (final Path directory, final int segmentSize) throws NullPointerException, IllegalArgumentException, IOException {
+		if (directory == null) throw new NullPointerException();
+		if (segmentSize <= 0) throw new IllegalArgumentException();
+
+		this.directory = Files.createDirectories(directory);
+		this.segmentSize = segmentSize;
+		this.segments = new ArrayList<>();
+		this.writeBuffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+
+		final List<Path> segmentPaths = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_GLOB)) {
+			for (final Path segmentPath : stream) segmentPaths.add(segmentPath);
+		}
+		segmentPaths.sort(null);
+
+		for (int index = 0; index < segmentPaths.size(); ++index) {
+			final Path segmentPath = segmentPaths.get(index);
+			final Path indexPath = segmentPath.resolveSibling(segmentPath.getFileName().toString().replace(".segment", ".index"));
+			final Segment segment = new Segment(segmentPath, indexPath);
+			if (index == segmentPaths.size() - 1) {
+				segment.rebuildIndex();
+			} else if (Files.exists(indexPath)) {
+				segment.loadIndex();
+			} else {
+				segment.rebuildIndex();
+				segment.saveIndex();
+			}
+			this.segments.add(segment);
+		}
+
+		if (this.segments.isEmpty()) {
+			this.openSegment();
+		} else {
+			final Segment segment = this.segments.get(this.segments.size() - 1);
+			Files.deleteIfExists(segment.indexPath);
+			this.writeChannel = FileChannel.open(segment.path, StandardOpenOption.WRITE);
+			this.writeChannel.truncate(segment.size);
+			this.writeChannel.position(segment.size);
+		}
+	}
+
+
+	/**
+	 * Flushes and closes this journal, sealing the last segment.
+	 * @throws IOException if there is an I/O related problem
+	 */
+	public synchronized void close () throws IOException {
+		if (this.closed) return;
+		this.closed = true;
+
+		try {
+			this.flush();
+			this.segments.get(this.segments.size() - 1).saveIndex();
+		} finally {
+			this.writeChannel.close();
+		}
+	}
+
+
+	/**
+	 * Returns the journal directory.
+	 * @return the directory
+	 */
+	public Path getDirectory () {
+		return this.directory;
+	}
+
+
+	/**
+	 * Returns the segment size.
+	 * @return the segment size in bytes
+	 */
+	public int getSegmentSize () {
+		return this.segmentSize;
+	}
+
+
+	/**
+	 * Returns the number of segments.
+	 * @return the segment count
+	 */
+	public synchronized int getSegmentCount () {
+		return this.segments.size();
+	}
+
+
+	/**
+	 * Appends the given record, wrapping I/O exceptions into unchecked ones. This allows the
+	 * journal to be used as a record consumer.
+	 * @param record the record
+	 * @throws NullPointerException if the given record is {@code null}
+	 * @throws IllegalArgumentException if the given record is too large to be journaled, or has a
+	 *         negative identity
+	 * @throws UncheckedIOException if there is an I/O related problem
+	 */
+	public void accept (final TcpMonitorRecord record) throws NullPointerException, IllegalArgumentException, UncheckedIOException {
+		try {
+			this.append(record);
+		} catch (final IOException exception) {
+			throw new UncheckedIOException(exception);
+		}
+	}
+
+
+	/**
+	 * Appends the given record. Note that the record's data is buffered, and therefore not
+	 * necessarily written to storage until the journal is flushed or closed.
+	 * @param record the record
+	 * @throws NullPointerException if the given record is {@code null}
+	 * @throws IllegalArgumentException if the given record is too large to be journaled, or has a
+	 *         negative identity
+	 * @throws IllegalStateException if this journal is closed
+	 * @throws IOException if there is an I/O related problem
+	 */
+	public synchronized void append (final TcpMonitorRecord record) throws NullPointerException, IllegalArgumentException, IllegalStateException, IOException {
+		final TcpMonitorCapture requestCapture = record.getRequestCapture();
+		final TcpMonitorCapture responseCapture = record.getResponseCapture();
+		final long recordSize = RECORD_HEADER_SIZE + requestCapture.length() + responseCapture.length();
+		if (recordSize > Integer.MAX_VALUE) throw new IllegalArgumentException("record too large");
+		// recovery considers records with negative identities to be torn
+		if (record.getIdentity() < 0) throw new IllegalArgumentException("negative identity");
+		if (this.closed) throw new IllegalStateException("journal closed");
+
+		Segment segment = this.segments.get(this.segments.size() - 1);
+		if (segment.size > 0 && segment.size + recordSize > this.segmentSize) {
+			this.flush();
+			this.writeChannel.close();
+			segment.saveIndex();
+			segment = this.openSegment();
+		}
+
+		if (this.writeBuffer.remaining() < RECORD_HEADER_SIZE) this.flush();
+		this.writeBuffer.putInt((int) recordSize - 4);
+		this.writeBuffer.putLong(record.getIdentity());
+		this.writeBuffer.putLong(record.getOpenTimestamp());
+		this.writeBuffer.putLong(record.getCloseTimestamp());
+		this.writeBuffer.putInt((int) requestCapture.length());
+		this.writeBuffer.putInt((int) responseCapture.length());
+		this.write(requestCapture);
+		this.write(responseCapture);
+
+		segment.register(segment.size, record.getIdentity(), record.getOpenTimestamp(), record.getCloseTimestamp());
+		segment.size += recordSize;
+	}
+
+
+	/**
+	 * Writes all buffered data to storage.
+	 * @throws IOException if there is an I/O related problem
+	 */
+	public synchronized void flush () throws IOException {
+		this.writeBuffer.flip();
+		try {
+			while (this.writeBuffer.hasRemaining()) {
+				this.writeChannel.write(this.writeBuffer);
+			}
+		} finally {
+			this.writeBuffer.clear();
+		}
+	}
+
+
+	/**
+	 * Returns the record with the given identity.
+	 * @param identity the record identity
+	 * @return the record, or {@code null} if there is none
+	 * @throws IOException if there is an I/O related problem
+	 */
+	public synchronized TcpMonitorRecord find (final long identity) throws IOException {
+		this.flush();
+
+		for (int index = this.segments.size() - 1; index >= 0; --index) {
+			final Segment segment = this.segments.get(index);
+			final int position = segment.find(identity);
+			if (position != -1) return segment.read(position);
+		}
+		return null;
+	}
+
+
+	/**
+	 * Passes all records whose lifetime overlaps the given time range to the given consumer, in
+	 * journal order.
+	 * @param fromTimestamp the range start, in milliseconds since 1/1/1970
+	 * @param toTimestamp the range stop, in milliseconds since 1/1/1970
+	 * @param consumer the record consumer
+	 * @throws NullPointerException if the given consumer is {@code null}
+	 * @throws IOException if there is an I/O related problem
+	 */
+	public synchronized void find (final long fromTimestamp, final long toTimestamp, final Consumer<TcpMonitorRecord> consumer) throws NullPointerException, IOException {
+		if (consumer == null) throw new NullPointerException();
+		this.flush();
+
+		for (final Segment segment : this.segments) {
+			for (int block = 0; block < segment.blockCount; ++block) {
+				final long[] blocks = segment.blocks;
+				if (blocks[3 * block + 1] > toTimestamp | blocks[3 * block + 2] < fromTimestamp) continue;
+
+				final int blockStop = block + 1 < segment.blockCount ? (int) blocks[3 * block + 3] : (int) segment.size;
+				final ByteBuffer mapping = segment.mapping();
+				for (int position = (int) blocks[3 * block]; position < blockStop; position += 4 + mapping.getInt(position)) {
+					final long openTimestamp = mapping.getLong(position + 12);
+					final long closeTimestamp = mapping.getLong(position + 20);
+					if (openTimestamp <= toTimestamp & closeTimestamp >= fromTimestamp) consumer.accept(segment.read(position));
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Returns all records whose lifetime overlaps the given time range, in journal order.
+	 * @param fromTimestamp the range start, in milliseconds since 1/1/1970
+	 * @param toTimestamp the range stop, in milliseconds since 1/1/1970
+	 * @return the records
+	 * @throws IOException if there is an I/O related problem
+	 */
+	public List<TcpMonitorRecord> find (final long fromTimestamp, final long toTimestamp) throws IOException {
+		final List<TcpMonitorRecord> records = new ArrayList<>();
+		this.find(fromTimestamp, toTimestamp, records::add);
+		return records;
+	}
+
+
+	/**
+	 * Creates a new empty segment, and opens it for writing.
+	 * @return the segment
+	 * @throws IOException if there is an I/O related problem
+	 */
+	private Segment openSegment () throws IOException {
+		final int index = this.segments.isEmpty() ? 0 : Integer.parseInt(this.segments.get(this.segments.size() - 1).path.getFileName().toString().replace(".segment", "")) + 1;
+		final Segment segment = new Segment(this.directory.resolve(String.format(SEGMENT_FORMAT, index)), this.directory.resolve(String.format(INDEX_FORMAT, index)));
+		this.writeChannel = FileChannel.open(segment.path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+		this.segments.add(segment);
+		return segment;
+	}
+
+
+	/**
+	 * Writes the content of the given capture through the write buffer.
+	 * @param capture the capture
+	 * @throws IOException if there is an I/O related problem
+	 */
+	private void write (final TcpMonitorCapture capture) throws IOException {
+		final byte[] buffer = this.writeBuffer.array();
+		for (long position = 0, length = capture.length(); position < length; ) {
+			if (!this.writeBuffer.hasRemaining()) this.flush();
+			final int bytesRead = capture.read(position, buffer, this.writeBuffer.position(), this.writeBuffer.remaining());
+			this.writeBuffer.position(this.writeBuffer.position() + bytesRead);
+			position += bytesRead;
+		}
+	}
+
+
+
+	/**
+	 * Instances of this static inner class model journal segments, and their index.
+	 */
+	static private class Segment {
+		private final Path path;
+		private final Path indexPath;
+		private long[] blocks;
+		private int blockCount;
+		private Map<Long,Integer> activeIdentities;
+		private LongBuffer sealedIdentities;
+		private MappedByteBuffer mapping;
+		private long size;
+
+
+		/**
+		 * Creates a new active segment with an empty index.
+		 * @param path the segment path
+		 * @param indexPath the index path
+		 */
+		public Segment (final Path path, final Path indexPath) {
+			this.path = path;
+			this.indexPath = indexPath;
+			this.blocks = new long[3 * 16];
+			this.activeIdentities = new HashMap<>();
+		}
+
+
+		/**
+		 * Returns a read-only mapping of this segment, remapping the latter if it has grown since
+		 * it has been mapped last.
+		 * @return the mapping
+		 * @throws IOException if there is an I/O related problem
+		 */
+		public ByteBuffer mapping () throws IOException {
+			if (this.mapping == null || this.mapping.capacity() < this.size) {
+				try (FileChannel channel = FileChannel.open(this.path, StandardOpenOption.READ)) {
+					this.mapping = channel.map(MapMode.READ_ONLY, 0, this.size);
+				}
+			}
+			return this.mapping;
+		}
+
+
+		/**
+		 * Registers a record with this segment's index.
+		 * @param position the record position
+		 * @param identity the record identity
+		 * @param openTimestamp the record's open timestamp
+		 * @param closeTimestamp the record's close timestamp
+		 */
+		public void register (final long position, final long identity, final long openTimestamp, final long closeTimestamp) {
+			final int offset = 3 * (this.blockCount - 1);
+			if (this.blockCount == 0 || position - this.blocks[offset] >= INDEX_BLOCK_SIZE) {
+				if (this.blocks.length == 3 * this.blockCount) this.blocks = Arrays.copyOf(this.blocks, 2 * this.blocks.length);
+				this.blocks[3 * this.blockCount] = position;
+				this.blocks[3 * this.blockCount + 1] = openTimestamp;
+				this.blocks[3 * this.blockCount + 2] = closeTimestamp;
+				this.blockCount += 1;
+			} else {
+				this.blocks[offset + 1] = Math.min(this.blocks[offset + 1], openTimestamp);
+				this.blocks[offset + 2] = Math.max(this.blocks[offset + 2], closeTimestamp);
+			}
+
+			this.activeIdentities.put(identity, (int) position);
+		}
+
+
+		/**
+		 * Returns the position of the record with the given identity.
+		 * @param identity the record identity
+		 * @return the record position, or {@code -1} if there is no such record
+		 */
+		public int find (final long identity) {
+			if (this.sealedIdentities == null) {
+				final Integer position = this.activeIdentities.get(identity);
+				return position == null ? -1 : position;
+			}
+
+			for (int low = 0, high = this.sealedIdentities.limit() / 2 - 1; low <= high; ) {
+				final int middle = (low + high) >>> 1;
+				final long middleIdentity = this.sealedIdentities.get(2 * middle);
+				if (middleIdentity < identity) {
+					low = middle + 1;
+				} else if (middleIdentity > identity) {
+					high = middle - 1;
+				} else {
+					return (int) this.sealedIdentities.get(2 * middle + 1);
+				}
+			}
+			return -1;
+		}
+
+
+		/**
+		 * Reads the record at the given position.
+		 * @param position the record position
+		 * @return the record
+		 * @throws IOException if there is an I/O related problem
+		 */
+		public TcpMonitorRecord read (final int position) throws IOException {
+			final ByteBuffer buffer = this.mapping().duplicate();
+			buffer.position(position + 4);
+			final long identity = buffer.getLong();
+			final long openTimestamp = buffer.getLong();
+			final long closeTimestamp = buffer.getLong();
+			final byte[] requestData = new byte[buffer.getInt()];
+			final byte[] responseData = new byte[buffer.getInt()];
+			buffer.get(requestData);
+			buffer.get(responseData);
+			return new TcpMonitorRecord(identity, openTimestamp, closeTimestamp, TcpMonitorCapture.wrap(requestData), TcpMonitorCapture.wrap(responseData));
+		}
+
+
+		/**
+		 * Rebuilds this segment's index by scanning it's record headers. Stops at the first record
+		 * that is incomplete or inconsistent, and considers the segment to end there. Note that the
+		 * headers are read without mapping the segment, as a torn record may have to be truncated
+		 * afterwards, which fails on some platforms while the segment is mapped.
+		 * @throws IOException if there is an I/O related problem
+		 */
+		public void rebuildIndex () throws IOException {
+			final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+
+			int position = 0;
+			try (FileChannel channel = FileChannel.open(this.path, StandardOpenOption.READ)) {
+				final long fileSize = channel.size();
+				while (position + RECORD_HEADER_SIZE <= fileSize) {
+					header.clear();
+					for (int bytesRead = 0; header.hasRemaining() & bytesRead != -1; bytesRead = channel.read(header, position + header.position()));
+					if (header.hasRemaining()) break;
+
+					final int length = header.getInt(0);
+					final long identity = header.getLong(4);
+					final long requestLength = header.getInt(28) & 0xffffffffL;
+					final long responseLength = header.getInt(32) & 0xffffffffL;
+					if (length != RECORD_HEADER_SIZE - 4 + requestLength + responseLength || position + 4L + length > fileSize || identity < 0) break;
+
+					this.register(position, identity, header.getLong(12), header.getLong(20));
+					position += 4 + length;
+				}
+			}
+
+			this.size = position;
+		}
+
+
+		/**
+		 * Loads this segment's index from it's index file, which seals it.
+		 * @throws IOException if there is an I/O related problem
+		 */
+		public void loadIndex () throws IOException {
+			this.size = Files.size(this.path);
+
+			try (FileChannel channel = FileChannel.open(this.indexPath, StandardOpenOption.READ)) {
+				final MappedByteBuffer indexMapping = channel.map(MapMode.READ_ONLY, 0, channel.size());
+				this.blockCount = indexMapping.getInt();
+				this.blocks = new long[3 * this.blockCount];
+				indexMapping.asLongBuffer().get(this.blocks);
+				indexMapping.position(4 + 8 * this.blocks.length);
+				final int identityCount = indexMapping.getInt();
+				indexMapping.limit(indexMapping.position() + 16 * identityCount);
+				this.sealedIdentities = indexMapping.slice().asLongBuffer();
+				this.activeIdentities = null;
+			}
+		}
+
+
+		/**
+		 * Saves this segment's index into it's index file, and seals it.
+		 * @throws IOException if there is an I/O related problem
+		 */
+		public void saveIndex () throws IOException {
+			final long[] identities = new long[this.activeIdentities.size()];
+			int index = 0;
+			for (final long identity : this.activeIdentities.keySet()) identities[index++] = identity;
+			Arrays.sort(identities);
+
+			final ByteBuffer buffer = ByteBuffer.allocate(4 + 8 * 3 * this.blockCount + 4 + 16 * identities.length);
+			buffer.putInt(this.blockCount);
+			buffer.asLongBuffer().put(this.blocks, 0, 3 * this.blockCount);
+			buffer.position(4 + 8 * 3 * this.blockCount);
+			buffer.putInt(identities.length);
+			for (final long identity : identities) {
+				buffer.putLong(identity);
+				buffer.putLong(this.activeIdentities.get(identity));
+			}
+			buffer.flip();
+
+			try (FileChannel channel = FileChannel.open(this.indexPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+				while (buffer.hasRemaining()) channel.write(buffer);
+			}
+
+			this.sealedIdentities = ByteBuffer.wrap(buffer.array(), 4 + 8 * 3 * this.blockCount + 4, 16 * identities.length).slice().asLongBuffer();
+			this.activeIdentities = null;
+		}
+	}
+}
@@ -6,6 +6,7 @@ import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import de.htw.tool.BufferPool;
 import de.htw.tool.Copyright;
 
 
@@ -33,9 +34,13 @@ public final class FileCopySingleThreaded {
 
 		try (InputStream fis = Files.newInputStream(sourcePath)) {
 			try (OutputStream fos = Files.newOutputStream(sinkPath)) {
-				final byte[] buffer = new byte[0x10000];
-				for (int bytesRead = fis.read(buffer); bytesRead != -1; bytesRead = fis.read(buffer)) {
-					fos.write(buffer, 0, bytesRead);
+				final byte[] buffer = BufferPool.getDefault().acquireArray(0x10000);
+				try {
+					for (int bytesRead = fis.read(buffer); bytesRead != -1; bytesRead = fis.read(buffer)) {
+						fos.write(buffer, 0, bytesRead);
+					}
+				} finally {
+					BufferPool.getDefault().release(buffer);
 				}
 			}
 		}
@@ -20,6 +20,7 @@ import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import de.htw.tool.BufferPool;
 import de.htw.tool.Copyright;
 import de.htw.tool.InetAddresses;
 
@@ -177,9 +178,13 @@ public final class FtpClient implements AutoCloseable {
 			
 			try (OutputStream fos = Files.newOutputStream(sinkDirectory.resolve(sourceFile.getFileName()) , StandardOpenOption.CREATE)){
 				Logger.getGlobal().log(Level.INFO, "Opened output stream");
-				final byte[] buffer = new byte[0x10000];
-				for (int bytesRead = socket.getInputStream().read(buffer); bytesRead != -1; bytesRead = socket.getInputStream().read(buffer)) {
-					fos.write(buffer, 0, bytesRead);
+				final byte[] buffer = BufferPool.getDefault().acquireArray(0x10000);
+				try {
+					for (int bytesRead = socket.getInputStream().read(buffer); bytesRead != -1; bytesRead = socket.getInputStream().read(buffer)) {
+						fos.write(buffer, 0, bytesRead);
+					}
+				} finally {
+					BufferPool.getDefault().release(buffer);
 				}
 			}
 		}
@@ -260,9 +265,13 @@ public final class FtpClient implements AutoCloseable {
 			
 			try (InputStream fis = Files.newInputStream(sourceFile)){
 				Logger.getGlobal().log(Level.INFO, "Opened input stream");
-				final byte[] buffer = new byte[0x10000];
-				for (int bytesRead = fis.read(buffer); bytesRead != -1; bytesRead = fis.read(buffer)) {
-					socket.getOutputStream().write(buffer, 0, bytesRead);
+				final byte[] buffer = BufferPool.getDefault().acquireArray(0x10000);
+				try {
+					for (int bytesRead = fis.read(buffer); bytesRead != -1; bytesRead = fis.read(buffer)) {
+						socket.getOutputStream().write(buffer, 0, bytesRead);
+					}
+				} finally {
+					BufferPool.getDefault().release(buffer);
 				}
 			}
 		}
@@ -0,0 +1,161 @@
+package de.htw.ds.tcp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import de.htw.tool.Copyright;
+
+
+/**
+ * Host rewriting benchmark app-entry facade, measuring the overhead of rewriting HTTP
+ * {@code Host} headers against relaying requests unchanged. Each client sends a series of
+ * pipelined keep-alive requests through a TCP monitor to an upstream that discards them.
+ */
+@Copyright(year=2017, holders="Sascha Baumeister")
+public final class HostRewritingBenchmark {
+	static private final byte[] REQUEST = ("GET /index.html HTTP/1.1\r\n"
+		+ "Host: www.example.com\r\n"
+		+ "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:52.0) Gecko/20100101 Firefox/52.0\r\n"
+		+ "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n"
+		+ "Accept-Language: de,en-US;q=0.7,en;q=0.3\r\n"
+		+ "Accept-Encoding: gzip, deflate\r\n"
+		+ "Connection: keep-alive\r\n"
+		+ "\r\n").getBytes(StandardCharsets.US_ASCII);
+	static private final int REQUESTS_PER_WRITE = 16;
+
+
+	/**
+	 * Prevents external instantiation.
+	 */
+	private HostRewritingBenchmark () {}
+
+
+	/**
+	 * Application entry point. The given arguments are expected to be an optional thread model
+	 * (default is PLATFORM), an optional number of concurrent clients (default is 4), and an
+	 * optional number of requests per client (default is 250000). Each configuration is run
+	 * once for warm-up before being measured. Prints the requests and megabytes per second with
+	 * and without host rewriting.
+	 * @param args the runtime arguments
+	 * @throws IllegalArgumentException if the given client or request count is not strictly
+	 *         positive, or if the given thread model is invalid
+	 * @throws IOException if there is an I/O related problem
+	 * @throws InterruptedException if the current thread is interrupted while waiting
+	 */
+	static public void main (final String[] args) throws IllegalArgumentException, IOException, InterruptedException {
+		final TcpMonitorServer.ThreadModel threadModel = args.length > 0 ? TcpMonitorServer.ThreadModel.valueOf(args[0].toUpperCase()) : TcpMonitorServer.ThreadModel.PLATFORM;
+		final int clientCount = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+		final int requestCount = args.length > 2 ? Integer.parseInt(args[2]) : 250000;
+		if (clientCount <= 0 | requestCount <= 0) throw new IllegalArgumentException();
+
+		final AtomicLong upstreamByteCount = new AtomicLong();
+		final ExecutorService threadPool = Executors.newCachedThreadPool();
+		try (ServerSocket upstream = new ServerSocket(0, 0, InetAddress.getLoopbackAddress())) {
+			threadPool.execute(() -> discard(upstream, threadPool, upstreamByteCount));
+
+			final InetSocketAddress upstreamAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), upstream.getLocalPort());
+			for (final boolean hostRewriting : new boolean[] { false, true }) {
+				try (TcpMonitorServer server = new TcpMonitorServer(0, upstreamAddress, threadModel, record -> {}, exception -> {})) {
+					server.setCaptureMode(TcpMonitorServer.CaptureMode.NONE);
+					server.setHostRewriting(hostRewriting);
+					threadPool.execute(server);
+
+					run(server.getServicePort(), requestCount, clientCount);
+					upstreamByteCount.set(0);
+					final long start = System.nanoTime();
+					run(server.getServicePort(), requestCount, clientCount);
+					final double seconds = (System.nanoTime() - start) * 1E-9;
+
+					final long totalRequestCount = (long) requestCount * clientCount;
+					System.out.format("%s, host rewriting %-5s: %9d requests in %6.2fs, %10.1f requests/s, %8.1f MiB/s, %d bytes upstream%n", threadModel, hostRewriting, totalRequestCount, seconds, totalRequestCount / seconds, totalRequestCount * (REQUEST.length / 1048576.0) / seconds, upstreamByteCount.get());
+				}
+			}
+		} finally {
+			threadPool.shutdownNow();
+		}
+	}
+
+
+	/**
+	 * Accepts upstream connections, and discards everything received on them until they're
+	 * closed by their peer, which is when they are closed in turn.
+	 * @param upstream the upstream service socket
+	 * @param threadPool the thread pool
+	 * @param byteCount the number of bytes received
+	 */
+	static private void discard (final ServerSocket upstream, final ExecutorService threadPool, final AtomicLong byteCount) {
+		try {
+			while (true) {
+				final Socket connection = upstream.accept();
+				threadPool.execute(() -> {
+					final byte[] buffer = new byte[0x10000];
+					// closing a socket's input stream closes the socket as well
+					try (InputStream byteSource = connection.getInputStream()) {
+						for (int length = byteSource.read(buffer); length != -1; length = byteSource.read(buffer)) {
+							byteCount.addAndGet(length);
+						}
+					} catch (final IOException exception) {
+						// do nothing
+					}
+				});
+			}
+		} catch (final IOException exception) {
+			// service socket closed
+		}
+	}
+
+
+	/**
+	 * Sends the given number of pipelined requests per client through the monitor listening on
+	 * the given port, using the given number of concurrent clients, and waits until all of them
+	 * have been relayed and their connections closed.
+	 * @param servicePort the monitor's service port
+	 * @param requestCount the number of requests per client
+	 * @param clientCount the number of concurrent clients
+	 * @throws IOException if a client fails
+	 * @throws InterruptedException if the current thread is interrupted while waiting
+	 */
+	static private void run (final int servicePort, final int requestCount, final int clientCount) throws IOException, InterruptedException {
+		final byte[] requests = new byte[REQUEST.length * REQUESTS_PER_WRITE];
+		for (int index = 0; index < REQUESTS_PER_WRITE; ++index) {
+			System.arraycopy(REQUEST, 0, requests, index * REQUEST.length, REQUEST.length);
+		}
+
+		final Thread[] clients = new Thread[clientCount];
+		final IOException[] failure = { null };
+		for (int index = 0; index < clientCount; ++index) {
+			clients[index] = new Thread(() -> {
+				try (Socket connection = new Socket(InetAddress.getLoopbackAddress(), servicePort)) {
+					final OutputStream byteSink = connection.getOutputStream();
+					for (int count = 0; count < requestCount; count += REQUESTS_PER_WRITE) {
+						byteSink.write(requests, 0, Math.min(REQUESTS_PER_WRITE, requestCount - count) * REQUEST.length);
+					}
+					connection.shutdownOutput();
+
+					// the monitor closes the client connection once the upstream has closed it's own
+					while (connection.getInputStream().read() != -1);
+				} catch (final IOException exception) {
+					synchronized (failure) {
+						failure[0] = exception;
+					}
+				}
+			});
+			clients[index].start();
+		}
+
+		for (final Thread client : clients) {
+			client.join();
+		}
+		synchronized (failure) {
+			if (failure[0] != null) throw failure[0];
+		}
+	}
+}
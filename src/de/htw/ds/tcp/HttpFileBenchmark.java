@@ -0,0 +1,153 @@
+package de.htw.ds.tcp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import de.htw.tool.Copyright;
+import de.htw.tool.HttpFileHandler;
+
+
+/**
+ * HTTP file benchmark app-entry facade, measuring the throughput of a file handler serving
+ * files of 1KiB, 1MiB and 1GiB over the loopback interface.
+ */
+@Copyright(year=2017, holders="Sascha Baumeister")
+public final class HttpFileBenchmark {
+	static private final long[] FILE_SIZES = { 0x400L, 0x100000L, 0x40000000L };
+	static private final long TRANSFER_VOLUME = 0x80000000L;
+	static private final int MIN_REQUEST_COUNT = 4;
+	static private final int MAX_REQUEST_COUNT = 10000;
+
+
+	/**
+	 * Prevents external instantiation.
+	 */
+	private HttpFileBenchmark () {}
+
+
+	/**
+	 * Application entry point. The given arguments are expected to be an optional number of
+	 * concurrent clients (default is 4), and an optional directory path for the benchmark files
+	 * (default is the VM temp directory). Each file size is requested until about 2GiB have been
+	 * transferred, but at least 4 and no more than 10000 times, after a warm-up of a quarter of
+	 * those requests. Prints the requests and megabytes per second for each file size.
+	 * @param args the runtime arguments
+	 * @throws IllegalArgumentException if the given client count is not strictly positive, or if
+	 *         the given directory is not a directory
+	 * @throws IOException if there is an I/O related problem
+	 * @throws InterruptedException if the current thread is interrupted while waiting
+	 */
+	static public void main (final String[] args) throws IllegalArgumentException, IOException, InterruptedException {
+		final int clientCount = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+		final Path parentDirectory = args.length > 1 ? Files.createTempDirectory(Paths.get(args[1]), "benchmark") : Files.createTempDirectory("benchmark");
+		if (clientCount <= 0) throw new IllegalArgumentException();
+
+		// small responses would otherwise be delayed by Nagle's algorithm
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+		final com.sun.net.httpserver.HttpServer server = com.sun.net.httpserver.HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		final ExecutorService threadPool = Executors.newFixedThreadPool(clientCount);
+		server.setExecutor(threadPool);
+		final HttpFileHandler fileHandler = HttpFileHandler.newInstance("/files", parentDirectory);
+		server.createContext(fileHandler.getContextPath(), fileHandler);
+		server.start();
+
+		try {
+			for (final long fileSize : FILE_SIZES) {
+				final Path filePath = parentDirectory.resolve(fileSize + ".bin");
+				writeFile(filePath, fileSize);
+				try {
+					final URL url = new URL("http", InetAddress.getLoopbackAddress().getHostAddress(), server.getAddress().getPort(), fileHandler.getContextPath() + "/" + filePath.getFileName());
+					final int requestCount = (int) Math.max(MIN_REQUEST_COUNT, Math.min(MAX_REQUEST_COUNT, TRANSFER_VOLUME / fileSize));
+
+					run(url, fileSize, Math.max(1, requestCount / 4), clientCount);
+					final long start = System.nanoTime();
+					run(url, fileSize, requestCount, clientCount);
+					final double seconds = (System.nanoTime() - start) * 1E-9;
+
+					System.out.format("%10d bytes: %6d requests in %6.2fs, %9.1f requests/s, %8.1f MiB/s%n", fileSize, requestCount, seconds, requestCount / seconds, requestCount * (fileSize / 1048576.0) / seconds);
+				} finally {
+					Files.delete(filePath);
+				}
+			}
+		} finally {
+			server.stop(0);
+			threadPool.shutdown();
+			Files.delete(parentDirectory);
+		}
+	}
+
+
+	/**
+	 * Writes a file of the given size filled with pseudo random bytes.
+	 * @param filePath the file path
+	 * @param fileSize the file size
+	 * @throws IOException if there is an I/O related problem
+	 */
+	static private void writeFile (final Path filePath, final long fileSize) throws IOException {
+		final byte[] buffer = new byte[0x100000];
+		new Random(fileSize).nextBytes(buffer);
+
+		try (OutputStream byteSink = Files.newOutputStream(filePath)) {
+			for (long position = 0; position < fileSize; position += buffer.length) {
+				byteSink.write(buffer, 0, (int) Math.min(buffer.length, fileSize - position));
+			}
+		}
+	}
+
+
+	/**
+	 * Requests the given URL the given number of times, using the given number of concurrent
+	 * clients, and discards the response content.
+	 * @param url the URL
+	 * @param fileSize the expected content length
+	 * @param requestCount the number of requests
+	 * @param clientCount the number of concurrent clients
+	 * @throws IOException if a request fails, or returns an unexpected content length
+	 * @throws InterruptedException if the current thread is interrupted while waiting
+	 */
+	static private void run (final URL url, final long fileSize, final int requestCount, final int clientCount) throws IOException, InterruptedException {
+		final Thread[] clients = new Thread[clientCount];
+		final IOException[] failure = { null };
+
+		for (int index = 0; index < clientCount; ++index) {
+			final int clientRequestCount = requestCount / clientCount + (index < requestCount % clientCount ? 1 : 0);
+			clients[index] = new Thread(() -> {
+				final byte[] buffer = new byte[0x10000];
+				try {
+					for (int count = 0; count < clientRequestCount; ++count) {
+						final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+						long bytesRead = 0;
+						try (InputStream byteSource = connection.getInputStream()) {
+							for (int length = byteSource.read(buffer); length != -1; length = byteSource.read(buffer)) {
+								bytesRead += length;
+							}
+						}
+						if (bytesRead != fileSize) throw new IOException(String.format("expected %d bytes, but received %d", fileSize, bytesRead));
+					}
+				} catch (final IOException exception) {
+					synchronized (failure) {
+						failure[0] = exception;
+					}
+				}
+			});
+			clients[index].start();
+		}
+
+		for (final Thread client : clients) {
+			client.join();
+		}
+		synchronized (failure) {
+			if (failure[0] != null) throw failure[0];
+		}
+	}
+}
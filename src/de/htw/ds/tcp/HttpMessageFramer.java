@@ -0,0 +1,458 @@
+package de.htw.ds.tcp;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Supplier;
+import de.htw.tool.ByteArrays;
+import de.htw.tool.Copyright;
+
+
+/**
+ * Instances of this class incrementally frame a stream of HTTP/1.x request or response messages,
+ * as sent over a (keep-alive) connection. The stream may be passed in arbitrarily split chunks;
+ * it is forwarded to a listener as a sequence of segments, with every byte passed exactly once and
+ * in order. Header lines (including the start line) are always passed as complete segments,
+ * while body content is passed through as it arrives. Message boundaries are derived from
+ * {@code Content-Length} and chunked {@code Transfer-Encoding}, which allows pipelined messages to
+ * be recognized without buffering more than a single header line. Response framing additionally
+ * considers interim (1xx) responses, responses without content (to {@code HEAD} requests, 204
+ * and 304), and responses delimited by the connection closing.<br />
+ * If the stream turns out not to be HTTP, if a header line exceeds 8KiB, if a content length or
+ * chunk size is malformed or negative, or if the connection switches protocols (101, or 2xx for
+ * {@code CONNECT} requests), the remaining stream is passed through as opaque segments. Request
+ * framing switches once a request carrying an {@code Upgrade} header is complete, as the data
+ * following it may already belong to the new protocol. Start lines are only withheld for as long
+ * as they may still turn out to be HTTP, and {@link #finish()} passes any incomplete line once the
+ * stream has ended.
+ */
+@Copyright(year=2017, holders="Sascha Baumeister")
+class HttpMessageFramer {
+	static private final int MAX_LINE_LENGTH = 0x2000;
+	static private final byte[] LINE_STOP = { '\n' };
+	static private final byte[] HTTP_VERSION_START = " HTTP/".getBytes(StandardCharsets.US_ASCII);
+	static private final byte[] HTTP_RESPONSE_START = "HTTP/".getBytes(StandardCharsets.US_ASCII);
+	static private final byte[] CONTENT_LENGTH = "Content-Length:".getBytes(StandardCharsets.US_ASCII);
+	static private final byte[] TRANSFER_ENCODING = "Transfer-Encoding:".getBytes(StandardCharsets.US_ASCII);
+	static private final byte[] UPGRADE = "Upgrade:".getBytes(StandardCharsets.US_ASCII);
+	static private final String TOKEN_DELIMITERS = "\"(),/:;<=>?@[\\]{}";
+	static private final String CHUNKED = "chunked";
+	static private final String HEAD = "HEAD";
+	static private final String CONNECT = "CONNECT";
+
+	/**
+	 * The framing states.
+	 */
+	static private enum State { START_LINE, HEADER_LINE, BODY, CHUNK_SIZE_LINE, CHUNK_DATA, CHUNK_STOP_LINE, TRAILER_LINE, OPAQUE }
+
+	/**
+	 * Listener interface for framing events.
+	 */
+	static public interface Listener {
+
+		/**
+		 * Called for each segment of the framed stream.
+		 * @param buffer the buffer containing the segment
+		 * @param offset the segment offset
+		 * @param length the segment length
+		 * @param headerLine whether or not the segment is a complete header line, including the
+		 *        start line and it's line terminator
+		 * @throws IOException if there is an I/O related problem
+		 */
+		void segment (byte[] buffer, int offset, int length, boolean headerLine) throws IOException;
+
+
+		/**
+		 * Called whenever a message is complete, after it's last segment has been passed.
+		 * @throws IOException if there is an I/O related problem
+		 */
+		void messageComplete () throws IOException;
+	}
+
+
+	private final Listener listener;
+	private final Supplier<String> requestMethodSupplier;
+	private final byte[] lineBuffer;
+	private int lineLength;
+	private State state;
+	private String requestMethod;
+	private int statusCode;
+	private long contentLength;
+	private boolean contentLengthKnown;
+	private boolean chunked;
+	private boolean upgrade;
+
+
+	/**
+	 * Creates a new instance that frames request messages.
+	 * @param listener the listener
+	 * @throws NullPointerException if the given listener is {@code null}
+	 */
+	public HttpMessageFramer (final Listener listener) throws NullPointerException {
+		this(listener, null);
+	}
+
+
+	/**
+	 * Creates a new instance that frames response messages if the given request method supplier is
+	 * not {@code null}, or request messages otherwise. The supplier is queried once for every
+	 * non-interim response after it's header section has been passed, and is expected to return
+	 * the method of the request being answered, or {@code null} if the latter is unknown.
+	 * @param listener the listener
+	 * @param requestMethodSupplier the request method supplier, or {@code null} for request framing
+	 * @throws NullPointerException if the given listener is {@code null}
+	 */
+	public HttpMessageFramer (final Listener listener, final Supplier<String> requestMethodSupplier) throws NullPointerException {
+		if (listener == null) throw new NullPointerException();
+
+		this.listener = listener;
+		this.requestMethodSupplier = requestMethodSupplier;
+		this.lineBuffer = new byte[MAX_LINE_LENGTH];
+		this.state = State.START_LINE;
+	}
+
+
+	/**
+	 * Returns whether or not the stream is still being framed as HTTP.
+	 * @return {@code false} if the stream is passed as opaque segments, {@code true} otherwise
+	 */
+	public boolean isFraming () {
+		return this.state != State.OPAQUE;
+	}
+
+
+	/**
+	 * Returns the method of the request message being framed, or most recently framed.
+	 * @return the request method, or {@code null} if there is none, or if responses are framed
+	 */
+	public String getRequestMethod () {
+		return this.requestMethod;
+	}
+
+
+	/**
+	 * Parses the given chunk of the stream, passing it's content to the listener.
+	 * @param buffer the buffer
+	 * @param offset the chunk offset
+	 * @param length the chunk length
+	 * @throws NullPointerException if the given buffer is {@code null}
+	 * @throws IndexOutOfBoundsException if the given offset or length are out of bounds
+	 * @throws IOException if the listener fails
+	 */
+	public void parse (final byte[] buffer, int offset, final int length) throws NullPointerException, IndexOutOfBoundsException, IOException {
+		if (offset < 0 | length < 0 | offset + length > buffer.length) throw new IndexOutOfBoundsException();
+
+		final int limit = offset + length;
+		while (offset < limit) {
+			switch (this.state) {
+				case OPAQUE: {
+					this.listener.segment(buffer, offset, limit - offset, false);
+					offset = limit;
+					break;
+				}
+				case BODY:
+				case CHUNK_DATA: {
+					final int segmentLength = (int) Math.min(this.contentLength, limit - offset);
+					this.listener.segment(buffer, offset, segmentLength, false);
+					this.contentLength -= segmentLength;
+					offset += segmentLength;
+					if (this.contentLength == 0) this.bodyComplete();
+					break;
+				}
+				default: {
+					offset = this.parseLine(buffer, offset, limit);
+					break;
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Passes any bytes withheld as part of an incomplete line to the listener as an opaque segment,
+	 * and passes the remaining stream through as opaque segments. This is expected to be called
+	 * once the stream has ended, as bytes not terminated by a line break would otherwise be lost.
+	 * @throws IOException if the listener fails
+	 */
+	public void finish () throws IOException {
+		this.state = State.OPAQUE;
+		if (this.lineLength == 0) return;
+
+		final int lineLength = this.lineLength;
+		this.lineLength = 0;
+		this.listener.segment(this.lineBuffer, 0, lineLength, false);
+	}
+
+
+	/**
+	 * Parses the next (partial) line from the given buffer range. If the line is complete, it is
+	 * passed to the listener and processed; otherwise it is accumulated within the line buffer.
+	 * @param buffer the buffer
+	 * @param offset the range offset
+	 * @param limit the range limit
+	 * @return the offset after the bytes consumed
+	 * @throws IOException if the listener fails
+	 */
+	private int parseLine (final byte[] buffer, final int offset, final int limit) throws IOException {
+		final int stopIndex = ByteArrays.indexOf(buffer, LINE_STOP, offset, limit);
+		final int stop = stopIndex == -1 ? limit : stopIndex + 1;
+
+		if (this.lineLength + stop - offset > MAX_LINE_LENGTH) {
+			this.listener.segment(this.lineBuffer, 0, this.lineLength, false);
+			this.lineLength = 0;
+			this.state = State.OPAQUE;
+			return offset;
+		}
+
+		if (stopIndex == -1) {
+			System.arraycopy(buffer, offset, this.lineBuffer, this.lineLength, stop - offset);
+			this.lineLength += stop - offset;
+
+			// withholding data that cannot become a start line would stall non-HTTP protocols
+			if (this.state == State.START_LINE && !this.isStartLinePrefix(this.lineBuffer, this.lineLength)) {
+				this.finish();
+			}
+		} else if (this.lineLength == 0) {
+			this.processLine(buffer, offset, stop - offset);
+		} else {
+			System.arraycopy(buffer, offset, this.lineBuffer, this.lineLength, stop - offset);
+			final int lineLength = this.lineLength + stop - offset;
+			this.lineLength = 0;
+			this.processLine(this.lineBuffer, 0, lineLength);
+		}
+
+		return stop;
+	}
+
+
+	/**
+	 * Processes the given complete line, and passes it to the listener.
+	 * @param line the buffer containing the line
+	 * @param offset the line offset
+	 * @param length the line length, including it's terminator
+	 * @throws IOException if the listener fails
+	 */
+	private void processLine (final byte[] line, final int offset, final int length) throws IOException {
+		final boolean empty = length == 1 || (length == 2 && line[offset] == '\r');
+
+		switch (this.state) {
+			case START_LINE: {
+				if (empty) {
+					this.listener.segment(line, offset, length, false);
+					return;
+				}
+				final boolean response = this.requestMethodSupplier != null;
+				final boolean valid = response
+					? startsWithIgnoreCase(line, offset, length, HTTP_RESPONSE_START)
+					: ByteArrays.indexOf(line, HTTP_VERSION_START, offset, offset + length) != -1;
+				if (!valid) {
+					this.state = State.OPAQUE;
+					this.listener.segment(line, offset, length, false);
+					return;
+				}
+
+				final String startLine = value(line, offset, offset + length);
+				final int separatorIndex = startLine.indexOf(' ');
+				if (response) {
+					try {
+						this.statusCode = Integer.parseInt(startLine.substring(separatorIndex + 1, Math.min(separatorIndex + 4, startLine.length())));
+					} catch (final NumberFormatException | IndexOutOfBoundsException exception) {
+						this.statusCode = 0;
+					}
+				} else {
+					this.requestMethod = startLine.substring(0, separatorIndex);
+				}
+
+				this.contentLength = 0;
+				this.contentLengthKnown = false;
+				this.chunked = false;
+				this.upgrade = false;
+				this.state = State.HEADER_LINE;
+				this.listener.segment(line, offset, length, true);
+				break;
+			}
+			case HEADER_LINE: {
+				this.listener.segment(line, offset, length, true);
+				if (empty) {
+					this.headerComplete();
+				} else if (startsWithIgnoreCase(line, offset, length, CONTENT_LENGTH)) {
+					try {
+						this.contentLength = Long.parseLong(value(line, offset + CONTENT_LENGTH.length, offset + length));
+						if (this.contentLength < 0) throw new NumberFormatException();
+						this.contentLengthKnown = true;
+					} catch (final NumberFormatException exception) {
+						this.state = State.OPAQUE;
+					}
+				} else if (startsWithIgnoreCase(line, offset, length, TRANSFER_ENCODING)) {
+					this.chunked = value(line, offset + TRANSFER_ENCODING.length, offset + length).toLowerCase().endsWith(CHUNKED);
+				} else if (startsWithIgnoreCase(line, offset, length, UPGRADE)) {
+					this.upgrade = true;
+				}
+				break;
+			}
+			case CHUNK_SIZE_LINE: {
+				this.listener.segment(line, offset, length, false);
+				final String text = value(line, offset, offset + length);
+				final int extensionIndex = text.indexOf(';');
+				try {
+					this.contentLength = Long.parseLong(extensionIndex == -1 ? text : text.substring(0, extensionIndex).trim(), 16);
+					if (this.contentLength < 0) throw new NumberFormatException();
+					this.state = this.contentLength == 0 ? State.TRAILER_LINE : State.CHUNK_DATA;
+				} catch (final NumberFormatException exception) {
+					this.state = State.OPAQUE;
+				}
+				break;
+			}
+			case CHUNK_STOP_LINE: {
+				this.listener.segment(line, offset, length, false);
+				this.state = State.CHUNK_SIZE_LINE;
+				break;
+			}
+			case TRAILER_LINE: {
+				this.listener.segment(line, offset, length, false);
+				if (empty) this.messageComplete();
+				break;
+			}
+			default: {
+				throw new AssertionError();
+			}
+		}
+	}
+
+
+	/**
+	 * Called once the header section of a message is complete.
+	 * @throws IOException if the listener fails
+	 */
+	private void headerComplete () throws IOException {
+		if (this.state == State.OPAQUE) return;
+
+		if (this.requestMethodSupplier != null) {
+			this.responseHeaderComplete();
+		} else if (CONNECT.equalsIgnoreCase(this.requestMethod)) {
+			this.messageComplete();
+			this.state = State.OPAQUE;
+		} else if (this.chunked) {
+			this.state = State.CHUNK_SIZE_LINE;
+		} else if (this.contentLength > 0) {
+			this.state = State.BODY;
+		} else {
+			this.messageComplete();
+		}
+	}
+
+
+	/**
+	 * Called once the header section of a response message is complete.
+	 * @throws IOException if the listener fails
+	 */
+	private void responseHeaderComplete () throws IOException {
+		// interim responses are followed by another response to the same request
+		if (this.statusCode >= 100 & this.statusCode < 200 & this.statusCode != 101) {
+			this.state = State.START_LINE;
+			return;
+		}
+
+		final String requestMethod = this.requestMethodSupplier.get();
+		if (this.statusCode == 101 | (CONNECT.equalsIgnoreCase(requestMethod) & this.statusCode >= 200 & this.statusCode < 300)) {
+			this.state = State.OPAQUE;
+		} else if (HEAD.equalsIgnoreCase(requestMethod) | this.statusCode == 204 | this.statusCode == 304) {
+			this.messageComplete();
+		} else if (this.chunked) {
+			this.state = State.CHUNK_SIZE_LINE;
+		} else if (this.contentLengthKnown) {
+			if (this.contentLength > 0) {
+				this.state = State.BODY;
+			} else {
+				this.messageComplete();
+			}
+		} else {
+			// the response is delimited by the connection closing
+			this.state = State.OPAQUE;
+		}
+	}
+
+
+	/**
+	 * Called once a message body or chunk has been passed completely.
+	 * @throws IOException if the listener fails
+	 */
+	private void bodyComplete () throws IOException {
+		if (this.state == State.CHUNK_DATA) {
+			this.state = State.CHUNK_STOP_LINE;
+		} else {
+			this.messageComplete();
+		}
+	}
+
+
+	/**
+	 * Called once a message is complete.
+	 * @throws IOException if the listener fails
+	 */
+	private void messageComplete () throws IOException {
+		// data following an upgrade request may belong to the new protocol right away, and would
+		// otherwise be withheld as an incomplete line until the response's 101 is seen elsewhere
+		this.state = this.upgrade & this.requestMethodSupplier == null ? State.OPAQUE : State.START_LINE;
+		this.listener.messageComplete();
+	}
+
+
+	/**
+	 * Returns whether or not the given incomplete line may still become a start line.
+	 * Request lines must begin with a method token followed by printable ASCII, and response
+	 * lines with the HTTP version prefix; a trailing carriage return is always acceptable.
+	 * @param line the buffer containing the line, starting at index zero
+	 * @param length the line length
+	 * @return whether or not the line is a possible start line prefix
+	 */
+	private boolean isStartLinePrefix (final byte[] line, int length) {
+		if (length > 0 && line[length - 1] == '\r') length -= 1;
+
+		if (this.requestMethodSupplier != null) {
+			for (int index = 0; index < length & index < HTTP_RESPONSE_START.length; ++index) {
+				if (Character.toUpperCase(line[index]) != HTTP_RESPONSE_START[index]) return false;
+			}
+			return true;
+		}
+
+		boolean token = true;
+		for (int index = 0; index < length; ++index) {
+			final byte value = line[index];
+			if (value == ' ' & index > 0) {
+				token = false;
+			} else if (value <= ' ' | value >= 0x7f || (token && TOKEN_DELIMITERS.indexOf(value) != -1)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+
+	/**
+	 * Returns whether or not the given line starts with the given ASCII prefix, ignoring case.
+	 * @param line the buffer containing the line
+	 * @param offset the line offset
+	 * @param length the line length
+	 * @param prefix the prefix
+	 * @return whether or not the line starts with the prefix
+	 */
+	static boolean startsWithIgnoreCase (final byte[] line, final int offset, final int length, final byte[] prefix) {
+		if (length < prefix.length) return false;
+		for (int index = 0; index < prefix.length; ++index) {
+			if (Character.toLowerCase(line[offset + index]) != Character.toLowerCase(prefix[index])) return false;
+		}
+		return true;
+	}
+
+
+	/**
+	 * Returns the trimmed ASCII text within the given line range.
+	 * @param line the buffer containing the line
+	 * @param offset the range offset
+	 * @param limit the range limit
+	 * @return the trimmed text
+	 */
+	static private String value (final byte[] line, final int offset, final int limit) {
+		return new String(line, offset, limit - offset, StandardCharsets.US_ASCII).trim();
+	}
+}
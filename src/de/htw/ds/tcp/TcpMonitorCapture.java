@@ -0,0 +1,364 @@
+package de.htw.ds.tcp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import de.htw.tool.Copyright;
+
+
+/**
+ * Instances of this class capture the data of a single TCP communication direction. Up to a given
+ * memory limit, the data is kept on the heap; any overflow is spilled into memory-mapped segments
+ * of a temporary file, which keeps the heap consumption of a capture bounded regardless of the
+ * amount of data transported. Captures are written once, and may be read any number of times
+ * afterwards without copying their content as a whole. Optionally, captures can be restricted to a
+ * maximum length, or to the data up to and including the first empty line (i.e. to the header
+ * section of protocols like HTTP); data written beyond is silently discarded.<br />
+ * Note that the spill file is deleted once a capture is closed, while the segments mapped remain
+ * valid until the capture is garbage collected.
+ */
+@Copyright(year=2017, holders="Sascha Baumeister")
+public class TcpMonitorCapture extends OutputStream implements WritableByteChannel {
+	static private final int SEGMENT_SIZE = 0x400000;
+	static private final int MIN_HEAP_SIZE = 0x1000;
+	static private final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+	static private final byte[] HEADER_STOP = { '\r', '\n', '\r', '\n' };
+
+	private final int memoryLimit;
+	private final List<MappedByteBuffer> segments;
+	private byte[] heap;
+	private int heapLength;
+	private long length;
+	private long captureLimit;
+	private int headerStopMatch;
+	private FileChannel spillChannel;
+	private boolean closed;
+
+
+	/**
+	 * Creates a new instance that captures all data written.
+	 * @param memoryLimit the maximum number of bytes kept on the heap
+	 * @throws IllegalArgumentException if the given memory limit is negative
+	 */
+	public TcpMonitorCapture (final int memoryLimit) throws IllegalArgumentException {
+		this(memoryLimit, Long.MAX_VALUE, false);
+	}
+
+
+	/**
+	 * Creates a new instance that captures at most the given number of bytes, optionally stopping
+	 * after the first empty line.
+	 * @param memoryLimit the maximum number of bytes kept on the heap
+	 * @param captureLimit the maximum number of bytes captured
+	 * @param headerOnly whether or not capturing stops after the first empty line
+	 * @throws IllegalArgumentException if any of the given limits is negative
+	 */
+	public TcpMonitorCapture (final int memoryLimit, final long captureLimit, final boolean headerOnly) throws IllegalArgumentException {
+		if (memoryLimit < 0 | memoryLimit > MAX_ARRAY_SIZE | captureLimit < 0) throw new IllegalArgumentException();
+
+		this.memoryLimit = memoryLimit;
+		this.captureLimit = captureLimit;
+		this.headerStopMatch = headerOnly ? 0 : -1;
+		this.segments = new ArrayList<>();
+		this.heap = new byte[(int) Math.min(Math.min(memoryLimit, captureLimit), MIN_HEAP_SIZE)];
+	}
+
+
+	/**
+	 * Returns a new closed capture containing the given data. Note that the given array is not
+	 * copied.
+	 * @param data the data
+	 * @return the capture created
+	 * @throws NullPointerException if the given data is {@code null}
+	 */
+	static public TcpMonitorCapture wrap (final byte[] data) throws NullPointerException {
+		final TcpMonitorCapture capture = new TcpMonitorCapture(0);
+		capture.heap = data;
+		capture.heapLength = data.length;
+		capture.length = data.length;
+		capture.closed = true;
+		return capture;
+	}
+
+
+	/**
+	 * Closes this capture for writing, and deletes it's spill file if there is one. Note that the
+	 * data captured remains available for reading.
+	 * @throws IOException if there is an I/O related problem
+	 */
+	@Override
+	public synchronized void close () throws IOException {
+		if (this.closed) return;
+		this.closed = true;
+
+		if (this.spillChannel != null) this.spillChannel.close();
+	}
+
+
+	/**
+	 * Returns the memory limit.
+	 * @return the maximum number of bytes kept on the heap
+	 */
+	public int getMemoryLimit () {
+		return this.memoryLimit;
+	}
+
+
+	/**
+	 * Returns the number of bytes captured.
+	 * @return the capture length
+	 */
+	public synchronized long length () {
+		return this.length;
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public synchronized boolean isOpen () {
+		return !this.closed;
+	}
+
+
+	/**
+	 * Returns whether or not this capture discards any further data written, either because it's
+	 * capture limit has been reached, or because it's header section is complete.
+	 * @return {@code true} if this capture is saturated, {@code false} otherwise
+	 */
+	public synchronized boolean isSaturated () {
+		return this.length >= this.captureLimit;
+	}
+
+
+	/**
+	 * Returns whether or not part of the data captured has been spilled to disk.
+	 * @return {@code true} if this capture uses memory-mapped segments, {@code false} otherwise
+	 */
+	public synchronized boolean isSpilled () {
+		return !this.segments.isEmpty();
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 * @throws IOException if this capture is closed, or if there is an I/O related problem
+	 */
+	@Override
+	public void write (final int value) throws IOException {
+		this.write(new byte[] { (byte) value }, 0, 1);
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 * @throws NullPointerException {@inheritDoc}
+	 * @throws IndexOutOfBoundsException {@inheritDoc}
+	 * @throws IOException if this capture is closed, or if there is an I/O related problem
+	 */
+	@Override
+	public void write (final byte[] buffer, final int offset, final int length) throws IOException {
+		if (offset < 0 | length < 0 | offset + length > buffer.length) throw new IndexOutOfBoundsException();
+		this.write(ByteBuffer.wrap(buffer, offset, length));
+	}
+
+
+	/**
+	 * Captures the remaining content of the given buffer, which is always consumed completely;
+	 * note that any content beyond this capture's limits is discarded.
+	 * @param buffer the buffer
+	 * @return the number of bytes consumed
+	 * @throws NullPointerException if the given buffer is {@code null}
+	 * @throws IOException if this capture is closed, or if there is an I/O related problem
+	 */
+	public synchronized int write (final ByteBuffer buffer) throws NullPointerException, IOException {
+		if (this.closed) throw new IOException("capture closed");
+
+		final int bytesConsumed = buffer.remaining();
+		final int limit = buffer.limit();
+		if (this.length >= this.captureLimit) {
+			buffer.position(limit);
+			return bytesConsumed;
+		}
+
+		try {
+			buffer.limit(buffer.position() + (int) Math.min(bytesConsumed, this.captureLimit - this.length));
+			if (this.headerStopMatch >= 0) this.limitToHeader(buffer);
+
+			final int heapBytes = Math.min(this.memoryLimit - this.heapLength, buffer.remaining());
+			if (heapBytes > 0) {
+				if (this.heapLength + heapBytes > this.heap.length) {
+					final int capacity = (int) Math.min(this.memoryLimit, Math.max(2L * this.heap.length, this.heapLength + heapBytes));
+					this.heap = Arrays.copyOf(this.heap, capacity);
+				}
+
+				buffer.get(this.heap, this.heapLength, heapBytes);
+				this.heapLength += heapBytes;
+				this.length += heapBytes;
+			}
+
+			while (buffer.hasRemaining()) {
+				final MappedByteBuffer segment = this.writableSegment();
+				final int segmentBytes = Math.min(segment.remaining(), buffer.remaining());
+				final ByteBuffer slice = buffer.duplicate();
+				slice.limit(slice.position() + segmentBytes);
+				segment.put(slice);
+				buffer.position(slice.position());
+				this.length += segmentBytes;
+			}
+		} finally {
+			buffer.limit(limit);
+			buffer.position(limit);
+		}
+
+		return bytesConsumed;
+	}
+
+
+	/**
+	 * Reads captured data into the given buffer, starting at the given capture position. Returns
+	 * the number of bytes read, which is {@code -1} if the given position is at or beyond the end
+	 * of this capture.
+	 * @param position the capture position
+	 * @param buffer the buffer
+	 * @param offset the buffer offset
+	 * @param length the maximum number of bytes to be read
+	 * @return the number of bytes read, or {@code -1} for none
+	 * @throws NullPointerException if the given buffer is {@code null}
+	 * @throws IndexOutOfBoundsException if the given position is negative, or if the given offset
+	 *         and length do not denote a valid buffer range
+	 */
+	public synchronized int read (long position, final byte[] buffer, int offset, int length) throws NullPointerException, IndexOutOfBoundsException {
+		if (position < 0 | offset < 0 | length < 0 | offset + length > buffer.length) throw new IndexOutOfBoundsException();
+		if (position >= this.length) return -1;
+
+		length = (int) Math.min(length, this.length - position);
+		final int bytesRead = length;
+		if (position < this.heapLength) {
+			final int heapBytes = (int) Math.min(this.heapLength - position, length);
+			System.arraycopy(this.heap, (int) position, buffer, offset, heapBytes);
+			position += heapBytes;
+			offset += heapBytes;
+			length -= heapBytes;
+		}
+
+		while (length > 0) {
+			final long spillPosition = position - this.heapLength;
+			final ByteBuffer segment = this.segments.get((int) (spillPosition / SEGMENT_SIZE)).duplicate();
+			segment.position((int) (spillPosition % SEGMENT_SIZE));
+			final int segmentBytes = Math.min(segment.remaining(), length);
+			segment.get(buffer, offset, segmentBytes);
+			position += segmentBytes;
+			offset += segmentBytes;
+			length -= segmentBytes;
+		}
+
+		return bytesRead;
+	}
+
+
+	/**
+	 * Returns read-only views of the captured data within the given range, which are backed by the
+	 * heap and the spill segments respectively, instead of copying the data. This allows large
+	 * captures to be written to channels using gathering writes without being loaded onto the heap.
+	 * @param position the capture position
+	 * @param length the number of bytes
+	 * @return the views, in capture order
+	 * @throws IndexOutOfBoundsException if the given range is not within this capture
+	 */
+	public synchronized ByteBuffer[] views (long position, long length) throws IndexOutOfBoundsException {
+		if (position < 0 | length < 0 | position + length > this.length) throw new IndexOutOfBoundsException();
+
+		final List<ByteBuffer> views = new ArrayList<>(2);
+		if (position < this.heapLength & length > 0) {
+			final int heapBytes = (int) Math.min(this.heapLength - position, length);
+			views.add(ByteBuffer.wrap(this.heap, (int) position, heapBytes).slice().asReadOnlyBuffer());
+			position += heapBytes;
+			length -= heapBytes;
+		}
+
+		while (length > 0) {
+			final long spillPosition = position - this.heapLength;
+			final ByteBuffer segment = this.segments.get((int) (spillPosition / SEGMENT_SIZE)).asReadOnlyBuffer();
+			segment.position((int) (spillPosition % SEGMENT_SIZE));
+			final int segmentBytes = (int) Math.min(segment.remaining(), length);
+			segment.limit(segment.position() + segmentBytes);
+			views.add(segment.slice());
+			position += segmentBytes;
+			length -= segmentBytes;
+		}
+
+		return views.toArray(new ByteBuffer[views.size()]);
+	}
+
+
+	/**
+	 * Returns a copy of the data captured.
+	 * @return the data
+	 * @throws IllegalStateException if the capture is too large to be represented as an array
+	 */
+	public synchronized byte[] toByteArray () throws IllegalStateException {
+		if (this.length > MAX_ARRAY_SIZE) throw new IllegalStateException("capture too large");
+
+		final byte[] data = new byte[(int) this.length];
+		this.read(0, data, 0, data.length);
+		return data;
+	}
+
+
+	/**
+	 * Lowers the given buffer's limit to include the end of the header section, if the latter is
+	 * contained. In this case, the capture limit is lowered to match the header section's length.
+	 * @param buffer the buffer
+	 */
+	private void limitToHeader (final ByteBuffer buffer) {
+		for (int index = buffer.position(); index < buffer.limit(); ++index) {
+			final byte value = buffer.get(index);
+			if (value == HEADER_STOP[this.headerStopMatch]) {
+				this.headerStopMatch += 1;
+			} else {
+				this.headerStopMatch = value == HEADER_STOP[0] ? 1 : 0;
+			}
+
+			if (this.headerStopMatch == HEADER_STOP.length) {
+				buffer.limit(index + 1);
+				this.captureLimit = this.length + buffer.remaining();
+				this.headerStopMatch = -1;
+				break;
+			}
+		}
+	}
+
+
+	/**
+	 * Returns the current spill segment if it has space remaining, or otherwise maps a new one.
+	 * Creates the spill file if required.
+	 * @return the spill segment to be written
+	 * @throws IOException if there is an I/O related problem
+	 */
+	private MappedByteBuffer writableSegment () throws IOException {
+		if (!this.segments.isEmpty()) {
+			final MappedByteBuffer segment = this.segments.get(this.segments.size() - 1);
+			if (segment.hasRemaining()) return segment;
+		}
+
+		if (this.spillChannel == null) {
+			final Path spillFile = Files.createTempFile("tcp-monitor-", ".capture");
+			this.spillChannel = FileChannel.open(spillFile, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+		}
+
+		final MappedByteBuffer segment = this.spillChannel.map(MapMode.READ_WRITE, (long) this.segments.size() * SEGMENT_SIZE, SEGMENT_SIZE);
+		this.segments.add(segment);
+		return segment;
+	}
+}
@@ -0,0 +1,284 @@
+package de.htw.ds.tcp;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+import de.htw.tool.Copyright;
+
+
+/**
+ * Instances of this class write TCP monitor records into a rolling set of gzip compressed pcapng
+ * capture files within a directory, which can be opened directly by tools like Wireshark. Records
+ * are passed to a background writer thread via a bounded queue, which keeps compression and
+ * storage latency away from the relay threads; if the queue is full, records are dropped and
+ * counted instead of blocking the monitor. A capture file is rolled over once it's compressed size
+ * reaches the file size limit, give or take the exporter's and compressor's buffers, and the oldest
+ * capture files are deleted once there are more than the file count limit. Pending data is flushed
+ * whenever the writer thread becomes idle, which keeps the current file readable up to the most
+ * recent records.
+ */
+@Copyright(year=2017, holders="Sascha Baumeister")
+public class TcpMonitorCaptureWriter implements Consumer<TcpMonitorRecord>, AutoCloseable {
+	static private final String FILE_PREFIX = "capture-";
+	static private final String FILE_SUFFIX = ".pcapng.gz";
+	static private final String FILE_TIMESTAMP_FORMAT = "yyyyMMdd-HHmmss-SSS";
+	static private final int STREAM_BUFFER_SIZE = 0x10000;
+	static private final long IDLE_TIMEOUT = 1000;
+	static private final TcpMonitorRecord END_OF_STREAM = new TcpMonitorRecord(0, 0, new byte[0], new byte[0]);
+
+	private final Path directory;
+	private final int serverPort;
+	private final long fileSizeLimit;
+	private final int fileCountLimit;
+	private final BlockingQueue<TcpMonitorRecord> queue;
+	private final Deque<Path> files;
+	private final Thread writerThread;
+	private final LongAdder writtenCount;
+	private final LongAdder droppedCount;
+	private volatile boolean closed;
+	private FileChannel fileChannel;
+	private OutputStream fileStream;
+	private TcpMonitorPcapExporter exporter;
+	private long fileSequence;
+
+
+	/**
+	 * Creates a new instance, and starts it's writer thread. The directory is created if it doesn't
+	 * exist; capture files already present within it are taken into account when deleting the oldest
+	 * ones.
+	 * @param directory the capture directory
+	 * @param serverPort the server port of the flows synthesized, usually the redirect host port
+	 * @param fileSizeLimit the compressed size in bytes that causes a capture file to be rolled over
+	 * @param fileCountLimit the maximum number of capture files kept
+	 * @param queueCapacity the maximum number of records waiting to be written
+	 * @throws NullPointerException if the given directory is {@code null}
+	 * @throws IllegalArgumentException if the given server port is outside range [0, 0xFFFF], or if
+	 *         any of the given limits or the queue capacity is not strictly positive
+	 * @throws IOException if there is an I/O related problem
+	 */
+	public TcpMonitorCaptureWriter (final Path directory, final int serverPort, final long fileSizeLimit, final int fileCountLimit, final int queueCapacity) throws NullPointerException, IllegalArgumentException, IOException {
+		if (directory == null) throw new NullPointerException();
+		if (serverPort < 0 | serverPort > 0xFFFF | fileSizeLimit <= 0 | fileCountLimit <= 0 | queueCapacity <= 0) throw new IllegalArgumentException();
+
+		this.directory = Files.createDirectories(directory);
+		this.serverPort = serverPort;
+		this.fileSizeLimit = fileSizeLimit;
+		this.fileCountLimit = fileCountLimit;
+		this.queue = new ArrayBlockingQueue<>(queueCapacity);
+		this.writtenCount = new LongAdder();
+		this.droppedCount = new LongAdder();
+
+		// the timestamp based file names sort chronologically
+		final List<Path> files = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, FILE_PREFIX + "*" + FILE_SUFFIX)) {
+			for (final Path file : stream) files.add(file);
+		}
+		files.sort(null);
+		this.files = new ArrayDeque<>(files);
+
+		this.writerThread = new Thread(this::write, "tcp-capture-writer");
+		this.writerThread.setDaemon(true);
+		this.writerThread.start();
+	}
+
+
+	/**
+	 * Writes all records queued, closes the current capture file, and stops the writer thread.
+	 * Records passed afterwards are dropped.
+	 */
+	public synchronized void close () {
+		if (this.closed) return;
+		this.closed = true;
+
+		boolean interrupted = false;
+		while (true) {
+			try {
+				this.queue.put(END_OF_STREAM);
+				this.writerThread.join();
+				break;
+			} catch (final InterruptedException exception) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) Thread.currentThread().interrupt();
+	}
+
+
+	/**
+	 * Returns the capture directory.
+	 * @return the capture directory
+	 */
+	public Path getDirectory () {
+		return this.directory;
+	}
+
+
+	/**
+	 * Returns the number of records written.
+	 * @return the written record count
+	 */
+	public long getWrittenCount () {
+		return this.writtenCount.sum();
+	}
+
+
+	/**
+	 * Returns the number of records dropped because the queue was full, or this writer was closed.
+	 * @return the dropped record count
+	 */
+	public long getDroppedCount () {
+		return this.droppedCount.sum();
+	}
+
+
+	/**
+	 * Returns the number of records currently waiting to be written.
+	 * @return the queued record count
+	 */
+	public int getQueuedCount () {
+		return this.queue.size();
+	}
+
+
+	/**
+	 * Queues the given record for writing without blocking, or drops it if the queue is full.
+	 * @param record the record
+	 * @throws NullPointerException if the given record is {@code null}
+	 */
+	public void accept (final TcpMonitorRecord record) throws NullPointerException {
+		if (record == null) throw new NullPointerException();
+		if (this.closed || !this.queue.offer(record)) this.droppedCount.increment();
+	}
+
+
+	/**
+	 * Periodically takes records from the queue, and writes them into the current capture file.
+	 * Flushes the latter whenever the queue remains empty for a while. Note that I/O problems are
+	 * logged, and cause the current capture file to be abandoned in favor of a new one.
+	 */
+	private void write () {
+		try {
+			while (true) {
+				TcpMonitorRecord record = this.queue.poll(IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+				if (record == null) {
+					if (this.exporter != null) this.flush();
+					record = this.queue.take();
+				}
+				if (record == END_OF_STREAM) break;
+
+				try {
+					if (this.exporter == null) this.openFile();
+					// batching doesn't pay off for the compressor, but would delay rolling files over
+					this.exporter.export(record);
+					this.exporter.flush();
+					this.writtenCount.increment();
+					if (this.fileChannel.position() >= this.fileSizeLimit) this.closeFile();
+				} catch (final IOException exception) {
+					this.droppedCount.increment();
+					Logger.getGlobal().log(Level.WARNING, exception.getMessage(), exception);
+					this.abandonFile();
+				}
+			}
+		} catch (final InterruptedException exception) {
+			// do nothing because the writer is being shut down
+		} finally {
+			try {
+				if (this.exporter != null) this.closeFile();
+			} catch (final IOException exception) {
+				Logger.getGlobal().log(Level.WARNING, exception.getMessage(), exception);
+				this.abandonFile();
+			}
+		}
+	}
+
+
+	/**
+	 * Flushes the current capture file, including the compressor's pending output.
+	 */
+	private void flush () {
+		try {
+			this.exporter.flush();
+			this.fileStream.flush();
+		} catch (final IOException exception) {
+			Logger.getGlobal().log(Level.WARNING, exception.getMessage(), exception);
+			this.abandonFile();
+		}
+	}
+
+
+	/**
+	 * Opens a new capture file, and deletes the oldest capture files beyond the file count limit.
+	 * @throws IOException if there is an I/O related problem
+	 */
+	private void openFile () throws IOException {
+		final String timestamp = new SimpleDateFormat(FILE_TIMESTAMP_FORMAT).format(new Date());
+		final Path file = this.directory.resolve(String.format("%s%s-%04d%s", FILE_PREFIX, timestamp, this.fileSequence++ % 10000, FILE_SUFFIX));
+
+		this.files.addLast(file);
+		while (this.files.size() > this.fileCountLimit) {
+			try {
+				Files.deleteIfExists(this.files.removeFirst());
+			} catch (final IOException exception) {
+				Logger.getGlobal().log(Level.WARNING, exception.getMessage(), exception);
+			}
+		}
+
+		this.fileChannel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		try {
+			// sync flushing allows the compressed data to be flushed whenever the writer becomes idle
+			this.fileStream = new GZIPOutputStream(new BufferedOutputStream(Channels.newOutputStream(this.fileChannel), STREAM_BUFFER_SIZE), STREAM_BUFFER_SIZE, true);
+			this.exporter = new TcpMonitorPcapExporter(Channels.newChannel(this.fileStream), this.serverPort);
+		} catch (final Throwable exception) {
+			try { this.fileChannel.close(); } catch (final Throwable nestedException) { exception.addSuppressed(nestedException); }
+			this.fileChannel = null;
+			this.fileStream = null;
+			throw exception;
+		}
+	}
+
+
+	/**
+	 * Closes the current capture file, which completes it's compressed stream.
+	 * @throws IOException if there is an I/O related problem
+	 */
+	private void closeFile () throws IOException {
+		final TcpMonitorPcapExporter exporter = this.exporter;
+		this.exporter = null;
+		this.fileChannel = null;
+		this.fileStream = null;
+		exporter.close();
+	}
+
+
+	/**
+	 * Closes the current capture file after an I/O related problem, ignoring further problems.
+	 */
+	private void abandonFile () {
+		if (this.fileChannel != null) {
+			try { this.fileChannel.close(); } catch (final IOException exception) {}
+		}
+		this.exporter = null;
+		this.fileChannel = null;
+		this.fileStream = null;
+	}
+}
@@ -0,0 +1,306 @@
+package de.htw.ds.tcp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import de.htw.tool.Copyright;
+
+
+/**
+ * Instances of this class model warm pools of pre-connected upstream connections for TCP monitors,
+ * which takes connection establishment out of the latency path of accepted client connections.
+ * Note that pooled connections are handed out once, and never returned to the pool, because a
+ * relayed connection's state is owned by it's client. A maintenance thread periodically evicts
+ * connections that have been idle for too long, or fail their health check, and tops the pool up
+ * to it's target size. Additionally, the resolution of the redirect host address is cached for a
+ * limited time, instead of being repeated for every connection. Pooling is disabled as long as the
+ * pool size is zero.
+ */
+@Copyright(year=2017, holders="Sascha Baumeister")
+public class TcpMonitorConnectionPool implements AutoCloseable {
+	static private final long MAINTENANCE_PERIOD = 1000;
+	static private final long RESOLUTION_TIME_TO_LIVE = 60000;
+	static private final long DEFAULT_IDLE_TIMEOUT = 30000;
+
+	private final InetSocketAddress redirectHostAddress;
+	private final Deque<IdleConnection> idleConnections;
+	private final ScheduledExecutorService scheduler;
+	private final AtomicLong hitCount;
+	private final AtomicLong missCount;
+	private final AtomicLong evictionCount;
+	private volatile InetSocketAddress resolvedAddress;
+	private volatile long resolutionTimestamp;
+	private volatile int size;
+	private volatile long idleTimeout;
+
+
+	/**
+	 * Creates a new instance, and starts it's maintenance thread.
+	 * @param redirectHostAddress the redirect host address
+	 * @throws NullPointerException if the given address is {@code null}
+	 */
+	public TcpMonitorConnectionPool (final InetSocketAddress redirectHostAddress) throws NullPointerException {
+		if (redirectHostAddress == null) throw new NullPointerException();
+
+		this.redirectHostAddress = redirectHostAddress;
+		this.idleConnections = new ConcurrentLinkedDeque<>();
+		this.hitCount = new AtomicLong();
+		this.missCount = new AtomicLong();
+		this.evictionCount = new AtomicLong();
+		this.idleTimeout = DEFAULT_IDLE_TIMEOUT;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			final Thread thread = new Thread(runnable, "tcp-pool");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.scheduler.scheduleWithFixedDelay(this::maintain, MAINTENANCE_PERIOD, MAINTENANCE_PERIOD, TimeUnit.MILLISECONDS);
+	}
+
+
+	/**
+	 * Stops the maintenance thread, and closes all idle connections.
+	 */
+	public void close () {
+		this.scheduler.shutdownNow();
+		for (IdleConnection idleConnection = this.idleConnections.pollFirst(); idleConnection != null; idleConnection = this.idleConnections.pollFirst()) {
+			idleConnection.close();
+		}
+	}
+
+
+	/**
+	 * Returns the redirect host address.
+	 * @return the redirect host address
+	 */
+	public InetSocketAddress getRedirectHostAddress () {
+		return this.redirectHostAddress;
+	}
+
+
+	/**
+	 * Returns the pool size, i.e. the number of idle connections the pool strives to maintain.
+	 * @return the pool size
+	 */
+	public int getSize () {
+		return this.size;
+	}
+
+
+	/**
+	 * Sets the pool size, i.e. the number of idle connections the pool strives to maintain. Note
+	 * that a size of zero disables pooling.
+	 * @param size the pool size
+	 * @throws IllegalArgumentException if the given size is negative
+	 */
+	public void setSize (final int size) throws IllegalArgumentException {
+		if (size < 0) throw new IllegalArgumentException();
+		this.size = size;
+	}
+
+
+	/**
+	 * Returns the idle timeout, i.e. the maximum time a connection may remain in the pool.
+	 * @return the idle timeout in milliseconds
+	 */
+	public long getIdleTimeout () {
+		return this.idleTimeout;
+	}
+
+
+	/**
+	 * Sets the idle timeout, i.e. the maximum time a connection may remain in the pool. This should
+	 * be shorter than the time the redirect host keeps idle connections open.
+	 * @param idleTimeout the idle timeout in milliseconds
+	 * @throws IllegalArgumentException if the given timeout is not strictly positive
+	 */
+	public void setIdleTimeout (final long idleTimeout) throws IllegalArgumentException {
+		if (idleTimeout <= 0) throw new IllegalArgumentException();
+		this.idleTimeout = idleTimeout;
+	}
+
+
+	/**
+	 * Returns the number of idle connections.
+	 * @return the idle connection count
+	 */
+	public int getIdleCount () {
+		return this.idleConnections.size();
+	}
+
+
+	/**
+	 * Returns the number of times a pooled connection could be handed out.
+	 * @return the hit count
+	 */
+	public long getHitCount () {
+		return this.hitCount.get();
+	}
+
+
+	/**
+	 * Returns the number of times no pooled connection could be handed out.
+	 * @return the miss count
+	 */
+	public long getMissCount () {
+		return this.missCount.get();
+	}
+
+
+	/**
+	 * Returns the number of idle connections closed because they timed out, or failed their health
+	 * check.
+	 * @return the eviction count
+	 */
+	public long getEvictionCount () {
+		return this.evictionCount.get();
+	}
+
+
+	/**
+	 * Returns the resolved redirect host address. The resolution is cached for a minute; if it
+	 * fails to be renewed, the previous resolution continues to be used.
+	 * @return the resolved address, or an unresolved one if the redirect host cannot be resolved
+	 */
+	public InetSocketAddress getResolvedAddress () {
+		final long now = System.currentTimeMillis();
+		InetSocketAddress resolvedAddress = this.resolvedAddress;
+		if (resolvedAddress == null || now - this.resolutionTimestamp >= RESOLUTION_TIME_TO_LIVE) {
+			// note that the host string doesn't require a reverse lookup, unlike the host name
+			final InetSocketAddress address = new InetSocketAddress(this.redirectHostAddress.getHostString(), this.redirectHostAddress.getPort());
+			if (!address.isUnresolved() | resolvedAddress == null) resolvedAddress = address;
+			this.resolvedAddress = resolvedAddress;
+			this.resolutionTimestamp = now;
+		}
+		return resolvedAddress;
+	}
+
+
+	/**
+	 * Removes a healthy idle connection from this pool, and returns it in blocking mode.
+	 * @return the connection, or {@code null} if there is none
+	 */
+	public SocketChannel poll () {
+		for (IdleConnection idleConnection = this.idleConnections.pollFirst(); idleConnection != null; idleConnection = this.idleConnections.pollFirst()) {
+			if (idleConnection.isExpired(this.idleTimeout) || !idleConnection.isHealthy()) {
+				idleConnection.close();
+				this.evictionCount.incrementAndGet();
+				continue;
+			}
+
+			this.hitCount.incrementAndGet();
+			return idleConnection.channel;
+		}
+
+		this.missCount.incrementAndGet();
+		return null;
+	}
+
+
+	/**
+	 * Returns a healthy idle connection if there is one, or otherwise a new connection to the
+	 * redirect host. The connection returned is in blocking mode.
+	 * @return the connection
+	 * @throws IOException if there is an I/O related problem
+	 */
+	public SocketChannel acquire () throws IOException {
+		final SocketChannel connection = this.poll();
+		return connection == null ? SocketChannel.open(this.getResolvedAddress()) : connection;
+	}
+
+
+	/**
+	 * Evicts idle connections that have timed out, or fail their health check, and tops up the
+	 * pool to it's size afterwards. Also closes surplus connections if the size has been lowered.
+	 */
+	private void maintain () {
+		try {
+			// connections are removed while being checked, which prevents poll() from handing them out
+			for (final IdleConnection idleConnection : this.idleConnections.toArray(new IdleConnection[0])) {
+				if (!this.idleConnections.remove(idleConnection)) continue;
+
+				if (idleConnection.isExpired(this.idleTimeout) || !idleConnection.isHealthy()) {
+					idleConnection.close();
+					this.evictionCount.incrementAndGet();
+				} else {
+					this.idleConnections.addLast(idleConnection);
+				}
+			}
+
+			for (int surplus = this.idleConnections.size() - this.size; surplus > 0; --surplus) {
+				final IdleConnection idleConnection = this.idleConnections.pollLast();
+				if (idleConnection != null) idleConnection.close();
+			}
+
+			for (int deficit = this.size - this.idleConnections.size(); deficit > 0; --deficit) {
+				this.idleConnections.addFirst(new IdleConnection(SocketChannel.open(this.getResolvedAddress())));
+			}
+		} catch (final Throwable exception) {
+			Logger.getGlobal().log(Level.WARNING, exception.getMessage(), exception);
+		}
+	}
+
+
+
+	/**
+	 * Instances of this static inner class model idle pooled connections.
+	 */
+	static private class IdleConnection {
+		private final SocketChannel channel;
+		private final long idleTimestamp;
+
+
+		/**
+		 * Creates a new instance.
+		 * @param channel the connection
+		 */
+		public IdleConnection (final SocketChannel channel) {
+			this.channel = channel;
+			this.idleTimestamp = System.currentTimeMillis();
+		}
+
+
+		/**
+		 * Closes the connection.
+		 */
+		public void close () {
+			try { this.channel.close(); } catch (final IOException exception) {}
+		}
+
+
+		/**
+		 * Returns whether or not the connection has been idle for at least the given time.
+		 * @param idleTimeout the idle timeout in milliseconds
+		 * @return the expiration state
+		 */
+		public boolean isExpired (final long idleTimeout) {
+			return System.currentTimeMillis() - this.idleTimestamp >= idleTimeout;
+		}
+
+
+		/**
+		 * Returns whether or not the connection is healthy, i.e. still open on both sides, and
+		 * without unsolicited data from the redirect host. The latter is checked using a
+		 * non-blocking read, which never consumes data from a healthy connection.
+		 * @return the health state
+		 */
+		public boolean isHealthy () {
+			try {
+				this.channel.configureBlocking(false);
+				final int bytesRead = this.channel.read(ByteBuffer.allocate(1));
+				this.channel.configureBlocking(true);
+				return bytesRead == 0;
+			} catch (final IOException exception) {
+				return false;
+			}
+		}
+	}
+}
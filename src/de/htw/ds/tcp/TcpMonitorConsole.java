@@ -0,0 +1,207 @@
+package de.htw.ds.tcp;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import com.sun.net.httpserver.HttpServer;
+import de.htw.tool.Copyright;
+import de.htw.tool.InetAddresses;
+
+
+/**
+ * Headless TCP monitor app-entry facade, suitable for servers without a graphical environment.
+ * Records are written into rolling, gzip compressed pcapng capture files, and throughput summaries
+ * are periodically printed to stdout. Optionally, live metrics are exposed via HTTP.
+ */
+@Copyright(year=2017, holders="Sascha Baumeister")
+public final class TcpMonitorConsole {
+	static private final long MEBIBYTE = 0x100000;
+	static private final int QUEUE_CAPACITY = 0x1000;
+
+	/**
+	 * Prevents external instantiation.
+	 */
+	private TcpMonitorConsole () {}
+
+
+	/**
+	 * Application entry point. The given arguments are expected to be an optional service port
+	 * (default is 8010), optional comma separated upstream addresses (default is localhost:80), an
+	 * optional thread model (default is SELECTOR), an optional capture mode (default is FULL), an
+	 * optional capture limit per connection and direction in bytes (default is 0 for unlimited), an
+	 * optional capture directory path (default is "tcp-captures"), an optional capture file size
+	 * limit in MiB (default is 64), an optional capture file count limit (default is 16), an
+	 * optional summary period in seconds (default is 10), an optional metrics port (default is 0
+	 * for none), and an optional drain timeout in seconds (default is 10). The monitor runs until
+	 * "quit" is entered; if stdin is closed, it runs until the process is terminated. Either way,
+	 * the monitor is drained before it stops, i.e. it stops accepting connections, and waits for
+	 * active ones to complete until the drain timeout expires; the capture files are completed
+	 * afterwards.
+	 * @param args the runtime arguments
+	 * @throws IllegalArgumentException if any of the given arguments is invalid
+	 * @throws IOException if there is an I/O related problem
+	 */
+	static public void main (final String[] args) throws IllegalArgumentException, IOException {
+		final int servicePort = args.length > 0 ? Integer.parseInt(args[0]) : 8010;
+		final List<InetSocketAddress> upstreamAddresses = upstreamAddresses(args.length > 1 ? args[1] : "localhost:80");
+		final TcpMonitorServer.ThreadModel threadModel = TcpMonitorServer.ThreadModel.valueOf(args.length > 2 ? args[2].toUpperCase() : "SELECTOR");
+		final TcpMonitorServer.CaptureMode captureMode = TcpMonitorServer.CaptureMode.valueOf(args.length > 3 ? args[3].toUpperCase() : "FULL");
+		final long captureLimit = args.length > 4 ? Long.parseLong(args[4]) : 0;
+		final Path captureDirectory = Paths.get(args.length > 5 ? args[5] : "tcp-captures").toAbsolutePath();
+		final long fileSizeLimit = (args.length > 6 ? Long.parseLong(args[6]) : 64) * MEBIBYTE;
+		final int fileCountLimit = args.length > 7 ? Integer.parseInt(args[7]) : 16;
+		final long summaryPeriod = args.length > 8 ? Long.parseLong(args[8]) : 10;
+		final int metricsPort = args.length > 9 ? Integer.parseInt(args[9]) : 0;
+		final long drainTimeout = args.length > 10 ? Long.parseLong(args[10]) : 10;
+		if (captureLimit < 0 | summaryPeriod <= 0 | drainTimeout < 0) throw new IllegalArgumentException();
+
+		final TcpMonitorCaptureWriter captureWriter = new TcpMonitorCaptureWriter(captureDirectory, upstreamAddresses.get(0).getPort(), fileSizeLimit, fileCountLimit, QUEUE_CAPACITY);
+		final TcpMonitorServer server;
+		try {
+			server = new TcpMonitorServer(servicePort, upstreamAddresses, threadModel, captureWriter, exception -> Logger.getGlobal().log(Level.FINE, exception.getMessage(), exception));
+		} catch (final Throwable exception) {
+			captureWriter.close();
+			throw exception;
+		}
+
+		server.setCaptureMode(captureMode);
+		if (captureLimit > 0) server.setCaptureRules(Collections.singletonList(new TcpMonitorRule(1, null, null, captureLimit)));
+
+		final HttpServer metricsServer = metricsPort == 0 ? null : HttpServer.create(new InetSocketAddress(metricsPort), 0);
+		if (metricsServer != null) {
+			metricsServer.createContext("/metrics", new TcpMonitorMetricsHandler(server.getMetrics(), server.getUpstreams()));
+			metricsServer.start();
+		}
+
+		final AtomicBoolean stopped = new AtomicBoolean();
+		final Runnable shutdown = () -> {
+			if (!stopped.compareAndSet(false, true)) return;
+			if (metricsServer != null) metricsServer.stop(0);
+			try {
+				final long cutCount = server.drain(TimeUnit.SECONDS.toMillis(drainTimeout));
+				System.out.format("TCP monitor drained, %d connection(s) cut.\n", cutCount);
+			} catch (final IOException exception) {
+				Logger.getGlobal().log(Level.WARNING, exception.getMessage(), exception);
+			}
+			captureWriter.close();
+		};
+		Runtime.getRuntime().addShutdownHook(new Thread(shutdown));
+
+		final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			final Thread thread = new Thread(runnable, "tcp-summary");
+			thread.setDaemon(true);
+			return thread;
+		});
+		scheduler.scheduleAtFixedRate(new SummaryPrinter(server, captureWriter), summaryPeriod, summaryPeriod, TimeUnit.SECONDS);
+
+		final Thread serverThread = new Thread(server, "tcp-acceptor");
+		serverThread.start();
+		try {
+			System.out.format("TCP monitor running on port %s, relaying to %s using the %s thread model.\n", server.getServicePort(), server.getUpstreams(), threadModel);
+			System.out.format("Capture files are written to \"%s\", enter \"quit\" to stop.\n", captureDirectory);
+			if (metricsServer != null) System.out.format("Metrics are available at http://localhost:%s/metrics.\n", metricsServer.getAddress().getPort());
+
+			final BufferedReader charSource = new BufferedReader(new InputStreamReader(System.in));
+			for (String line = charSource.readLine(); !"quit".equals(line); line = charSource.readLine()) {
+				// without stdin, the monitor runs until the process is terminated, or it's acceptor ends
+				if (line == null) {
+					serverThread.join();
+					break;
+				}
+			}
+		} catch (final InterruptedException exception) {
+			// do nothing
+		} finally {
+			scheduler.shutdownNow();
+			shutdown.run();
+		}
+	}
+
+
+	/**
+	 * Returns the upstream addresses parsed from the given text.
+	 * @param text the comma separated upstream addresses
+	 * @return the upstream addresses
+	 * @throws IllegalArgumentException if the given text contains an invalid socket address
+	 */
+	static private List<InetSocketAddress> upstreamAddresses (final String text) throws IllegalArgumentException {
+		final List<InetSocketAddress> upstreamAddresses = new ArrayList<>();
+		for (final String addressText : text.split(",")) {
+			upstreamAddresses.add(InetAddresses.toSocketAddress(addressText.trim()));
+		}
+		return upstreamAddresses;
+	}
+
+
+
+	/**
+	 * Instances of this static inner class print a line summarizing the monitor's throughput since
+	 * the previous summary whenever they are run. Note that the latency quantiles cover all
+	 * connections since the monitor's start.
+	 */
+	static private class SummaryPrinter implements Runnable {
+		private final TcpMonitorServer server;
+		private final TcpMonitorCaptureWriter captureWriter;
+		private final SimpleDateFormat timeFormat;
+		private TcpMonitorMetrics.Snapshot previousSnapshot;
+		private long previousWrittenCount;
+		private long previousDroppedCount;
+
+
+		/**
+		 * Creates a new instance.
+		 * @param server the monitor
+		 * @param captureWriter the capture writer
+		 */
+		public SummaryPrinter (final TcpMonitorServer server, final TcpMonitorCaptureWriter captureWriter) {
+			this.server = server;
+			this.captureWriter = captureWriter;
+			this.timeFormat = new SimpleDateFormat("HH:mm:ss");
+			this.previousSnapshot = server.getMetrics().snapshot();
+		}
+
+
+		/**
+		 * Prints a summary line to stdout.
+		 */
+		public void run () {
+			final TcpMonitorMetrics.Snapshot snapshot = this.server.getMetrics().snapshot();
+			final long writtenCount = this.captureWriter.getWrittenCount();
+			final long droppedCount = this.captureWriter.getDroppedCount();
+			final double seconds = Math.max(1, snapshot.getTimestamp() - this.previousSnapshot.getTimestamp()) / 1000.0;
+
+			System.out.format(Locale.ROOT, "%s in %.1f KiB/s, out %.1f KiB/s, accepted +%d, active %d, failed +%d, first byte p50 %.1f ms, p99 %.1f ms, records +%d, dropped +%d, queued %d\n",
+				this.timeFormat.format(new Date(snapshot.getTimestamp())),
+				(snapshot.getRequestBytes() - this.previousSnapshot.getRequestBytes()) / seconds / 1024,
+				(snapshot.getResponseBytes() - this.previousSnapshot.getResponseBytes()) / seconds / 1024,
+				snapshot.getAcceptedConnections() - this.previousSnapshot.getAcceptedConnections(),
+				snapshot.getActiveConnections(),
+				snapshot.getFailedConnections() - this.previousSnapshot.getFailedConnections(),
+				snapshot.getFirstByteTime().getValueAt(0.5) / 1000.0,
+				snapshot.getFirstByteTime().getValueAt(0.99) / 1000.0,
+				writtenCount - this.previousWrittenCount,
+				droppedCount - this.previousDroppedCount,
+				this.captureWriter.getQueuedCount()
+			);
+
+			this.previousSnapshot = snapshot;
+			this.previousWrittenCount = writtenCount;
+			this.previousDroppedCount = droppedCount;
+		}
+	}
+}
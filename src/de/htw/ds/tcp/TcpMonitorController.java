@@ -2,13 +2,19 @@ package de.htw.ds.tcp;
 
 import java.net.InetSocketAddress;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
 import de.htw.tool.Exceptions;
 import de.htw.tool.LongValidator;
 import javafx.application.Platform;
 import javafx.beans.property.SimpleStringProperty;
+import javafx.collections.ObservableList;
 import javafx.scene.Node;
 import javafx.scene.control.Button;
 import javafx.scene.control.SplitPane;
@@ -29,8 +35,18 @@ import javafx.scene.layout.HBox;
 public class TcpMonitorController implements AutoCloseable {
 	static private final Charset ASCII = Charset.forName("ASCII");
 	static private final Predicate<String> PORT_VALIDATOR = new LongValidator(1, 0xffff);
+	static private final int RECORD_QUEUE_CAPACITY = 0x1000;
+	static private final int RECORD_BATCH_SIZE = 0x100;
+	static private final int MAX_TABLE_SIZE = 50000;
+	static private final int DECODE_WINDOW_SIZE = 0x10000;
+	static private final int MAX_DECODE_LENGTH = 0x400000;
 
 	private volatile TcpMonitorServer monitorServer;
+	private volatile TcpMonitorRecordDispatcher recordDispatcher;
+	private final Queue<TcpMonitorRecord> pendingRecords;
+	private final AtomicBoolean pendingRecordsScheduled;
+	private final byte[] decodeBuffer;
+	private long selectionGeneration;
 	private final ImageView startIcon, suspendIcon, resumeIcon, stopIcon, trashIcon;
 	private final BorderPane rootPane;
 	private final TextField servicePortField, redirectHostField, redirectPortField, errorField;
@@ -50,6 +66,9 @@ public class TcpMonitorController implements AutoCloseable {
 	@SuppressWarnings("unchecked")
 	public TcpMonitorController (final BorderPane rootPane, final Map<String,Image> icons) throws NullPointerException {
 		this.rootPane = rootPane;
+		this.pendingRecords = new ConcurrentLinkedQueue<>();
+		this.pendingRecordsScheduled = new AtomicBoolean();
+		this.decodeBuffer = new byte[DECODE_WINDOW_SIZE];
 		this.startIcon = new ImageView(icons.get("start"));
 		this.suspendIcon = new ImageView(icons.get("suspend"));
 		this.resumeIcon = new ImageView(icons.get("resume"));
@@ -106,7 +125,9 @@ public class TcpMonitorController implements AutoCloseable {
 	 */
 	public void close () {
 		try { this.monitorServer.close(); } catch (final Exception exception) {}
+		try { this.recordDispatcher.close(); } catch (final Exception exception) {}
 		this.monitorServer = null;
+		this.recordDispatcher = null;
 	}
 
 
@@ -147,10 +168,18 @@ public class TcpMonitorController implements AutoCloseable {
 				final String redirectHostName = this.redirectHostField.getText();
 				final int redirectHostPort = Integer.parseInt(this.redirectPortField.getText());
 				final InetSocketAddress redirectHostAddress = new InetSocketAddress(redirectHostName, redirectHostPort);
-				final Consumer<TcpMonitorRecord> recordConsumer = record -> this.handleRecordCreated(record);
+				final Consumer<List<TcpMonitorRecord>> recordsConsumer = records -> this.scheduleRecords(records);
 				final Consumer<Throwable> exceptionConsumer = exception -> this.handleExceptionCatched(exception);
 
-				this.monitorServer = new TcpMonitorServer(servicePort, redirectHostAddress, recordConsumer, exceptionConsumer);
+				// records are delivered asynchronously in batches, which keeps the table from
+				// stalling the monitor; if the table falls behind, the oldest records are dropped
+				this.recordDispatcher = new TcpMonitorRecordDispatcher(RECORD_QUEUE_CAPACITY, RECORD_BATCH_SIZE, TcpMonitorRecordDispatcher.OverflowPolicy.DROP_OLDEST, recordsConsumer);
+				try {
+					this.monitorServer = new TcpMonitorServer(servicePort, redirectHostAddress, this.recordDispatcher, exceptionConsumer);
+				} catch (final Exception exception) {
+					this.recordDispatcher.close();
+					throw exception;
+				}
 				this.stopButton.setDisable(false);
 				new Thread(this.monitorServer, "tcp-acceptor").start();
 			}
@@ -188,17 +217,45 @@ public class TcpMonitorController implements AutoCloseable {
 
 
 	/**
-	 * Event handler for the list selector.
+	 * Event handler for the list selector. Note that the selected record's data is decoded and
+	 * rendered incrementally, one window per event cycle, and only up to 4MiB per direction; this
+	 * keeps the UI responsive even if huge records are selected.
 	 * @param rowIndex the selected row index
 	 */
 	protected void handleTableSelectionChanged (final int rowIndex) {
-		if (rowIndex == -1) {
-			this.requestArea.setText("");
-			this.responseArea.setText("");
-		} else {
+		final long generation = ++this.selectionGeneration;
+		this.requestArea.setText("");
+		this.responseArea.setText("");
+
+		if (rowIndex != -1) {
 			final TcpMonitorRecord record = this.recordTable.getItems().get(rowIndex);
-			this.requestArea.setText(new String(record.getRequestData(), ASCII));
-			this.responseArea.setText(new String(record.getResponseData(), ASCII));
+			this.decodeWindow(record.getRequestCapture(), this.requestArea, 0, generation);
+			this.decodeWindow(record.getResponseCapture(), this.responseArea, 0, generation);
+		}
+	}
+
+
+	/**
+	 * Decodes the capture window starting at the given position, and appends it to the given text
+	 * area. Schedules decoding of the next window unless the end of the capture or the decode limit
+	 * has been reached, or the selection has changed in the meantime.
+	 * @param capture the capture
+	 * @param textArea the text area
+	 * @param position the window position
+	 * @param generation the selection generation the decoding belongs to
+	 */
+	private void decodeWindow (final TcpMonitorCapture capture, final TextArea textArea, final long position, final long generation) {
+		if (generation != this.selectionGeneration) return;
+
+		final long limit = Math.min(capture.length(), MAX_DECODE_LENGTH);
+		final int bytesRead = capture.read(position, this.decodeBuffer, 0, (int) Math.min(this.decodeBuffer.length, limit - position));
+		if (bytesRead > 0) textArea.appendText(new String(this.decodeBuffer, 0, bytesRead, ASCII));
+
+		final long nextPosition = position + Math.max(bytesRead, 0);
+		if (nextPosition < limit) {
+			Platform.runLater(() -> this.decodeWindow(capture, textArea, nextPosition, generation));
+		} else if (limit < capture.length()) {
+			textArea.appendText(String.format("%n[%,d more bytes not shown]", capture.length() - limit));
 		}
 	}
 
@@ -214,11 +271,39 @@ public class TcpMonitorController implements AutoCloseable {
 
 
 	/**
-	 * {@inheritDoc}
+	 * Queues the given records for addition to the record table, and schedules the latter unless
+	 * it is already scheduled. This way, records arriving in quick succession are coalesced into
+	 * a single event per event cycle, regardless of how many batches they arrive in.
+	 * @param records the records created
+	 */
+	private void scheduleRecords (final List<TcpMonitorRecord> records) {
+		this.pendingRecords.addAll(records);
+		if (this.pendingRecordsScheduled.compareAndSet(false, true)) {
+			Platform.runLater(() -> {
+				this.pendingRecordsScheduled.set(false);
+				final List<TcpMonitorRecord> pendingRecords = new ArrayList<>();
+				for (TcpMonitorRecord record = this.pendingRecords.poll(); record != null; record = this.pendingRecords.poll()) {
+					pendingRecords.add(record);
+				}
+				if (!pendingRecords.isEmpty()) this.handleRecordsCreated(pendingRecords);
+			});
+		}
+	}
+
+
+	/**
+	 * Event handler for record batches, called on the JavaFX application thread. Note that the
+	 * table retains the most recent 50.000 records only, in order to keep it's memory footprint
+	 * bounded; older records are removed in bulk.
+	 * @param records the records created
 	 */
-	protected void handleRecordCreated (final TcpMonitorRecord record) {
+	protected void handleRecordsCreated (final List<TcpMonitorRecord> records) {
 		if (this.startButton.getGraphic() == this.suspendIcon) {
-			this.recordTable.getItems().add(record);
+			final ObservableList<TcpMonitorRecord> items = this.recordTable.getItems();
+			final List<TcpMonitorRecord> additions = records.size() > MAX_TABLE_SIZE ? records.subList(records.size() - MAX_TABLE_SIZE, records.size()) : records;
+			final int surplus = Math.min(items.size(), items.size() + additions.size() - MAX_TABLE_SIZE);
+			if (surplus > 0) items.remove(0, surplus);
+			items.addAll(additions);
 			this.clearButton.setDisable(false);
 			this.errorField.setText("");
 		}
@@ -0,0 +1,201 @@
+package de.htw.ds.tcp;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import de.htw.tool.Copyright;
+
+
+/**
+ * TCP monitor load benchmark app-entry facade, comparing how thread models cope with large
+ * numbers of concurrent long-lived connections. For each thread model, the given number of client
+ * connections are opened through a monitor to a selector based echo upstream, and held open while
+ * each of them performs a single round trip. Prints the time to open all connections, the round
+ * trip time across all connections, and the number of platform threads and heap bytes used while
+ * the connections are being held.<br />
+ * Note that every connection requires four file descriptors within this process, and that each
+ * combination of source and destination address supports about 28000 ephemeral ports. Therefore,
+ * clients bind to one loopback source address, and the monitor relays to one upstream port, per
+ * 20000 connections. Reaching 50000 connections requires raising the process's file descriptor
+ * limit to at least 200000, and a Java 21+ runtime for the virtual thread model.
+ */
+@Copyright(year=2017, holders="Sascha Baumeister")
+public final class TcpMonitorLoadBenchmark {
+	static private final int CONNECTIONS_PER_ADDRESS = 20000;
+
+
+	/**
+	 * Prevents external instantiation.
+	 */
+	private TcpMonitorLoadBenchmark () {}
+
+
+	/**
+	 * Application entry point. The given arguments are expected to be an optional number of
+	 * concurrent connections (default is 4000), and an optional list of thread models (default is
+	 * PLATFORM and VIRTUAL). Thread models not supported by the current runtime are skipped.
+	 * @param args the runtime arguments
+	 * @throws IllegalArgumentException if the given connection count is not strictly positive, or
+	 *         if any of the given thread models is invalid
+	 * @throws IOException if there is an I/O related problem
+	 * @throws InterruptedException if the current thread is interrupted while waiting
+	 */
+	static public void main (final String[] args) throws IllegalArgumentException, IOException, InterruptedException {
+		final int connectionCount = args.length > 0 ? Integer.parseInt(args[0]) : 4000;
+		final List<TcpMonitorServer.ThreadModel> threadModels = new ArrayList<>();
+		for (int index = 1; index < args.length; ++index) {
+			threadModels.add(TcpMonitorServer.ThreadModel.valueOf(args[index].toUpperCase()));
+		}
+		if (threadModels.isEmpty()) {
+			threadModels.add(TcpMonitorServer.ThreadModel.PLATFORM);
+			threadModels.add(TcpMonitorServer.ThreadModel.VIRTUAL);
+		}
+		if (connectionCount <= 0) throw new IllegalArgumentException();
+
+		final int addressCount = (connectionCount + CONNECTIONS_PER_ADDRESS - 1) / CONNECTIONS_PER_ADDRESS;
+		try (Selector selector = Selector.open()) {
+			final List<InetSocketAddress> upstreamAddresses = new ArrayList<>();
+			for (int index = 0; index < addressCount; ++index) {
+				final ServerSocketChannel upstream = ServerSocketChannel.open();
+				upstream.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0x1000);
+				upstream.configureBlocking(false);
+				upstream.register(selector, SelectionKey.OP_ACCEPT);
+				upstreamAddresses.add((InetSocketAddress) upstream.getLocalAddress());
+			}
+
+			final Thread echoThread = new Thread(() -> echo(selector), "echo");
+			echoThread.setDaemon(true);
+			echoThread.start();
+
+			for (final TcpMonitorServer.ThreadModel threadModel : threadModels) {
+				try {
+					run(threadModel, upstreamAddresses, connectionCount);
+				} catch (final UnsupportedOperationException exception) {
+					System.out.format("%s: skipped, %s%n", threadModel, exception.getMessage());
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Opens the given number of connections through a new monitor using the given thread model,
+	 * performs one round trip per connection while holding all of them open, closes them, and
+	 * prints the results. Waits until the monitor's threads have terminated before returning.
+	 * @param threadModel the thread model
+	 * @param upstreamAddresses the upstream addresses
+	 * @param connectionCount the number of connections
+	 * @throws UnsupportedOperationException if the current runtime doesn't support the given
+	 *         thread model
+	 * @throws IOException if there is an I/O related problem
+	 * @throws InterruptedException if the current thread is interrupted while waiting
+	 */
+	static private void run (final TcpMonitorServer.ThreadModel threadModel, final List<InetSocketAddress> upstreamAddresses, final int connectionCount) throws UnsupportedOperationException, IOException, InterruptedException {
+		final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		final MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+		final SocketChannel[] connections = new SocketChannel[connectionCount];
+		final int idleThreadCount = threadBean.getThreadCount();
+
+		try (TcpMonitorServer server = new TcpMonitorServer(0, upstreamAddresses, threadModel, record -> {}, exception -> {})) {
+			server.setCaptureMode(TcpMonitorServer.CaptureMode.NONE);
+			server.setBalancingPolicy(TcpMonitorServer.BalancingPolicy.ROUND_ROBIN);
+			final Thread acceptThread = new Thread(server, "accept");
+			acceptThread.setDaemon(true);
+			acceptThread.start();
+
+			System.gc();
+			final int baseThreadCount = threadBean.getThreadCount();
+			final long baseHeapUsage = memoryBean.getHeapMemoryUsage().getUsed();
+
+			final ByteBuffer buffer = ByteBuffer.allocateDirect(1);
+			try {
+				long start = System.nanoTime();
+				for (int index = 0; index < connectionCount; ++index) {
+					final byte[] sourceAddress = { 127, 0, 0, (byte) (1 + index / CONNECTIONS_PER_ADDRESS) };
+					connections[index] = SocketChannel.open();
+					connections[index].bind(new InetSocketAddress(InetAddress.getByAddress(sourceAddress), 0));
+					connections[index].connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getServicePort()));
+				}
+				final double openSeconds = (System.nanoTime() - start) * 1E-9;
+
+				start = System.nanoTime();
+				for (final SocketChannel connection : connections) {
+					buffer.clear();
+					connection.write(buffer);
+				}
+				for (final SocketChannel connection : connections) {
+					buffer.clear();
+					if (connection.read(buffer) != 1) throw new IOException("connection closed prematurely");
+				}
+				final double roundTripSeconds = (System.nanoTime() - start) * 1E-9;
+
+				System.gc();
+				final int threadCount = threadBean.getThreadCount() - baseThreadCount;
+				final long heapUsage = memoryBean.getHeapMemoryUsage().getUsed() - baseHeapUsage;
+				System.out.format("%-8s: %6d connections opened in %6.2fs, round trips in %6.2fs, %6d platform threads, %6.1f MiB heap (%5.1f KiB per connection), %d active%n", threadModel, connectionCount, openSeconds, roundTripSeconds, threadCount, heapUsage / 1048576.0, heapUsage / 1024.0 / connectionCount, server.getMetrics().snapshot().getActiveConnections());
+			} finally {
+				for (final SocketChannel connection : connections) {
+					if (connection != null) try { connection.close(); } catch (final IOException exception) {}
+				}
+			}
+		}
+
+		// relay threads terminate asynchronously, and would otherwise be attributed to the next run
+		for (long timeout = System.currentTimeMillis() + 10000; threadBean.getThreadCount() > idleThreadCount & System.currentTimeMillis() < timeout; ) {
+			Thread.sleep(10);
+		}
+	}
+
+
+	/**
+	 * Echoes everything received on the connections accepted by the service sockets registered
+	 * with the given selector, until the latter is closed.
+	 * @param selector the selector
+	 */
+	static private void echo (final Selector selector) {
+		final ByteBuffer buffer = ByteBuffer.allocateDirect(0x1000);
+		try {
+			while (true) {
+				selector.select();
+				for (final Iterator<SelectionKey> iterator = selector.selectedKeys().iterator(); iterator.hasNext(); ) {
+					final SelectionKey key = iterator.next();
+					iterator.remove();
+
+					try {
+						if (key.isAcceptable()) {
+							final SocketChannel connection = ((ServerSocketChannel) key.channel()).accept();
+							if (connection == null) continue;
+							connection.configureBlocking(false);
+							connection.register(selector, SelectionKey.OP_READ);
+						} else if (key.isReadable()) {
+							final SocketChannel connection = (SocketChannel) key.channel();
+							buffer.clear();
+							if (connection.read(buffer) == -1) {
+								connection.close();
+							} else {
+								// single byte messages always fit the send buffer
+								buffer.flip();
+								connection.write(buffer);
+							}
+						}
+					} catch (final IOException exception) {
+						try { key.channel().close(); } catch (final IOException nestedException) {}
+					}
+				}
+			}
+		} catch (final IOException | RuntimeException exception) {
+			// selector closed
+		}
+	}
+}
@@ -0,0 +1,739 @@
+package de.htw.ds.tcp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import de.htw.tool.Copyright;
+
+
+/**
+ * Instances of this class collect live metrics of a TCP monitor, namely the bytes transported per
+ * direction, the number of accepted, active and failed connections, and latency histograms for the
+ * time to connect to the redirect host, the time to the first response byte, and the connection
+ * duration, plus the TLS handshake time, the number of resumed TLS sessions, the number of
+ * connections cut per timeout reason, and the number of captured bytes dropped because a capture
+ * queue overflowed. All counters are lock-free, which allows them to be updated from any number of
+ * relay threads without contention; consistent views are obtained as snapshots.
+ */
+@Copyright(year=2017, holders="Sascha Baumeister")
+public class TcpMonitorMetrics {
+	static private final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+	private final long startTimestamp;
+	private final LongAdder requestBytes;
+	private final LongAdder responseBytes;
+	private final LongAdder acceptedConnections;
+	private final LongAdder activeConnections;
+	private final LongAdder failedConnections;
+	private final LongAdder resumedHandshakes;
+	private final LongAdder[] timeouts;
+	private final LongAdder droppedCaptureBytes;
+	private final Histogram connectTime;
+	private final Histogram firstByteTime;
+	private final Histogram connectionDuration;
+	private final Histogram handshakeTime;
+
+
+	/**
+	 * Creates a new instance.
+	 */
+	public TcpMonitorMetrics () {
+		this.startTimestamp = System.currentTimeMillis();
+		this.requestBytes = new LongAdder();
+		this.responseBytes = new LongAdder();
+		this.acceptedConnections = new LongAdder();
+		this.activeConnections = new LongAdder();
+		this.failedConnections = new LongAdder();
+		this.resumedHandshakes = new LongAdder();
+		this.timeouts = new LongAdder[TcpMonitorTimeoutException.Reason.values().length];
+		for (int index = 0; index < this.timeouts.length; ++index) {
+			this.timeouts[index] = new LongAdder();
+		}
+		this.droppedCaptureBytes = new LongAdder();
+		this.connectTime = new Histogram();
+		this.firstByteTime = new Histogram();
+		this.connectionDuration = new Histogram();
+		this.handshakeTime = new Histogram();
+	}
+
+
+	/**
+	 * Returns a snapshot of the current metrics.
+	 * @return the snapshot
+	 */
+	public Snapshot snapshot () {
+		return new Snapshot(this);
+	}
+
+
+	/**
+	 * Registers a connection being accepted, and returns a meter for it.
+	 * @return the connection meter
+	 */
+	ConnectionMeter openConnection () {
+		this.acceptedConnections.increment();
+		this.activeConnections.increment();
+		return new ConnectionMeter();
+	}
+
+
+	/**
+	 * Returns the number of connections currently active.
+	 * @return the active connection count
+	 */
+	long activeConnections () {
+		return this.activeConnections.sum();
+	}
+
+
+
+	/**
+	 * Instances of this inner class meter a single connection, from it's acceptance until it is
+	 * closed. Note that all timings are relative to the time the connection has been accepted.
+	 * Once the connection has been assigned to an upstream, everything metered is additionally
+	 * passed to a meter of the upstream's metrics, and the upstream is informed about the
+	 * connection's success or failure. Additionally, meters track the connection's activity, which
+	 * allows it's timeouts to be supervised.
+	 */
+	class ConnectionMeter {
+		private final long openTime;
+		private final AtomicBoolean firstByte;
+		private final AtomicBoolean closed;
+		private final AtomicLong transportedBytes;
+		private volatile long activityTime;
+		private volatile boolean established;
+		private volatile boolean requested;
+		private TcpMonitorUpstream upstream;
+		private ConnectionMeter upstreamMeter;
+
+
+		/**
+		 * Creates a new instance.
+		 */
+		public ConnectionMeter () {
+			this.openTime = System.nanoTime();
+			this.firstByte = new AtomicBoolean();
+			this.closed = new AtomicBoolean();
+			this.transportedBytes = new AtomicLong();
+			this.activityTime = this.openTime;
+		}
+
+
+		/**
+		 * Returns the time the connection has been accepted.
+		 * @return the open time, as given by {@link System#nanoTime()}
+		 */
+		public long getOpenTime () {
+			return this.openTime;
+		}
+
+
+		/**
+		 * Returns the time data has last been transported, or the time the connection has been
+		 * accepted if there has been no data yet.
+		 * @return the activity time, as given by {@link System#nanoTime()}
+		 */
+		public long getActivityTime () {
+			return this.activityTime;
+		}
+
+
+		/**
+		 * Returns the number of bytes transported in both directions.
+		 * @return the transported byte count
+		 */
+		public long getTransportedBytes () {
+			return this.transportedBytes.get();
+		}
+
+
+		/**
+		 * Returns whether or not the connection to the redirect host has been established.
+		 * @return the connection state
+		 */
+		public boolean isEstablished () {
+			return this.established;
+		}
+
+
+		/**
+		 * Returns whether or not the connection has been closed.
+		 * @return the close state
+		 */
+		public boolean isClosed () {
+			return this.closed.get();
+		}
+
+
+		/**
+		 * Assigns the connection to the given upstream. Note that this must happen before the
+		 * connection to the upstream is established, and before any data is transported.
+		 * @param upstream the upstream
+		 * @throws NullPointerException if the given upstream is {@code null}
+		 */
+		public void assign (final TcpMonitorUpstream upstream) throws NullPointerException {
+			this.upstreamMeter = upstream.getMetrics().openConnection();
+			this.upstream = upstream;
+		}
+
+
+		/**
+		 * Registers the connection to the redirect host being established.
+		 */
+		public void connected () {
+			this.established = true;
+			TcpMonitorMetrics.this.connectTime.record(this.elapsedTime());
+			if (this.upstreamMeter != null) this.upstreamMeter.connected();
+		}
+
+
+		/**
+		 * Registers a TLS handshake being completed. Note that connections may perform up to two
+		 * handshakes, one with the client and one with the redirect host.
+		 * @param duration the handshake duration in nanoseconds
+		 * @param resumed whether or not a cached session has been resumed
+		 */
+		public void handshakeCompleted (final long duration, final boolean resumed) {
+			final TcpMonitorMetrics metrics = TcpMonitorMetrics.this;
+			if (resumed) metrics.resumedHandshakes.increment();
+			metrics.handshakeTime.record(duration / 1000);
+			if (this.upstreamMeter != null) this.upstreamMeter.handshakeCompleted(duration, resumed);
+		}
+
+
+		/**
+		 * Registers bytes being transported, including the time to the first response byte.
+		 * @param request {@code true} for the client to server direction, {@code false} otherwise
+		 * @param byteCount the number of bytes
+		 */
+		public void transported (final boolean request, final long byteCount) {
+			if (byteCount <= 0) return;
+
+			final TcpMonitorMetrics metrics = TcpMonitorMetrics.this;
+			this.transportedBytes.addAndGet(byteCount);
+			this.activityTime = System.nanoTime();
+			if (request) {
+				metrics.requestBytes.add(byteCount);
+				if (!this.requested) this.requested = true;
+			} else {
+				metrics.responseBytes.add(byteCount);
+				if (this.firstByte.compareAndSet(false, true)) {
+					metrics.firstByteTime.record(this.elapsedTime());
+					if (this.upstream != null) this.upstream.succeeded();
+				}
+			}
+			if (this.upstreamMeter != null) this.upstreamMeter.transported(request, byteCount);
+		}
+
+
+		/**
+		 * Registers the connection being cut because one of it's timeouts expired. Note that the
+		 * connection must be closed as failed nevertheless.
+		 * @param reason the timeout reason
+		 */
+		public void timedOut (final TcpMonitorTimeoutException.Reason reason) {
+			TcpMonitorMetrics.this.timeouts[reason.ordinal()].increment();
+			if (this.upstreamMeter != null) this.upstreamMeter.timedOut(reason);
+		}
+
+
+		/**
+		 * Registers the given number of bytes being dropped from the connection's capture queue.
+		 * @param byteCount the number of bytes dropped
+		 */
+		public void captureDropped (final long byteCount) {
+			TcpMonitorMetrics.this.droppedCaptureBytes.add(byteCount);
+			if (this.upstreamMeter != null) this.upstreamMeter.captureDropped(byteCount);
+		}
+
+
+		/**
+		 * Registers the connection being closed. Only the first call has any effect, which allows
+		 * this method to be called on both regular and exceptional paths. Connections closed without
+		 * any response data count as failures of their upstream if they failed, or if request data
+		 * has been sent.
+		 * @param failed whether or not the connection failed
+		 */
+		public void close (final boolean failed) {
+			if (!this.closed.compareAndSet(false, true)) return;
+
+			final TcpMonitorMetrics metrics = TcpMonitorMetrics.this;
+			metrics.activeConnections.decrement();
+			if (failed) metrics.failedConnections.increment();
+			metrics.connectionDuration.record(this.elapsedTime());
+
+			if (this.upstreamMeter != null) {
+				this.upstreamMeter.close(failed);
+				if (!this.firstByte.get() & (failed | this.requested)) this.upstream.failed();
+			}
+		}
+
+
+		/**
+		 * Returns a channel that writes into the given byte sink, and registers the bytes written
+		 * as transported in the given direction.
+		 * @param request {@code true} for the client to server direction, {@code false} otherwise
+		 * @param byteSink the byte sink
+		 * @return the metering channel
+		 */
+		public WritableByteChannel newChannel (final boolean request, final WritableByteChannel byteSink) {
+			return new WritableByteChannel() {
+				@Override
+				public boolean isOpen () {
+					return byteSink.isOpen();
+				}
+
+				@Override
+				public void close () throws IOException {
+					byteSink.close();
+				}
+
+				@Override
+				public int write (final ByteBuffer buffer) throws IOException {
+					final int bytesWritten = byteSink.write(buffer);
+					ConnectionMeter.this.transported(request, bytesWritten);
+					return bytesWritten;
+				}
+			};
+		}
+
+
+		/**
+		 * Returns the time elapsed since the connection has been accepted.
+		 * @return the elapsed time in microseconds
+		 */
+		private long elapsedTime () {
+			return (System.nanoTime() - this.openTime) / 1000;
+		}
+	}
+
+
+
+	/**
+	 * Instances of this static inner class model lock-free latency histograms, recording values in
+	 * log-linear buckets similar to HDR histograms. Values below 64 are recorded exactly, while
+	 * larger ones are recorded with a relative error below 1/32, within a fixed amount of memory
+	 * covering the whole positive long range.
+	 */
+	static public class Histogram {
+		static private final int SUB_BUCKET_BITS = 6;
+		static private final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+		static private final int HALF_BUCKET_COUNT = SUB_BUCKET_COUNT / 2;
+
+		private final AtomicLongArray counts;
+		private final LongAdder sum;
+		private final AtomicLong max;
+
+
+		/**
+		 * Creates a new instance.
+		 */
+		public Histogram () {
+			this.counts = new AtomicLongArray(SUB_BUCKET_COUNT + (64 - SUB_BUCKET_BITS) * HALF_BUCKET_COUNT);
+			this.sum = new LongAdder();
+			this.max = new AtomicLong();
+		}
+
+
+		/**
+		 * Records the given value, with negative values being recorded as zero.
+		 * @param value the value
+		 */
+		public void record (long value) {
+			if (value < 0) value = 0;
+			this.counts.incrementAndGet(index(value));
+			this.sum.add(value);
+			for (long max = this.max.get(); value > max && !this.max.compareAndSet(max, value); max = this.max.get());
+		}
+
+
+		/**
+		 * Returns the bucket index of the given non-negative value.
+		 * @param value the value
+		 * @return the bucket index
+		 */
+		static private int index (final long value) {
+			if (value < SUB_BUCKET_COUNT) return (int) value;
+
+			final int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+			return SUB_BUCKET_COUNT + (shift - 1) * HALF_BUCKET_COUNT + (int) (value >>> shift) - HALF_BUCKET_COUNT;
+		}
+
+
+		/**
+		 * Returns the highest value recorded within the bucket with the given index.
+		 * @param index the bucket index
+		 * @return the bucket's highest value
+		 */
+		static private long highestValue (final int index) {
+			if (index < SUB_BUCKET_COUNT) return index;
+
+			final int shift = (index - SUB_BUCKET_COUNT) / HALF_BUCKET_COUNT + 1;
+			final long subBucket = (index - SUB_BUCKET_COUNT) % HALF_BUCKET_COUNT + HALF_BUCKET_COUNT;
+			return ((subBucket + 1) << shift) - 1;
+		}
+
+
+
+		/**
+		 * Instances of this static inner class model immutable histogram snapshots.
+		 */
+		static public class Snapshot {
+			private final long[] counts;
+			private final long count;
+			private final long sum;
+			private final long max;
+
+
+			/**
+			 * Creates a new instance.
+			 * @param histogram the histogram
+			 */
+			private Snapshot (final Histogram histogram) {
+				this.counts = new long[histogram.counts.length()];
+				long count = 0;
+				for (int index = 0; index < this.counts.length; ++index) {
+					count += this.counts[index] = histogram.counts.get(index);
+				}
+
+				this.count = count;
+				this.sum = histogram.sum.sum();
+				this.max = histogram.max.get();
+			}
+
+
+			/**
+			 * Returns the number of values recorded.
+			 * @return the value count
+			 */
+			public long getCount () {
+				return this.count;
+			}
+
+
+			/**
+			 * Returns the maximum value recorded.
+			 * @return the maximum value, or zero if there is none
+			 */
+			public long getMax () {
+				return this.max;
+			}
+
+
+			/**
+			 * Returns the mean of all values recorded.
+			 * @return the mean value, or zero if there is none
+			 */
+			public double getMean () {
+				return this.count == 0 ? 0 : (double) this.sum / this.count;
+			}
+
+
+			/**
+			 * Returns the value at the given quantile, i.e. the smallest value recorded that is equal
+			 * to or greater than the given fraction of all values recorded, within the histogram's
+			 * precision.
+			 * @param quantile the quantile within range [0, 1]
+			 * @return the value at the given quantile, or zero if there is none
+			 * @throws IllegalArgumentException if the given quantile is out of range
+			 */
+			public long getValueAt (final double quantile) throws IllegalArgumentException {
+				if (quantile < 0 | quantile > 1) throw new IllegalArgumentException();
+				if (this.count == 0) return 0;
+
+				final long threshold = Math.max(1, (long) Math.ceil(quantile * this.count));
+				long count = 0;
+				for (int index = 0; index < this.counts.length; ++index) {
+					count += this.counts[index];
+					if (count >= threshold) return Math.min(highestValue(index), this.max);
+				}
+				return this.max;
+			}
+		}
+	}
+
+
+
+	/**
+	 * Instances of this static inner class model immutable metrics snapshots. Note that latencies
+	 * are given in microseconds.
+	 */
+	static public class Snapshot {
+		private final long timestamp;
+		private final long uptime;
+		private final long requestBytes;
+		private final long responseBytes;
+		private final long acceptedConnections;
+		private final long activeConnections;
+		private final long failedConnections;
+		private final long resumedHandshakes;
+		private final long[] timeouts;
+		private final long droppedCaptureBytes;
+		private final Histogram.Snapshot connectTime;
+		private final Histogram.Snapshot firstByteTime;
+		private final Histogram.Snapshot connectionDuration;
+		private final Histogram.Snapshot handshakeTime;
+
+
+		/**
+		 * Creates a new instance.
+		 * @param metrics the metrics
+		 */
+		private Snapshot (final TcpMonitorMetrics metrics) {
+			this.timestamp = System.currentTimeMillis();
+			this.uptime = this.timestamp - metrics.startTimestamp;
+			this.requestBytes = metrics.requestBytes.sum();
+			this.responseBytes = metrics.responseBytes.sum();
+			this.acceptedConnections = metrics.acceptedConnections.sum();
+			this.activeConnections = metrics.activeConnections.sum();
+			this.failedConnections = metrics.failedConnections.sum();
+			this.resumedHandshakes = metrics.resumedHandshakes.sum();
+			this.timeouts = new long[metrics.timeouts.length];
+			for (int index = 0; index < this.timeouts.length; ++index) {
+				this.timeouts[index] = metrics.timeouts[index].sum();
+			}
+			this.droppedCaptureBytes = metrics.droppedCaptureBytes.sum();
+			this.connectTime = new Histogram.Snapshot(metrics.connectTime);
+			this.firstByteTime = new Histogram.Snapshot(metrics.firstByteTime);
+			this.connectionDuration = new Histogram.Snapshot(metrics.connectionDuration);
+			this.handshakeTime = new Histogram.Snapshot(metrics.handshakeTime);
+		}
+
+
+		/**
+		 * Returns the time this snapshot was taken.
+		 * @return the timestamp, in milliseconds since 1/1/1970
+		 */
+		public long getTimestamp () {
+			return this.timestamp;
+		}
+
+
+		/**
+		 * Returns the time between the metrics' creation and this snapshot.
+		 * @return the uptime in milliseconds
+		 */
+		public long getUptime () {
+			return this.uptime;
+		}
+
+
+		/**
+		 * Returns the number of bytes transported from clients to the redirect host.
+		 * @return the request byte count
+		 */
+		public long getRequestBytes () {
+			return this.requestBytes;
+		}
+
+
+		/**
+		 * Returns the number of bytes transported from the redirect host to clients.
+		 * @return the response byte count
+		 */
+		public long getResponseBytes () {
+			return this.responseBytes;
+		}
+
+
+		/**
+		 * Returns the number of connections accepted.
+		 * @return the accepted connection count
+		 */
+		public long getAcceptedConnections () {
+			return this.acceptedConnections;
+		}
+
+
+		/**
+		 * Returns the number of connections currently active.
+		 * @return the active connection count
+		 */
+		public long getActiveConnections () {
+			return this.activeConnections;
+		}
+
+
+		/**
+		 * Returns the number of connections that failed.
+		 * @return the failed connection count
+		 */
+		public long getFailedConnections () {
+			return this.failedConnections;
+		}
+
+
+		/**
+		 * Returns the number of TLS handshakes that resumed a cached session.
+		 * @return the resumed handshake count
+		 */
+		public long getResumedHandshakes () {
+			return this.resumedHandshakes;
+		}
+
+
+		/**
+		 * Returns the number of connections cut because a timeout of the given reason expired.
+		 * @param reason the timeout reason
+		 * @return the timeout count
+		 * @throws NullPointerException if the given reason is {@code null}
+		 */
+		public long getTimeouts (final TcpMonitorTimeoutException.Reason reason) throws NullPointerException {
+			return this.timeouts[reason.ordinal()];
+		}
+
+
+		/**
+		 * Returns the number of captured bytes dropped because a capture queue overflowed.
+		 * @return the dropped capture byte count
+		 */
+		public long getDroppedCaptureBytes () {
+			return this.droppedCaptureBytes;
+		}
+
+
+		/**
+		 * Returns the histogram of the times to connect to the redirect host, in microseconds.
+		 * @return the connect time histogram
+		 */
+		public Histogram.Snapshot getConnectTime () {
+			return this.connectTime;
+		}
+
+
+		/**
+		 * Returns the histogram of the times between accepting connections and transporting their
+		 * first response byte, in microseconds.
+		 * @return the time to first byte histogram
+		 */
+		public Histogram.Snapshot getFirstByteTime () {
+			return this.firstByteTime;
+		}
+
+
+		/**
+		 * Returns the histogram of the connection durations, in microseconds.
+		 * @return the connection duration histogram
+		 */
+		public Histogram.Snapshot getConnectionDuration () {
+			return this.connectionDuration;
+		}
+
+
+		/**
+		 * Returns the histogram of the TLS handshake durations, in microseconds.
+		 * @return the handshake time histogram
+		 */
+		public Histogram.Snapshot getHandshakeTime () {
+			return this.handshakeTime;
+		}
+
+
+		/**
+		 * Returns a plaintext representation of this snapshot, with one "name value" pair per line.
+		 * @return the plaintext representation
+		 */
+		@Override
+		public String toString () {
+			return this.toString("");
+		}
+
+
+		/**
+		 * Returns a plaintext representation of this snapshot, with one "name value" pair per line,
+		 * and the given labels appended to each name. This allows the snapshots of several metrics,
+		 * like those of a monitor's upstreams, to be rendered together.
+		 * @param labels the labels, like <code>{upstream="host:80"}</code>, or an empty string for none
+		 * @return the plaintext representation
+		 * @throws NullPointerException if the given labels are {@code null}
+		 */
+		public String toString (final String labels) throws NullPointerException {
+			if (labels == null) throw new NullPointerException();
+
+			final StringBuilder builder = new StringBuilder();
+			builder.append(String.format("uptime_ms%s %d%n", labels, this.uptime));
+			builder.append(String.format("request_bytes%s %d%n", labels, this.requestBytes));
+			builder.append(String.format("response_bytes%s %d%n", labels, this.responseBytes));
+			builder.append(String.format("accepted_connections%s %d%n", labels, this.acceptedConnections));
+			builder.append(String.format("active_connections%s %d%n", labels, this.activeConnections));
+			builder.append(String.format("failed_connections%s %d%n", labels, this.failedConnections));
+			builder.append(String.format("resumed_handshakes%s %d%n", labels, this.resumedHandshakes));
+			for (final TcpMonitorTimeoutException.Reason reason : TcpMonitorTimeoutException.Reason.values()) {
+				builder.append(String.format("%s_timeouts%s %d%n", reason.name().toLowerCase(Locale.ROOT), labels, this.timeouts[reason.ordinal()]));
+			}
+			builder.append(String.format("dropped_capture_bytes%s %d%n", labels, this.droppedCaptureBytes));
+			appendText(builder, "connect_time_us", labels, this.connectTime);
+			appendText(builder, "first_byte_time_us", labels, this.firstByteTime);
+			appendText(builder, "connection_duration_us", labels, this.connectionDuration);
+			appendText(builder, "handshake_time_us", labels, this.handshakeTime);
+			return builder.toString();
+		}
+
+
+		/**
+		 * Returns a JSON representation of this snapshot.
+		 * @return the JSON representation
+		 */
+		public String toJson () {
+			final StringBuilder builder = new StringBuilder("{");
+			builder.append(String.format("\"uptimeMs\":%d,", this.uptime));
+			builder.append(String.format("\"requestBytes\":%d,", this.requestBytes));
+			builder.append(String.format("\"responseBytes\":%d,", this.responseBytes));
+			builder.append(String.format("\"acceptedConnections\":%d,", this.acceptedConnections));
+			builder.append(String.format("\"activeConnections\":%d,", this.activeConnections));
+			builder.append(String.format("\"failedConnections\":%d,", this.failedConnections));
+			builder.append(String.format("\"resumedHandshakes\":%d,", this.resumedHandshakes));
+			builder.append("\"timeouts\":{");
+			for (final TcpMonitorTimeoutException.Reason reason : TcpMonitorTimeoutException.Reason.values()) {
+				if (reason.ordinal() > 0) builder.append(',');
+				builder.append(String.format("\"%s\":%d", reason.name().toLowerCase(Locale.ROOT), this.timeouts[reason.ordinal()]));
+			}
+			builder.append("},");
+			builder.append(String.format("\"droppedCaptureBytes\":%d,", this.droppedCaptureBytes));
+			appendJson(builder, "connectTimeUs", this.connectTime).append(',');
+			appendJson(builder, "firstByteTimeUs", this.firstByteTime).append(',');
+			appendJson(builder, "connectionDurationUs", this.connectionDuration).append(',');
+			appendJson(builder, "handshakeTimeUs", this.handshakeTime);
+			return builder.append('}').toString();
+		}
+
+
+		/**
+		 * Appends the plaintext representation of the given histogram snapshot.
+		 * @param builder the string builder
+		 * @param name the histogram name
+		 * @param labels the labels
+		 * @param histogram the histogram snapshot
+		 * @return the string builder
+		 */
+		static private StringBuilder appendText (final StringBuilder builder, final String name, final String labels, final Histogram.Snapshot histogram) {
+			builder.append(String.format("%s_count%s %d%n", name, labels, histogram.getCount()));
+			builder.append(String.format(Locale.ROOT, "%s_mean%s %.1f%n", name, labels, histogram.getMean()));
+			for (final double quantile : QUANTILES) {
+				builder.append(String.format(Locale.ROOT, "%s_p%s%s %d%n", name, Double.toString(100 * quantile).replace(".0", "").replace(".", "_"), labels, histogram.getValueAt(quantile)));
+			}
+			return builder.append(String.format("%s_max%s %d%n", name, labels, histogram.getMax()));
+		}
+
+
+		/**
+		 * Appends the JSON representation of the given histogram snapshot.
+		 * @param builder the string builder
+		 * @param name the histogram name
+		 * @param histogram the histogram snapshot
+		 * @return the string builder
+		 */
+		static private StringBuilder appendJson (final StringBuilder builder, final String name, final Histogram.Snapshot histogram) {
+			builder.append(String.format(Locale.ROOT, "\"%s\":{\"count\":%d,\"mean\":%.1f", name, histogram.getCount(), histogram.getMean()));
+			for (final double quantile : QUANTILES) {
+				builder.append(String.format(Locale.ROOT, ",\"p%s\":%d", Double.toString(100 * quantile).replace(".0", "").replace(".", "_"), histogram.getValueAt(quantile)));
+			}
+			return builder.append(String.format(",\"max\":%d}", histogram.getMax()));
+		}
+	}
+}
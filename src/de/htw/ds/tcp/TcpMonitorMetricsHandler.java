@@ -0,0 +1,145 @@
+package de.htw.ds.tcp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import de.htw.tool.Copyright;
+
+
+/**
+ * Instances of this HTTP handler class expose live TCP monitor metrics, which allows them to be
+ * scraped by external tools. Metrics are rendered as plaintext with one "name value" pair per
+ * line by default, or as JSON if the request path ends with ".json", or the request accepts
+ * {@code application/json}. Each request renders a fresh snapshot. If upstreams are given, their
+ * metrics and availability are rendered as well, labeled with their addresses in plaintext, and
+ * within an {@code upstreams} array in JSON.
+ */
+@Copyright(year=2017, holders="Sascha Baumeister")
+public class TcpMonitorMetricsHandler implements HttpHandler {
+	static private final short HTTP_OK = 200;
+	static private final short HTTP_METHOD_NOT_ALLOWED = 405;
+
+	private final TcpMonitorMetrics metrics;
+	private final TcpMonitorUpstream[] upstreams;
+
+
+	/**
+	 * Creates a new instance.
+	 * @param metrics the metrics
+	 * @throws NullPointerException if the given metrics is {@code null}
+	 */
+	public TcpMonitorMetricsHandler (final TcpMonitorMetrics metrics) throws NullPointerException {
+		this(metrics, Collections.emptyList());
+	}
+
+
+	/**
+	 * Creates a new instance that renders the given upstreams' metrics in addition to the given
+	 * metrics.
+	 * @param metrics the metrics
+	 * @param upstreams the upstreams
+	 * @throws NullPointerException if any of the given arguments, or any of the upstreams, is
+	 *         {@code null}
+	 */
+	public TcpMonitorMetricsHandler (final TcpMonitorMetrics metrics, final List<TcpMonitorUpstream> upstreams) throws NullPointerException {
+		if (metrics == null) throw new NullPointerException();
+
+		this.metrics = metrics;
+		this.upstreams = upstreams.toArray(new TcpMonitorUpstream[upstreams.size()]);
+		for (final TcpMonitorUpstream upstream : this.upstreams) {
+			if (upstream == null) throw new NullPointerException();
+		}
+	}
+
+
+	/**
+	 * Returns the metrics.
+	 * @return the metrics
+	 */
+	public TcpMonitorMetrics getMetrics () {
+		return this.metrics;
+	}
+
+
+	/**
+	 * Handles the given HTTP exchange by rendering a snapshot of the metrics. Only GET and HEAD
+	 * requests are supported. Sets one of these HTTP response codes:
+	 * <ul>
+	 * <li>200 OK: if the operation is successful.</li>
+	 * <li>405 METHOD NOT ALLOWED: if the request method is neither GET nor HEAD.</li>
+	 * </ul>
+	 * @param exchange the HTTP exchange
+	 * @throws NullPointerException if the given exchange is {@code null}
+	 * @throws IOException if there is an I/O related problem
+	 */
+	@Override
+	public void handle (final HttpExchange exchange) throws NullPointerException, IOException {
+		try {
+			final String requestMethod = exchange.getRequestMethod();
+			if (!"GET".equals(requestMethod) & !"HEAD".equals(requestMethod)) {
+				exchange.getResponseHeaders().add("Allow", "GET, HEAD");
+				exchange.sendResponseHeaders(HTTP_METHOD_NOT_ALLOWED, -1);
+				return;
+			}
+
+			final String accept = exchange.getRequestHeaders().getFirst("Accept");
+			final boolean json = exchange.getRequestURI().getPath().endsWith(".json") || (accept != null && accept.contains("application/json"));
+			final byte[] content = (json ? this.renderJson() : this.renderText()).getBytes(StandardCharsets.UTF_8);
+
+			exchange.getResponseHeaders().add("Content-Type", json ? "application/json; charset=utf-8" : "text/plain; charset=utf-8");
+			exchange.getResponseHeaders().add("Cache-Control", "no-store");
+			if ("HEAD".equals(requestMethod)) {
+				exchange.sendResponseHeaders(HTTP_OK, -1);
+				return;
+			}
+
+			exchange.sendResponseHeaders(HTTP_OK, content.length);
+			try (OutputStream byteSink = exchange.getResponseBody()) {
+				byteSink.write(content);
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+
+	/**
+	 * Returns a plaintext representation of the metrics and upstreams.
+	 * @return the plaintext representation
+	 */
+	private String renderText () {
+		final StringBuilder builder = new StringBuilder(this.metrics.snapshot().toString());
+		for (final TcpMonitorUpstream upstream : this.upstreams) {
+			final String labels = "{upstream=\"" + upstream + "\"}";
+			builder.append(String.format("upstream_available%s %d%n", labels, upstream.isAvailable() ? 1 : 0));
+			builder.append(String.format("upstream_ejections%s %d%n", labels, upstream.getEjectionCount()));
+			builder.append(upstream.getMetrics().snapshot().toString(labels));
+		}
+		return builder.toString();
+	}
+
+
+	/**
+	 * Returns a JSON representation of the metrics and upstreams.
+	 * @return the JSON representation
+	 */
+	private String renderJson () {
+		final String json = this.metrics.snapshot().toJson();
+		if (this.upstreams.length == 0) return json;
+
+		final StringBuilder builder = new StringBuilder(json);
+		builder.setLength(builder.length() - 1);
+		builder.append(",\"upstreams\":[");
+		for (int index = 0; index < this.upstreams.length; ++index) {
+			final TcpMonitorUpstream upstream = this.upstreams[index];
+			if (index > 0) builder.append(',');
+			builder.append(String.format("{\"address\":\"%s\",\"available\":%s,\"ejections\":%d,\"metrics\":", upstream, upstream.isAvailable(), upstream.getEjectionCount()));
+			builder.append(upstream.getMetrics().snapshot().toJson()).append('}');
+		}
+		return builder.append("]}").toString();
+	}
+}
@@ -0,0 +1,312 @@
+package de.htw.ds.tcp;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import de.htw.tool.Copyright;
+
+
+/**
+ * Instances of this class export TCP monitor records into pcapng files, which allows captured
+ * traffic to be analyzed with tools like Wireshark. As records do not contain packets, each record
+ * is synthesized into a TCP flow between a fixed client address {@code 10.0.0.1} and a fixed server
+ * address {@code 10.0.0.2}, consisting of a three-way handshake, the request data timestamped with
+ * the record's open time, the response data timestamped with the record's close time, and a
+ * connection teardown. The client port and the initial sequence numbers are derived from the
+ * record identity. Note that TCP checksums are not calculated, which requires checksum validation
+ * to be disabled in analysis tools; this is the default in Wireshark.<br />
+ * Exporting is streaming: capture data is never copied onto the heap, but written directly from the
+ * capture buffers, using large gathering writes that combine many packets each.
+ */
+@Copyright(year=2017, holders="Sascha Baumeister")
+public class TcpMonitorPcapExporter implements Consumer<TcpMonitorRecord>, AutoCloseable {
+	static private final int SECTION_HEADER_BLOCK = 0x0A0D0D0A;
+	static private final int INTERFACE_DESCRIPTION_BLOCK = 0x00000001;
+	static private final int ENHANCED_PACKET_BLOCK = 0x00000006;
+	static private final int BYTE_ORDER_MAGIC = 0x1A2B3C4D;
+	static private final short LINK_TYPE_RAW = 101;
+	static private final int CLIENT_ADDRESS = 0x0A000001;
+	static private final int SERVER_ADDRESS = 0x0A000002;
+	static private final int HEADER_SIZE = 20 + 20;
+	static private final int MAX_SEGMENT_SIZE = 0xffff - HEADER_SIZE;
+	static private final int BUFFER_SIZE = 0x10000;
+	static private final int BATCH_SIZE = 0x400000;
+	static private final byte FIN = 0x01, SYN = 0x02, PSH = 0x08, ACK = 0x10;
+
+	private final WritableByteChannel byteSink;
+	private final int serverPort;
+	private final ByteBuffer headerBuffer;
+	private final List<ByteBuffer> batch;
+	private long batchSize;
+	private short packetIdentity;
+	private boolean closed;
+
+
+	/**
+	 * Creates a new instance that exports into the given file, which is created or truncated.
+	 * @param file the pcapng file path
+	 * @param serverPort the server port of the flows synthesized, which allows analysis tools to
+	 *        select protocol dissectors; usually the redirect host port
+	 * @throws NullPointerException if the given file is {@code null}
+	 * @throws IllegalArgumentException if the given server port is outside range [0, 0xFFFF]
+	 * @throws IOException if there is an I/O related problem
+	 */
+	public TcpMonitorPcapExporter (final Path file, final int serverPort) throws NullPointerException, IllegalArgumentException, IOException {
+		this(FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE), serverPort);
+	}
+
+
+	/**
+	 * Creates a new instance that exports into the given byte sink, which is closed once this
+	 * exporter is closed. This allows the pcapng data to be compressed on the way, for example.
+	 * Note that gathering byte sinks, like file channels, are written most efficiently.
+	 * @param byteSink the byte sink
+	 * @param serverPort the server port of the flows synthesized, which allows analysis tools to
+	 *        select protocol dissectors; usually the redirect host port
+	 * @throws NullPointerException if the given byte sink is {@code null}
+	 * @throws IllegalArgumentException if the given server port is outside range [0, 0xFFFF]
+	 * @throws IOException if there is an I/O related problem
+	 */
+	public TcpMonitorPcapExporter (final WritableByteChannel byteSink, final int serverPort) throws NullPointerException, IllegalArgumentException, IOException {
+		if (byteSink == null) throw new NullPointerException();
+
+		this.byteSink = byteSink;
+		this.serverPort = serverPort;
+		this.headerBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.BIG_ENDIAN);
+		this.batch = new ArrayList<>();
+		try {
+			if (serverPort < 0 | serverPort > 0xFFFF) throw new IllegalArgumentException();
+			this.writeHeader();
+		} catch (final Throwable exception) {
+			try { this.byteSink.close(); } catch (final Throwable nestedException) { exception.addSuppressed(nestedException); }
+			throw exception;
+		}
+	}
+
+
+	/**
+	 * Writes all pending packets, and closes the file.
+	 * @throws IOException if there is an I/O related problem
+	 */
+	public synchronized void close () throws IOException {
+		if (this.closed) return;
+		this.closed = true;
+
+		try {
+			this.flush();
+		} finally {
+			this.byteSink.close();
+		}
+	}
+
+
+	/**
+	 * Exports the given record, wrapping I/O exceptions into unchecked ones. This allows the
+	 * exporter to be used as a record consumer.
+	 * @param record the record
+	 * @throws NullPointerException if the given record is {@code null}
+	 * @throws IllegalStateException if this exporter is closed
+	 * @throws UncheckedIOException if there is an I/O related problem
+	 */
+	public void accept (final TcpMonitorRecord record) throws NullPointerException, IllegalStateException, UncheckedIOException {
+		try {
+			this.export(record);
+		} catch (final IOException exception) {
+			throw new UncheckedIOException(exception);
+		}
+	}
+
+
+	/**
+	 * Exports the given record as a synthesized TCP flow. Note that the packets are buffered, and
+	 * therefore not necessarily written to storage until the exporter is flushed or closed; the
+	 * record's captures must not be modified until then.
+	 * @param record the record
+	 * @throws NullPointerException if the given record is {@code null}
+	 * @throws IllegalStateException if this exporter is closed
+	 * @throws IOException if there is an I/O related problem
+	 */
+	public synchronized void export (final TcpMonitorRecord record) throws NullPointerException, IllegalStateException, IOException {
+		if (this.closed) throw new IllegalStateException("exporter closed");
+
+		final long identity = record.getIdentity();
+		final long openTime = record.getOpenTimestamp() * 1000;
+		final long closeTime = record.getCloseTimestamp() * 1000;
+		final int clientPort = 0xC000 | (int) (identity & 0x3FFF);
+		int clientSequence = (int) identity;
+		int serverSequence = (int) (identity >>> 32);
+
+		this.writePacket(openTime, true, clientPort, clientSequence, 0, SYN, null, 0, 0);
+		this.writePacket(openTime, false, clientPort, serverSequence, clientSequence + 1, (byte) (SYN | ACK), null, 0, 0);
+		clientSequence += 1;
+		serverSequence += 1;
+		this.writePacket(openTime, true, clientPort, clientSequence, serverSequence, ACK, null, 0, 0);
+
+		clientSequence = this.writeData(openTime, true, clientPort, clientSequence, serverSequence, record.getRequestCapture());
+		serverSequence = this.writeData(closeTime, false, clientPort, serverSequence, clientSequence, record.getResponseCapture());
+
+		this.writePacket(closeTime, true, clientPort, clientSequence, serverSequence, (byte) (FIN | ACK), null, 0, 0);
+		clientSequence += 1;
+		this.writePacket(closeTime, false, clientPort, serverSequence, clientSequence, (byte) (FIN | ACK), null, 0, 0);
+		serverSequence += 1;
+		this.writePacket(closeTime, true, clientPort, clientSequence, serverSequence, ACK, null, 0, 0);
+	}
+
+
+	/**
+	 * Writes all buffered packets to storage.
+	 * @throws IOException if there is an I/O related problem
+	 */
+	public synchronized void flush () throws IOException {
+		final ByteBuffer[] buffers = this.batch.toArray(new ByteBuffer[this.batch.size()]);
+		try {
+			if (this.byteSink instanceof GatheringByteChannel) {
+				final GatheringByteChannel byteSink = (GatheringByteChannel) this.byteSink;
+				for (long bytesRemaining = this.batchSize; bytesRemaining > 0; ) {
+					bytesRemaining -= byteSink.write(buffers);
+				}
+			} else {
+				for (final ByteBuffer buffer : buffers) {
+					while (buffer.hasRemaining()) this.byteSink.write(buffer);
+				}
+			}
+		} finally {
+			this.batch.clear();
+			this.batchSize = 0;
+			this.headerBuffer.clear();
+		}
+	}
+
+
+	/**
+	 * Writes the section header block and the interface description block.
+	 * @throws IOException if there is an I/O related problem
+	 */
+	private void writeHeader () throws IOException {
+		final int start = this.headerBuffer.position();
+		this.headerBuffer.putInt(SECTION_HEADER_BLOCK).putInt(28).putInt(BYTE_ORDER_MAGIC);
+		this.headerBuffer.putShort((short) 1).putShort((short) 0).putLong(-1).putInt(28);
+		this.headerBuffer.putInt(INTERFACE_DESCRIPTION_BLOCK).putInt(20).putShort(LINK_TYPE_RAW).putShort((short) 0);
+		this.headerBuffer.putInt(0).putInt(20);
+		this.append(start);
+		this.flush();
+	}
+
+
+	/**
+	 * Writes the given capture's data as a sequence of data segments.
+	 * @param timestamp the timestamp in microseconds since 1/1/1970
+	 * @param fromClient whether or not the segments are sent by the client
+	 * @param clientPort the client port
+	 * @param sequence the sequence number of the first segment
+	 * @param acknowledgement the acknowledgement number
+	 * @param capture the capture
+	 * @return the sequence number following the last segment
+	 * @throws IOException if there is an I/O related problem
+	 */
+	private int writeData (final long timestamp, final boolean fromClient, final int clientPort, int sequence, final int acknowledgement, final TcpMonitorCapture capture) throws IOException {
+		final long length = capture.length();
+		for (long position = 0; position < length; position += MAX_SEGMENT_SIZE) {
+			final int segmentSize = (int) Math.min(MAX_SEGMENT_SIZE, length - position);
+			this.writePacket(timestamp, fromClient, clientPort, sequence, acknowledgement, (byte) (PSH | ACK), capture, position, segmentSize);
+			sequence += segmentSize;
+		}
+		return sequence;
+	}
+
+
+	/**
+	 * Writes a single packet as an enhanced packet block. The block headers are written into the
+	 * header buffer, while the payload is appended as views of the given capture.
+	 * @param timestamp the timestamp in microseconds since 1/1/1970
+	 * @param fromClient whether or not the packet is sent by the client
+	 * @param clientPort the client port
+	 * @param sequence the sequence number
+	 * @param acknowledgement the acknowledgement number, ignored unless the ACK flag is set
+	 * @param flags the TCP flags
+	 * @param capture the capture containing the payload, or {@code null} for none
+	 * @param position the payload's capture position
+	 * @param length the payload length
+	 * @throws IOException if there is an I/O related problem
+	 */
+	private void writePacket (final long timestamp, final boolean fromClient, final int clientPort, final int sequence, final int acknowledgement, final byte flags, final TcpMonitorCapture capture, final long position, final int length) throws IOException {
+		if (this.headerBuffer.remaining() < 0x100 | this.batchSize >= BATCH_SIZE) this.flush();
+
+		final int packetLength = HEADER_SIZE + length;
+		final int padding = -packetLength & 3;
+		int start = this.headerBuffer.position();
+		this.headerBuffer.putInt(ENHANCED_PACKET_BLOCK).putInt(32 + packetLength + padding).putInt(0);
+		this.headerBuffer.putInt((int) (timestamp >>> 32)).putInt((int) timestamp);
+		this.headerBuffer.putInt(packetLength).putInt(packetLength);
+
+		// IPv4 header
+		final int ipStart = this.headerBuffer.position();
+		this.headerBuffer.put((byte) 0x45).put((byte) 0).putShort((short) packetLength);
+		this.headerBuffer.putShort(this.packetIdentity++).putShort((short) 0x4000);
+		this.headerBuffer.put((byte) 64).put((byte) 6).putShort((short) 0);
+		this.headerBuffer.putInt(fromClient ? CLIENT_ADDRESS : SERVER_ADDRESS).putInt(fromClient ? SERVER_ADDRESS : CLIENT_ADDRESS);
+		this.headerBuffer.putShort(ipStart + 10, checksum(this.headerBuffer, ipStart, 20));
+
+		// TCP header
+		this.headerBuffer.putShort((short) (fromClient ? clientPort : this.serverPort)).putShort((short) (fromClient ? this.serverPort : clientPort));
+		this.headerBuffer.putInt(sequence).putInt((flags & ACK) == 0 ? 0 : acknowledgement);
+		this.headerBuffer.put((byte) 0x50).put(flags).putShort((short) 0xFFFF);
+		this.headerBuffer.putShort((short) 0).putShort((short) 0);
+		this.append(start);
+
+		if (capture != null) {
+			for (final ByteBuffer view : capture.views(position, length)) {
+				this.batch.add(view);
+				this.batchSize += view.remaining();
+			}
+		}
+
+		start = this.headerBuffer.position();
+		for (int index = 0; index < padding; ++index) {
+			this.headerBuffer.put((byte) 0);
+		}
+		this.headerBuffer.putInt(32 + packetLength + padding);
+		this.append(start);
+	}
+
+
+	/**
+	 * Appends the header buffer content between the given start position and the current position
+	 * to the current batch.
+	 * @param start the start position
+	 */
+	private void append (final int start) {
+		final ByteBuffer view = this.headerBuffer.duplicate();
+		view.flip().position(start);
+		this.batch.add(view);
+		this.batchSize += view.remaining();
+	}
+
+
+	/**
+	 * Returns the internet checksum of the given buffer range.
+	 * @param buffer the buffer
+	 * @param offset the range offset
+	 * @param length the range length, which must be even
+	 * @return the checksum
+	 */
+	static private short checksum (final ByteBuffer buffer, final int offset, final int length) {
+		int sum = 0;
+		for (int index = offset; index < offset + length; index += 2) {
+			sum += buffer.getShort(index) & 0xFFFF;
+		}
+		while ((sum >>> 16) != 0) {
+			sum = (sum & 0xFFFF) + (sum >>> 16);
+		}
+		return (short) ~sum;
+	}
+}
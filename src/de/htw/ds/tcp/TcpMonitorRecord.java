@@ -1,13 +1,16 @@
 package de.htw.ds.tcp;
 
 import java.math.BigInteger;
+import java.net.InetSocketAddress;
 import java.util.Random;
 import de.htw.tool.Copyright;
 
 
 /**
  * Instances of this class model records of TCP communications activity between a monitor's client
- * and a monitor's forward server.
+ * and a monitor's forward server. A record covers either a whole connection, or a single HTTP
+ * request/response exchange if the monitor frames HTTP traffic. Records of monitors balancing their
+ * connections across several upstreams also carry the address of the upstream involved.
  */
 @Copyright(year=2012, holders="Sascha Baumeister")
 public class TcpMonitorRecord {
@@ -16,8 +19,9 @@ public class TcpMonitorRecord {
 	private final long identity;
 	private final long openTimestamp;
 	private final long closeTimestamp;
-	private final byte[] requestData;
-	private final byte[] responseData;
+	private final InetSocketAddress upstreamAddress;
+	private final TcpMonitorCapture requestCapture;
+	private final TcpMonitorCapture responseCapture;
 
 
 	/**
@@ -34,13 +38,87 @@ public class TcpMonitorRecord {
 	 * @throws NullPointerException if the given request or response data is {@code null}
 	 */
 	public TcpMonitorRecord (final long openTimestamp, final long closeTimestamp, final byte[] requestData, final byte[] responseData) {
-		if (requestData == null | responseData == null) throw new NullPointerException();
+		this(openTimestamp, closeTimestamp, TcpMonitorCapture.wrap(requestData), TcpMonitorCapture.wrap(responseData));
+	}
+
+
+	/**
+	 * Instances of this class model TCP monitor records of the data exchange between TCP clients
+	 * and servers, based on captures that are read lazily whenever the record's data is requested.
+	 * @param openTimestamp the milliseconds since 1/1/1970 since both the client and forward server
+	 *        connections were open
+	 * @param closeTimestamp the milliseconds since 1/1/1970 since both the client and forward
+	 *        server connections were closed
+	 * @param requestCapture the capture of the data sent from a client to a monitor
+	 * @param responseCapture the capture of the data sent from a server to a monitor
+	 * @throws NullPointerException if the given request or response capture is {@code null}
+	 */
+	public TcpMonitorRecord (final long openTimestamp, final long closeTimestamp, final TcpMonitorCapture requestCapture, final TcpMonitorCapture responseCapture) {
+		this(openTimestamp, closeTimestamp, null, requestCapture, responseCapture);
+	}
+
+
+	/**
+	 * Instances of this class model TCP monitor records of the data exchange between TCP clients
+	 * and a specific upstream server, based on captures that are read lazily whenever the record's
+	 * data is requested.
+	 * @param openTimestamp the milliseconds since 1/1/1970 since both the client and forward server
+	 *        connections were open
+	 * @param closeTimestamp the milliseconds since 1/1/1970 since both the client and forward
+	 *        server connections were closed
+	 * @param upstreamAddress the address of the forward server, or {@code null} if unknown
+	 * @param requestCapture the capture of the data sent from a client to a monitor
+	 * @param responseCapture the capture of the data sent from a server to a monitor
+	 * @throws NullPointerException if the given request or response capture is {@code null}
+	 */
+	public TcpMonitorRecord (final long openTimestamp, final long closeTimestamp, final InetSocketAddress upstreamAddress, final TcpMonitorCapture requestCapture, final TcpMonitorCapture responseCapture) {
+		this(new BigInteger(63, RANDOMIZER).longValue(), openTimestamp, closeTimestamp, upstreamAddress, requestCapture, responseCapture);
+	}
 
-		this.identity = new BigInteger(63, RANDOMIZER).longValue();
+
+	/**
+	 * Instances of this class model TCP monitor records of the data exchange between TCP clients
+	 * and servers, using a given identity instead of generating one. This allows records to be
+	 * restored from persistent storage.
+	 * @param identity the identity
+	 * @param openTimestamp the milliseconds since 1/1/1970 since both the client and forward server
+	 *        connections were open
+	 * @param closeTimestamp the milliseconds since 1/1/1970 since both the client and forward
+	 *        server connections were closed
+	 * @param requestCapture the capture of the data sent from a client to a monitor
+	 * @param responseCapture the capture of the data sent from a server to a monitor
+	 * @throws NullPointerException if the given request or response capture is {@code null}
+	 * @throws IllegalArgumentException if the given identity is negative
+	 */
+	public TcpMonitorRecord (final long identity, final long openTimestamp, final long closeTimestamp, final TcpMonitorCapture requestCapture, final TcpMonitorCapture responseCapture) {
+		this(identity, openTimestamp, closeTimestamp, null, requestCapture, responseCapture);
+	}
+
+
+	/**
+	 * Instances of this class model TCP monitor records of the data exchange between TCP clients
+	 * and a specific upstream server, using a given identity instead of generating one.
+	 * @param identity the identity
+	 * @param openTimestamp the milliseconds since 1/1/1970 since both the client and forward server
+	 *        connections were open
+	 * @param closeTimestamp the milliseconds since 1/1/1970 since both the client and forward
+	 *        server connections were closed
+	 * @param upstreamAddress the address of the forward server, or {@code null} if unknown
+	 * @param requestCapture the capture of the data sent from a client to a monitor
+	 * @param responseCapture the capture of the data sent from a server to a monitor
+	 * @throws NullPointerException if the given request or response capture is {@code null}
+	 * @throws IllegalArgumentException if the given identity is negative
+	 */
+	public TcpMonitorRecord (final long identity, final long openTimestamp, final long closeTimestamp, final InetSocketAddress upstreamAddress, final TcpMonitorCapture requestCapture, final TcpMonitorCapture responseCapture) {
+		if (requestCapture == null | responseCapture == null) throw new NullPointerException();
+		if (identity < 0) throw new IllegalArgumentException();
+
+		this.identity = identity;
 		this.openTimestamp = openTimestamp;
 		this.closeTimestamp = closeTimestamp;
-		this.requestData = requestData;
-		this.responseData = responseData;
+		this.upstreamAddress = upstreamAddress;
+		this.requestCapture = requestCapture;
+		this.responseCapture = responseCapture;
 	}
 
 
@@ -77,39 +155,72 @@ public class TcpMonitorRecord {
 
 
 	/**
-	 * Returns the data sent from a client to a monitor.
+	 * Returns the address of the forward server involved.
+	 * @return the upstream address, or {@code null} if unknown
+	 */
+	public InetSocketAddress getUpstreamAddress () {
+		return this.upstreamAddress;
+	}
+
+
+	/**
+	 * Returns the capture of the data sent from a client to a monitor, which allows the request
+	 * data to be read piecewise.
+	 * @return the request capture
+	 */
+	public TcpMonitorCapture getRequestCapture () {
+		return this.requestCapture;
+	}
+
+
+	/**
+	 * Returns the data sent from a client to a monitor. Note that the data is read from the
+	 * underlying capture whenever this method is called.
 	 * @return the request data
+	 * @throws IllegalStateException if the request data is too large to be represented as an array
 	 */
-	public byte[] getRequestData () {
-		return this.requestData;
+	public byte[] getRequestData () throws IllegalStateException {
+		return this.requestCapture.toByteArray();
 	}
 
 
 	/**
 	 * Returns the number of bytes in the request data. Note that this method allows property based
 	 * applications to access the length via the bean introspection.
-	 * @return the request length
+	 * @return the request length, capped to {@link Integer#MAX_VALUE}
 	 */
 	public int getRequestLength () {
-		return this.requestData.length;
+		return (int) Math.min(this.requestCapture.length(), Integer.MAX_VALUE);
+	}
+
+
+	/**
+	 * Returns the capture of the data sent from a forward server to a monitor, which allows the
+	 * response data to be read piecewise.
+	 * @return the response capture
+	 */
+	public TcpMonitorCapture getResponseCapture () {
+		return this.responseCapture;
 	}
 
 
 	/**
-	 * Returns the data sent from a forward server to a monitor.
+	 * Returns the data sent from a forward server to a monitor. Note that the data is read from the
+	 * underlying capture whenever this method is called.
 	 * @return the response data
+	 * @throws IllegalStateException if the response data is too large to be represented as an array
 	 */
-	public byte[] getResponseData () {
-		return this.responseData;
+	public byte[] getResponseData () throws IllegalStateException {
+		return this.responseCapture.toByteArray();
 	}
 
 
 	/**
 	 * Returns the number of bytes in the response data. Note that this method allows property based
 	 * applications to access the length via the bean introspection.
-	 * @return the response length
+	 * @return the response length, capped to {@link Integer#MAX_VALUE}
 	 */
 	public int getResponseLength () {
-		return this.responseData.length;
+		return (int) Math.min(this.responseCapture.length(), Integer.MAX_VALUE);
 	}
 }
\ No newline at end of file
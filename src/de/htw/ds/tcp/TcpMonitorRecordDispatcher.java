@@ -0,0 +1,236 @@
+package de.htw.ds.tcp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import de.htw.tool.Copyright;
+import de.htw.tool.Uninterruptibles;
+
+
+/**
+ * Instances of this class decouple TCP monitors from their record consumers. Records accepted are
+ * queued within a bounded queue, and delivered in batches by a separate delivery thread; this way,
+ * slow consumers do not stall the monitor's connection handling. Once the queue is full, further
+ * records are handled according to an overflow policy. Instances are usually passed as a
+ * monitor's record consumer.
+ */
+@Copyright(year=2017, holders="Sascha Baumeister")
+public class TcpMonitorRecordDispatcher implements Consumer<TcpMonitorRecord>, AutoCloseable {
+	static private final long POLL_TIMEOUT = 100;
+	static private final int DEFAULT_SAMPLE_INTERVAL = 10;
+
+	/**
+	 * The policies available for records that do not fit into the queue.
+	 */
+	static public enum OverflowPolicy {
+
+		/**
+		 * The monitor thread publishing a record blocks until there is space within the queue. No
+		 * records are dropped, but slow consumers slow down the monitor.
+		 */
+		BLOCK,
+
+		/**
+		 * The oldest record queued is dropped in favor of the record published.
+		 */
+		DROP_OLDEST,
+
+		/**
+		 * Once the queue is half full, only every n-th record published is queued, and the others
+		 * are dropped. This keeps a representative sample of the traffic while the consumer is
+		 * lagging, while leaving room for the sampled records.
+		 */
+		SAMPLE
+	}
+
+	private final BlockingQueue<TcpMonitorRecord> queue;
+	private final int capacity;
+	private final int batchSize;
+	private final OverflowPolicy overflowPolicy;
+	private final Consumer<List<TcpMonitorRecord>> batchConsumer;
+	private final AtomicLong droppedCount;
+	private final AtomicLong deliveredCount;
+	private final AtomicLong sampleCount;
+	private volatile int sampleInterval;
+	private volatile boolean closed;
+
+
+	/**
+	 * Creates a new instance, and starts it's delivery thread.
+	 * @param capacity the queue capacity
+	 * @param batchSize the maximum number of records delivered at once
+	 * @param overflowPolicy the overflow policy
+	 * @param batchConsumer the consumer of record batches
+	 * @throws NullPointerException if any of the given arguments is {@code null}
+	 * @throws IllegalArgumentException if the given capacity or batch size is not strictly positive
+	 */
+	public TcpMonitorRecordDispatcher (final int capacity, final int batchSize, final OverflowPolicy overflowPolicy, final Consumer<List<TcpMonitorRecord>> batchConsumer) throws NullPointerException, IllegalArgumentException {
+		if (overflowPolicy == null | batchConsumer == null) throw new NullPointerException();
+		if (capacity <= 0 | batchSize <= 0) throw new IllegalArgumentException();
+
+		this.queue = new ArrayBlockingQueue<>(capacity);
+		this.capacity = capacity;
+		this.batchSize = batchSize;
+		this.overflowPolicy = overflowPolicy;
+		this.batchConsumer = batchConsumer;
+		this.droppedCount = new AtomicLong();
+		this.deliveredCount = new AtomicLong();
+		this.sampleCount = new AtomicLong();
+		this.sampleInterval = DEFAULT_SAMPLE_INTERVAL;
+
+		final Thread thread = new Thread(this::deliver, "tcp-record-dispatcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+
+	/**
+	 * Closes this dispatcher. Records queued are still delivered, while records accepted
+	 * afterwards are dropped.
+	 */
+	public void close () {
+		this.closed = true;
+	}
+
+
+	/**
+	 * Returns the queue capacity.
+	 * @return the maximum number of records queued
+	 */
+	public int getCapacity () {
+		return this.capacity;
+	}
+
+
+	/**
+	 * Returns the batch size.
+	 * @return the maximum number of records delivered at once
+	 */
+	public int getBatchSize () {
+		return this.batchSize;
+	}
+
+
+	/**
+	 * Returns the overflow policy.
+	 * @return the overflow policy
+	 */
+	public OverflowPolicy getOverflowPolicy () {
+		return this.overflowPolicy;
+	}
+
+
+	/**
+	 * Returns the sample interval, i.e. the n in "every n-th record" of the sample overflow policy.
+	 * @return the sample interval
+	 */
+	public int getSampleInterval () {
+		return this.sampleInterval;
+	}
+
+
+	/**
+	 * Sets the sample interval, i.e. the n in "every n-th record" of the sample overflow policy.
+	 * @param sampleInterval the sample interval
+	 * @throws IllegalArgumentException if the given interval is not strictly positive
+	 */
+	public void setSampleInterval (final int sampleInterval) throws IllegalArgumentException {
+		if (sampleInterval <= 0) throw new IllegalArgumentException();
+		this.sampleInterval = sampleInterval;
+	}
+
+
+	/**
+	 * Returns the number of records currently queued for delivery.
+	 * @return the queued record count
+	 */
+	public int getQueuedCount () {
+		return this.queue.size();
+	}
+
+
+	/**
+	 * Returns the number of records dropped so far.
+	 * @return the dropped record count
+	 */
+	public long getDroppedCount () {
+		return this.droppedCount.get();
+	}
+
+
+	/**
+	 * Returns the number of records delivered so far.
+	 * @return the delivered record count
+	 */
+	public long getDeliveredCount () {
+		return this.deliveredCount.get();
+	}
+
+
+	/**
+	 * Queues the given record for delivery, applying the overflow policy if necessary.
+	 * @param record the record
+	 * @throws NullPointerException if the given record is {@code null}
+	 */
+	public void accept (final TcpMonitorRecord record) throws NullPointerException {
+		if (record == null) throw new NullPointerException();
+		if (this.closed) {
+			this.droppedCount.incrementAndGet();
+			return;
+		}
+
+		switch (this.overflowPolicy) {
+			case BLOCK: {
+				Uninterruptibles.put(this.queue, record);
+				break;
+			}
+			case DROP_OLDEST: {
+				while (!this.queue.offer(record)) {
+					if (this.queue.poll() != null) this.droppedCount.incrementAndGet();
+				}
+				break;
+			}
+			case SAMPLE: {
+				final boolean sampled = 2 * this.queue.size() < this.capacity || this.sampleCount.incrementAndGet() % this.sampleInterval == 0;
+				if (!sampled || !this.queue.offer(record)) this.droppedCount.incrementAndGet();
+				break;
+			}
+			default: {
+				throw new AssertionError();
+			}
+		}
+	}
+
+
+	/**
+	 * Periodically blocks until records are queued, and delivers them in batches afterwards.
+	 * Terminates once this dispatcher is closed, and all records queued are delivered.
+	 */
+	private void deliver () {
+		while (!this.closed || !this.queue.isEmpty()) {
+			final List<TcpMonitorRecord> batch = new ArrayList<>();
+			try {
+				final TcpMonitorRecord record = this.queue.poll(POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+				if (record == null) continue;
+				batch.add(record);
+			} catch (final InterruptedException exception) {
+				continue;
+			}
+
+			this.queue.drainTo(batch, this.batchSize - 1);
+			this.deliveredCount.addAndGet(batch.size());
+			try {
+				this.batchConsumer.accept(Collections.unmodifiableList(batch));
+			} catch (final Throwable exception) {
+				Logger.getGlobal().log(Level.WARNING, exception.getMessage(), exception);
+			}
+		}
+	}
+}
@@ -0,0 +1,510 @@
+package de.htw.ds.tcp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.function.Supplier;
+import de.htw.tool.Copyright;
+
+
+/**
+ * Instances of this class turn the traffic of a single monitored connection into records. Without
+ * HTTP framing, a single record spans the whole connection, and is published once the connection
+ * is complete. With HTTP framing, both communication directions are framed incrementally, and a
+ * record is published for each request/response exchange as soon as both it's request and it's
+ * response are complete; each exchange is captured separately, and it's timestamps span from the
+ * first request byte to the last response byte. Traffic that cannot be framed, like tunneled or
+ * upgraded connections, is attributed to the most recent exchange.<br />
+ * If the parent defines capture rules, the first rule selecting the connection determines it's
+ * capture limit, while connections not selected by any rule are relayed without being recorded at
+ * all. Rules with header patterns defer this decision until the first request data is written.<br />
+ * Note that the request and response channels may be written concurrently by separate threads.
+ */
+@Copyright(year=2017, holders="Sascha Baumeister")
+class TcpMonitorRecorder implements AutoCloseable {
+	static private final WritableByteChannel NULL_CHANNEL = new NullChannel();
+
+	private final TcpMonitorServer parent;
+	private final InetSocketAddress upstreamAddress;
+	private final long openTimestamp;
+	private final boolean httpFraming;
+	private final Deque<Exchange> exchanges;
+	private final WritableByteChannel requestChannel;
+	private final WritableByteChannel responseChannel;
+	private TcpMonitorRule[] candidates;
+	private long captureLimit;
+	private WritableByteChannel requestSink;
+	private WritableByteChannel responseSink;
+	private Exchange requestExchange;
+	private Exchange responseExchange;
+
+
+	/**
+	 * Creates a new instance, based on the parent's current capture, framing and rule settings.
+	 * Rules are evaluated against the given client address right away, and only rules with header
+	 * patterns may remain as candidates to be evaluated against the first request data.
+	 * @param parent the parent monitor
+	 * @param clientAddress the client address, or {@code null} if unknown
+	 * @param upstreamAddress the address of the upstream the connection is relayed to
+	 * @throws NullPointerException if the given parent is {@code null}
+	 */
+	public TcpMonitorRecorder (final TcpMonitorServer parent, final InetAddress clientAddress, final InetSocketAddress upstreamAddress) throws NullPointerException {
+		if (parent == null) throw new NullPointerException();
+
+		this.parent = parent;
+		this.upstreamAddress = upstreamAddress;
+		this.openTimestamp = System.currentTimeMillis();
+		this.httpFraming = parent.isHttpFraming();
+		this.exchanges = new ArrayDeque<>();
+
+		final TcpMonitorRule[] rules = parent.getCompiledCaptureRules();
+		if (rules.length == 0) {
+			this.initialize(Long.MAX_VALUE);
+		} else {
+			// rules following one without header pattern can never be applied
+			final TcpMonitorRule[] candidates = new TcpMonitorRule[rules.length];
+			int candidateCount = 0;
+			for (final TcpMonitorRule rule : rules) {
+				if (!rule.selects(clientAddress)) continue;
+				candidates[candidateCount++] = rule;
+				if (!rule.hasHeaderPattern()) break;
+			}
+
+			this.candidates = Arrays.copyOf(candidates, candidateCount);
+			if (candidateCount == 0 || !candidates[0].hasHeaderPattern()) this.decide(null);
+		}
+
+		this.requestChannel = this.candidates == null ? this.requestSink : new GateChannel(false);
+		this.responseChannel = this.candidates == null ? this.responseSink : new GateChannel(true);
+	}
+
+
+	/**
+	 * Closes all captures of exchanges not yet published, discarding the latter.
+	 */
+	public synchronized void close () {
+		for (final Exchange exchange : this.exchanges) {
+			exchange.close();
+		}
+		this.exchanges.clear();
+	}
+
+
+	/**
+	 * Returns whether or not HTTP framing is applied, based on the parent's setting when this
+	 * recorder was created.
+	 * @return the HTTP framing state
+	 */
+	public boolean isHttpFraming () {
+		return this.httpFraming;
+	}
+
+
+	/**
+	 * Returns whether or not this recorder has decided not to record the connection, in which
+	 * case all data written is discarded.
+	 * @return the discarding state
+	 */
+	public synchronized boolean isDiscarding () {
+		return this.candidates == null && this.requestSink == NULL_CHANNEL;
+	}
+
+
+	/**
+	 * Returns the channel for the data sent from a client to a monitor.
+	 * @return the request channel
+	 */
+	public WritableByteChannel getRequestChannel () {
+		return this.requestChannel;
+	}
+
+
+	/**
+	 * Returns the channel for the data sent from a forward server to a monitor.
+	 * @return the response channel
+	 */
+	public WritableByteChannel getResponseChannel () {
+		return this.responseChannel;
+	}
+
+
+	/**
+	 * Publishes all exchanges not yet published, regardless of their completeness. This is
+	 * expected to be called once the connection is complete.
+	 */
+	public synchronized void flush () {
+		if (this.candidates != null) this.decide(null);
+		for (final WritableByteChannel sink : new WritableByteChannel[] { this.requestSink, this.responseSink }) {
+			// incomplete lines withheld by the framers would otherwise be missing from the records
+			if (sink instanceof FramingChannel) try { ((FramingChannel) sink).framer.finish(); } catch (final IOException exception) {}
+		}
+		while (!this.exchanges.isEmpty()) {
+			this.publish(this.exchanges.removeFirst());
+		}
+		this.requestExchange = null;
+		this.responseExchange = null;
+	}
+
+
+	/**
+	 * Decides whether or not the connection is recorded, applying the first candidate rule that
+	 * selects the given request prefix. Initializes the sinks accordingly, and clears the
+	 * candidates.
+	 * @param requestPrefix the buffer containing the first request data, or {@code null} if there
+	 *        is none
+	 */
+	private void decide (final ByteBuffer requestPrefix) {
+		final TcpMonitorRule[] candidates = this.candidates;
+		this.candidates = null;
+
+		byte[] buffer = null;
+		int offset = 0, length = 0;
+		if (requestPrefix != null) {
+			length = Math.min(requestPrefix.remaining(), TcpMonitorRule.HEADER_PREFIX_LIMIT);
+			if (requestPrefix.hasArray()) {
+				buffer = requestPrefix.array();
+				offset = requestPrefix.arrayOffset() + requestPrefix.position();
+			} else {
+				buffer = new byte[length];
+				requestPrefix.duplicate().get(buffer);
+			}
+		}
+
+		for (final TcpMonitorRule candidate : candidates) {
+			if (!candidate.hasHeaderPattern() || (buffer != null && candidate.selects(buffer, offset, length))) {
+				this.initialize(candidate.getCaptureLimit());
+				return;
+			}
+		}
+
+		this.requestSink = NULL_CHANNEL;
+		this.responseSink = NULL_CHANNEL;
+	}
+
+
+	/**
+	 * Initializes the request and response sinks, using the given capture limit for all captures.
+	 * @param captureLimit the maximum number of bytes captured per exchange and communication
+	 *        direction
+	 */
+	private void initialize (final long captureLimit) {
+		this.captureLimit = captureLimit;
+		if (this.httpFraming) {
+			this.requestSink = new FramingChannel(false);
+			this.responseSink = new FramingChannel(true);
+		} else {
+			final Exchange exchange = this.beginExchange(null, this.openTimestamp);
+			this.requestSink = exchange.requestCapture;
+			this.responseSink = exchange.responseCapture;
+		}
+	}
+
+
+	/**
+	 * Begins a new exchange.
+	 * @param requestMethod the request method, or {@code null} for none
+	 * @param openTimestamp the open timestamp, in milliseconds since 1/1/1970
+	 * @return the exchange
+	 */
+	private Exchange beginExchange (final String requestMethod, final long openTimestamp) {
+		final Exchange exchange = new Exchange(requestMethod, openTimestamp, this.parent.newCapture(this.captureLimit), this.parent.newCapture(this.captureLimit));
+		this.exchanges.addLast(exchange);
+		return exchange;
+	}
+
+
+	/**
+	 * Publishes all leading exchanges whose request and response are both complete.
+	 */
+	private void publishCompleted () {
+		while (!this.exchanges.isEmpty() && this.exchanges.peekFirst().isComplete()) {
+			this.publish(this.exchanges.removeFirst());
+		}
+	}
+
+
+	/**
+	 * Closes the given exchange's captures, and publishes a corresponding record.
+	 * @param exchange the exchange
+	 */
+	private void publish (final Exchange exchange) {
+		// closing the captures before publishing the record releases their spill files
+		exchange.close();
+		final long closeTimestamp = System.currentTimeMillis();
+		final TcpMonitorRecord record = new TcpMonitorRecord(exchange.openTimestamp, closeTimestamp, this.upstreamAddress, exchange.requestCapture, exchange.responseCapture);
+		this.parent.getRecordConsumer().accept(record);
+	}
+
+
+	/**
+	 * Returns the exchange receiving the given request segment, beginning a new one if necessary.
+	 * @param framer the request framer
+	 * @param headerLine whether or not the segment is a header line
+	 * @return the exchange
+	 */
+	private Exchange requestExchange (final HttpMessageFramer framer, final boolean headerLine) {
+		if (this.requestExchange == null) {
+			// header lines outside of a request are always start lines
+			if (!headerLine && !this.exchanges.isEmpty()) return this.exchanges.peekLast();
+			this.requestExchange = this.beginExchange(headerLine ? framer.getRequestMethod() : null, System.currentTimeMillis());
+		}
+		return this.requestExchange;
+	}
+
+
+	/**
+	 * Returns the exchange receiving response segments, which is the oldest exchange whose
+	 * response isn't complete yet. Begins a new exchange if there is none.
+	 * @return the exchange
+	 */
+	private Exchange responseExchange () {
+		if (this.responseExchange == null) {
+			for (final Exchange exchange : this.exchanges) {
+				if (!exchange.responseComplete) {
+					this.responseExchange = exchange;
+					return exchange;
+				}
+			}
+
+			// unsolicited responses are recorded as exchanges without a request
+			this.responseExchange = this.beginExchange(null, System.currentTimeMillis());
+			this.responseExchange.requestComplete = true;
+		}
+		return this.responseExchange;
+	}
+
+
+
+	/**
+	 * Instances of this static inner class model a single request/response exchange.
+	 */
+	static private class Exchange {
+		private final long openTimestamp;
+		private final String requestMethod;
+		private final TcpMonitorCapture requestCapture;
+		private final TcpMonitorCapture responseCapture;
+		private boolean requestComplete;
+		private boolean responseComplete;
+
+
+		/**
+		 * Creates a new instance.
+		 * @param requestMethod the request method, or {@code null} for none
+		 * @param openTimestamp the open timestamp, in milliseconds since 1/1/1970
+		 * @param requestCapture the request capture
+		 * @param responseCapture the response capture
+		 */
+		public Exchange (final String requestMethod, final long openTimestamp, final TcpMonitorCapture requestCapture, final TcpMonitorCapture responseCapture) {
+			this.openTimestamp = openTimestamp;
+			this.requestMethod = requestMethod;
+			this.requestCapture = requestCapture;
+			this.responseCapture = responseCapture;
+		}
+
+
+		/**
+		 * Closes both captures.
+		 */
+		public void close () {
+			try { this.requestCapture.close(); } catch (final IOException exception) {}
+			try { this.responseCapture.close(); } catch (final IOException exception) {}
+		}
+
+
+		/**
+		 * Returns whether or not both request and response are complete.
+		 * @return the completion state
+		 */
+		public boolean isComplete () {
+			return this.requestComplete & this.responseComplete;
+		}
+	}
+
+
+
+	/**
+	 * Instances of this inner class frame the data of a single communication direction as HTTP
+	 * messages, and capture each message within the exchange it belongs to. Note that written
+	 * buffers without an accessible array are copied into a scratch array.
+	 */
+	private class FramingChannel implements WritableByteChannel, HttpMessageFramer.Listener {
+		private final boolean response;
+		private final HttpMessageFramer framer;
+		private byte[] scratch;
+
+
+		/**
+		 * Creates a new instance.
+		 * @param response whether or not response messages are framed
+		 */
+		public FramingChannel (final boolean response) {
+			final TcpMonitorRecorder recorder = TcpMonitorRecorder.this;
+
+			final Supplier<String> requestMethodSupplier = () -> {
+				synchronized (recorder) {
+					return recorder.responseExchange().requestMethod;
+				}
+			};
+
+			this.response = response;
+			this.framer = new HttpMessageFramer(this, response ? requestMethodSupplier : null);
+			this.scratch = new byte[0];
+		}
+
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public boolean isOpen () {
+			return true;
+		}
+
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public void close () {}
+
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public int write (final ByteBuffer buffer) throws IOException {
+			final int length = buffer.remaining();
+			if (buffer.hasArray()) {
+				this.framer.parse(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+			} else {
+				if (this.scratch.length < length) this.scratch = new byte[length];
+				buffer.duplicate().get(this.scratch, 0, length);
+				this.framer.parse(this.scratch, 0, length);
+			}
+
+			buffer.position(buffer.limit());
+			return length;
+		}
+
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public void segment (final byte[] buffer, final int offset, final int length, final boolean headerLine) throws IOException {
+			final TcpMonitorRecorder recorder = TcpMonitorRecorder.this;
+			synchronized (recorder) {
+				if (this.response) {
+					recorder.responseExchange().responseCapture.write(buffer, offset, length);
+				} else {
+					recorder.requestExchange(this.framer, headerLine).requestCapture.write(buffer, offset, length);
+				}
+			}
+		}
+
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public void messageComplete () {
+			final TcpMonitorRecorder recorder = TcpMonitorRecorder.this;
+			synchronized (recorder) {
+				if (this.response) {
+					recorder.responseExchange().responseComplete = true;
+					recorder.responseExchange = null;
+				} else if (recorder.requestExchange != null) {
+					recorder.requestExchange.requestComplete = true;
+					recorder.requestExchange = null;
+				}
+				recorder.publishCompleted();
+			}
+		}
+	}
+
+
+
+	/**
+	 * Instances of this inner class defer writes until the recorder has decided whether or not
+	 * the connection is recorded, which is done upon the first request data written, or upon
+	 * the first response data if the latter arrives first. Afterwards, writes are passed to the
+	 * sink chosen.
+	 */
+	private class GateChannel implements WritableByteChannel {
+		private final boolean response;
+
+
+		/**
+		 * Creates a new instance.
+		 * @param response whether or not response data is written
+		 */
+		public GateChannel (final boolean response) {
+			this.response = response;
+		}
+
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public boolean isOpen () {
+			return true;
+		}
+
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public void close () {}
+
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public int write (final ByteBuffer buffer) throws IOException {
+			final TcpMonitorRecorder recorder = TcpMonitorRecorder.this;
+			final WritableByteChannel sink;
+			synchronized (recorder) {
+				if (recorder.candidates != null && (this.response || buffer.hasRemaining())) recorder.decide(this.response ? null : buffer);
+				sink = this.response ? recorder.responseSink : recorder.requestSink;
+			}
+
+			if (sink != null) return sink.write(buffer);
+
+			final int bytesWritten = buffer.remaining();
+			buffer.position(buffer.limit());
+			return bytesWritten;
+		}
+	}
+
+
+
+	/**
+	 * Instances of this static inner class discard all data written, which turns connections
+	 * not recorded into pure relays.
+	 */
+	static private class NullChannel implements WritableByteChannel {
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public boolean isOpen () {
+			return true;
+		}
+
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public void close () {}
+
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public int write (final ByteBuffer buffer) {
+			final int bytesWritten = buffer.remaining();
+			buffer.position(buffer.limit());
+			return bytesWritten;
+		}
+	}
+}
@@ -0,0 +1,640 @@
+package de.htw.ds.tcp;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import de.htw.tool.BufferPool;
+import de.htw.tool.Copyright;
+import de.htw.tool.TeeOutputStream;
+
+
+/**
+ * Instances of this class model event-driven relays for TCP monitors. A small fixed set of I/O
+ * threads, each owning a selector, transports the data of all registered client/server connection
+ * pairs in both directions. This avoids dedicating threads to individual connections, which in
+ * turn allows thousands of concurrent (keep-alive) connections to be monitored. TLS termination
+ * and origination are supported as well, with the handshakes being performed in blocking mode
+ * before a connection pair is registered for relaying. Connection pairs whose timeouts expire are
+ * cut by their I/O thread.
+ */
+@Copyright(year=2017, holders="Sascha Baumeister")
+class TcpMonitorRelay implements AutoCloseable {
+	static private final int MAX_PACKET_SIZE = 0xffff - 20 - 20;
+
+	private final TcpMonitorServer parent;
+	private final EventLoop[] eventLoops;
+	private final AtomicInteger registrationCount;
+
+
+	/**
+	 * Creates a new instance, and starts it's I/O threads.
+	 * @param parent the parent monitor
+	 * @param ioThreadCount the number of I/O threads
+	 * @throws NullPointerException if the given parent is {@code null}
+	 * @throws IllegalArgumentException if the given I/O thread count is not strictly positive
+	 * @throws IOException if there is an I/O related problem
+	 */
+	public TcpMonitorRelay (final TcpMonitorServer parent, final int ioThreadCount) throws IOException {
+		if (parent == null) throw new NullPointerException();
+		if (ioThreadCount <= 0) throw new IllegalArgumentException();
+
+		this.parent = parent;
+		this.registrationCount = new AtomicInteger();
+		this.eventLoops = new EventLoop[ioThreadCount];
+		try {
+			for (int index = 0; index < ioThreadCount; ++index) {
+				this.eventLoops[index] = new EventLoop(Selector.open());
+			}
+		} catch (final IOException exception) {
+			// event loops without a running thread cannot close their selectors themselves
+			for (final EventLoop eventLoop : this.eventLoops) {
+				if (eventLoop != null) try { eventLoop.selector.close(); } catch (final IOException nestedException) { exception.addSuppressed(nestedException); }
+			}
+			throw exception;
+		}
+
+		for (int index = 0; index < ioThreadCount; ++index) {
+			final Thread thread = new Thread(this.eventLoops[index], "tcp-relay-" + index);
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+
+	/**
+	 * Closes this relay, including all connections that are currently being relayed. Note that
+	 * each I/O thread closes it's own connections asynchronously.
+	 */
+	public void close () {
+		for (final EventLoop eventLoop : this.eventLoops) {
+			if (eventLoop != null) eventLoop.close();
+		}
+	}
+
+
+	/**
+	 * Returns the number of I/O threads.
+	 * @return the I/O thread count
+	 */
+	public int getIoThreadCount () {
+		return this.eventLoops.length;
+	}
+
+
+	/**
+	 * Registers the given client connection for relaying. Assigns the connection to an upstream
+	 * chosen by the parent, takes a connection to the latter from it's connection pool, or
+	 * otherwise opens a new one, and assigns both to one of the I/O threads in round robin fashion.
+	 * If the parent terminates or originates TLS, the respective handshakes are performed
+	 * beforehand, which implies this method blocks, and requires the given client connection to be
+	 * in blocking mode. Note that this method returns normally if a timeout expires in the
+	 * meantime, as the latter has been reported already, and closes the client connection if this
+	 * relay has been closed in the meantime.
+	 * @param clientConnection the client connection
+	 * @throws NullPointerException if the given client connection is {@code null}
+	 * @throws IOException if there is an I/O related problem, or a TLS handshake fails
+	 */
+	public void register (final SocketChannel clientConnection) throws IOException {
+		final TcpMonitorMetrics.ConnectionMeter meter = this.parent.getMetrics().openConnection();
+		final TcpMonitorWatchdog watchdog = new TcpMonitorWatchdog(this.parent, meter, clientConnection.socket().getInetAddress());
+		watchdog.setCutter(() -> {
+			try { clientConnection.close(); } catch (final IOException exception) {}
+		});
+
+		final ByteChannel clientChannel;
+		try {
+			clientChannel = this.parent.newClientChannel(clientConnection, meter);
+		} catch (final Throwable exception) {
+			meter.close(true);
+			watchdog.cancel();
+			if (watchdog.isExpired()) return;
+			throw exception;
+		}
+
+		// the client handshake precedes the upstream assignment, which keeps it's failures from being
+		// attributed to the upstream
+		final TcpMonitorUpstream upstream = this.parent.selectUpstream();
+		meter.assign(upstream);
+		final TcpMonitorConnectionPool connectionPool = upstream.getConnectionPool();
+		SocketChannel serverConnection = null;
+		final ConnectionPair pair;
+		try {
+			serverConnection = connectionPool.poll();
+			if (serverConnection == null) serverConnection = SocketChannel.open();
+			final SocketChannel cuttableConnection = serverConnection;
+			watchdog.setCutter(() -> {
+				try { clientConnection.close(); } catch (final IOException exception) {}
+				try { cuttableConnection.close(); } catch (final IOException exception) {}
+			});
+
+			if (!serverConnection.isConnected() && this.parent.getTlsOrigination() != null) serverConnection.connect(connectionPool.getResolvedAddress());
+			if (serverConnection.isConnected()) meter.connected();
+			final ByteChannel serverChannel = this.parent.newServerChannel(serverConnection, upstream.getAddress(), meter);
+
+			clientConnection.configureBlocking(false);
+			serverConnection.configureBlocking(false);
+			// non-blocking connects may complete immediately, which the selector never signals
+			if (!serverConnection.isConnected() && serverConnection.connect(connectionPool.getResolvedAddress())) meter.connected();
+			pair = new ConnectionPair(clientConnection, clientChannel, serverConnection, serverChannel, upstream, meter, watchdog);
+		} catch (final Throwable exception) {
+			if (serverConnection != null) try { serverConnection.close(); } catch (final Throwable nestedException) { exception.addSuppressed(nestedException); }
+			meter.close(true);
+			watchdog.cancel();
+			if (watchdog.isExpired()) return;
+			throw exception;
+		}
+
+		// once registered, pairs must be cut by their I/O thread in order to be closed properly
+		final EventLoop eventLoop = this.eventLoops[(this.registrationCount.getAndIncrement() & Integer.MAX_VALUE) % this.eventLoops.length];
+		try {
+			eventLoop.register(pair);
+		} catch (final ClosedSelectorException exception) {
+			pair.close();
+			return;
+		}
+		watchdog.setCutter(() -> eventLoop.cut(pair));
+	}
+
+
+
+	/**
+	 * Instances of this inner class model I/O threads, each multiplexing a subset of the relayed
+	 * connection pairs using it's own selector.
+	 */
+	private class EventLoop implements Runnable {
+		private final Selector selector;
+		private final Queue<ConnectionPair> registrations;
+		private final Queue<ConnectionPair> cuts;
+		private volatile boolean closed;
+
+
+		/**
+		 * Creates a new instance.
+		 * @param selector the selector
+		 */
+		public EventLoop (final Selector selector) {
+			this.selector = selector;
+			this.registrations = new ConcurrentLinkedQueue<>();
+			this.cuts = new ConcurrentLinkedQueue<>();
+		}
+
+
+		/**
+		 * Closes this event loop, including all connection pairs registered with it. As selection
+		 * keys and connection pairs must only be accessed by this event loop's thread, the latter
+		 * is merely signaled to shut down, and closes the pairs and the selector itself.
+		 */
+		public void close () {
+			this.closed = true;
+			this.selector.wakeup();
+		}
+
+
+		/**
+		 * Enqueues the given connection pair for registration with this event loop's selector.
+		 * @param pair the connection pair
+		 * @throws ClosedSelectorException if this event loop has already been closed
+		 */
+		public void register (final ConnectionPair pair) throws ClosedSelectorException {
+			if (this.closed) throw new ClosedSelectorException();
+			this.registrations.add(pair);
+			this.selector.wakeup();
+
+			// registrations racing the shutdown may be enqueued after this event loop's thread has
+			// closed the pending ones, and are therefore closed here
+			if (this.closed) this.closeRegistrations();
+		}
+
+
+		/**
+		 * Closes all connection pairs pending registration.
+		 */
+		private void closeRegistrations () {
+			for (ConnectionPair pair = this.registrations.poll(); pair != null; pair = this.registrations.poll()) {
+				pair.close();
+			}
+		}
+
+
+		/**
+		 * Enqueues the given connection pair for being cut, i.e. closed regardless of it's state.
+		 * @param pair the connection pair
+		 */
+		public void cut (final ConnectionPair pair) {
+			this.cuts.add(pair);
+			this.selector.wakeup();
+		}
+
+
+		/**
+		 * Periodically blocks until I/O events arrive, handles the latter subsequently. Closes all
+		 * connection pairs and the selector once this event loop is closed.
+		 */
+		public void run () {
+			try {
+				while (true) {
+					this.selector.select();
+					if (this.closed) break;
+
+					for (ConnectionPair pair = this.registrations.poll(); pair != null; pair = this.registrations.poll()) {
+						try {
+							// pooled and TLS server connections are connected already
+							final boolean connected = pair.serverConnection.isConnected();
+							pair.clientKey = pair.clientConnection.register(this.selector, 0, pair);
+							pair.serverKey = pair.serverConnection.register(this.selector, connected ? 0 : SelectionKey.OP_CONNECT, pair);
+							if (connected) pair.update();
+						} catch (final Throwable exception) {
+							pair.close();
+							if (!pair.watchdog.isExpired()) TcpMonitorRelay.this.parent.getExceptionConsumer().accept(exception);
+						}
+					}
+
+					for (ConnectionPair pair = this.cuts.poll(); pair != null; pair = this.cuts.poll()) {
+						pair.close();
+					}
+
+					for (final SelectionKey key : this.selector.selectedKeys()) {
+						final ConnectionPair pair = (ConnectionPair) key.attachment();
+						try {
+							pair.handle(key);
+						} catch (final Throwable exception) {
+							pair.close();
+							if (!pair.watchdog.isExpired()) TcpMonitorRelay.this.parent.getExceptionConsumer().accept(exception);
+						}
+					}
+					this.selector.selectedKeys().clear();
+				}
+			} catch (final Throwable exception) {
+				Logger.getGlobal().log(Level.WARNING, exception.getMessage(), exception);
+			} finally {
+				// unexpected failures must not leave the pairs open either
+				this.closed = true;
+				for (final SelectionKey key : this.selector.keys()) {
+					((ConnectionPair) key.attachment()).close();
+				}
+				try { this.selector.close(); } catch (final IOException exception) {}
+				this.closeRegistrations();
+			}
+		}
+	}
+
+
+
+	/**
+	 * Instances of this inner class model pairs of client and server connections, each relaying
+	 * the data of it's two communication directions. Each connection is accompanied by the channel
+	 * used for the data transfer, which is either the connection itself, or a TLS channel based on
+	 * it.
+	 */
+	private class ConnectionPair {
+		private final SocketChannel clientConnection;
+		private final SocketChannel serverConnection;
+		private final ByteChannel clientChannel;
+		private final ByteChannel serverChannel;
+		private final Transport clientToServer;
+		private final Transport serverToClient;
+		private final TcpMonitorRecorder recorder;
+		private final TeeOutputStream.Ring captureQueue;
+		private final TcpMonitorMetrics.ConnectionMeter meter;
+		private final TcpMonitorWatchdog watchdog;
+		private volatile SelectionKey clientKey, serverKey;
+
+
+		/**
+		 * Creates a new instance.
+		 * @param clientConnection the client connection
+		 * @param clientChannel the client channel
+		 * @param serverConnection the (pending) server connection
+		 * @param serverChannel the server channel
+		 * @param upstream the upstream the server connection belongs to
+		 * @param meter the connection meter
+		 * @param watchdog the connection watchdog
+		 */
+		public ConnectionPair (final SocketChannel clientConnection, final ByteChannel clientChannel, final SocketChannel serverConnection, final ByteChannel serverChannel, final TcpMonitorUpstream upstream, final TcpMonitorMetrics.ConnectionMeter meter, final TcpMonitorWatchdog watchdog) {
+			final TcpMonitorServer parent = TcpMonitorRelay.this.parent;
+
+			this.clientConnection = clientConnection;
+			this.serverConnection = serverConnection;
+			this.clientChannel = clientChannel;
+			this.serverChannel = serverChannel;
+			this.recorder = new TcpMonitorRecorder(parent, clientConnection.socket().getInetAddress(), upstream.getAddress());
+			this.captureQueue = parent.newCaptureQueue(this.recorder, meter);
+			this.meter = meter;
+			this.watchdog = watchdog;
+
+			final WritableByteChannel requestSink = this.captureQueue == null ? this.recorder.getRequestChannel() : this.captureQueue.newChannel(this.recorder.getRequestChannel());
+			final WritableByteChannel responseSink = this.captureQueue == null ? this.recorder.getResponseChannel() : this.captureQueue.newChannel(this.recorder.getResponseChannel());
+			this.clientToServer = new Transport(clientChannel, serverChannel, requestSink, byteSink -> parent.newRequestChannel(byteSink, upstream.getAddress()), meter, true);
+			this.serverToClient = new Transport(serverChannel, clientChannel, responseSink, Function.identity(), meter, false);
+		}
+
+
+		/**
+		 * Closes this pair, and recycles the buffers of both transports. Note that this method must
+		 * only be called by the I/O thread owning this pair, or before the latter is registered.
+		 */
+		public void close () {
+			this.abandon();
+			this.clientToServer.recycle();
+			this.serverToClient.recycle();
+		}
+
+
+		/**
+		 * Closes both channels, stops the watchdog, and closes the recorder once all data queued has
+		 * been recorded, while leaving the buffers of both transports to the garbage collector.
+		 * Connections closed without having been completed are metered as failed.
+		 */
+		public void abandon () {
+			try { this.clientChannel.close(); } catch (final IOException exception) {}
+			try { this.serverChannel.close(); } catch (final IOException exception) {}
+			TcpMonitorServer.runQueued(this.captureQueue, this.recorder::close);
+			this.meter.close(true);
+			this.watchdog.cancel();
+		}
+
+
+		/**
+		 * Handles the I/O events signaled by the given selection key.
+		 * @param key the selection key
+		 * @throws IOException if there is an I/O related problem
+		 */
+		public void handle (final SelectionKey key) throws IOException {
+			if (!key.isValid()) return;
+
+			if (key == this.serverKey && key.isConnectable()) {
+				this.serverConnection.finishConnect();
+				this.meter.connected();
+			} else {
+				if (key.isReadable()) {
+					(key == this.clientKey ? this.clientToServer : this.serverToClient).read();
+				}
+				if (key.isValid() && key.isWritable()) {
+					(key == this.clientKey ? this.serverToClient : this.clientToServer).write();
+				}
+			}
+
+			this.update();
+		}
+
+
+		/**
+		 * Transports any input buffered within TLS channels, which the selector cannot signal.
+		 * Afterwards closes this pair if both directions are complete, or otherwise updates the
+		 * interest sets of both selection keys.
+		 * @throws IOException if there is an I/O related problem
+		 */
+		public void update () throws IOException {
+			this.clientToServer.drain();
+			this.serverToClient.drain();
+
+			if (this.clientToServer.isComplete() & this.serverToClient.isComplete()) {
+				TcpMonitorServer.runQueued(this.captureQueue, this.recorder::flush);
+				this.meter.close(false);
+				this.close();
+			} else {
+				this.clientKey.interestOps(this.clientToServer.readInterest() | this.serverToClient.writeInterest());
+				this.serverKey.interestOps(this.serverToClient.readInterest() | this.clientToServer.writeInterest());
+			}
+		}
+	}
+
+
+
+	/**
+	 * Instances of this inner class model a single communication direction of a connection pair,
+	 * transporting data from a source connection into both a target connection and a record sink.
+	 * Note that unfiltered transports use a single pooled direct buffer for all their transfers,
+	 * which avoids copying data onto the heap unless it is captured. Filtered transports pass the data
+	 * read through a filter channel, and buffer the latter's output until it has been written. Once the
+	 * source has reached end of stream, and all data read has been written, the target is shut down
+	 * for writing, which propagates half-closes like those of request/response protocols.
+	 */
+	static private class Transport {
+		private final ByteChannel source;
+		private final ByteChannel target;
+		private final WritableByteChannel recordSink;
+		private final WritableByteChannel filter;
+		private final TcpMonitorMetrics.ConnectionMeter meter;
+		private final boolean request;
+		private final ByteBuffer buffer;
+		private ByteBuffer pendingBuffer;
+		private boolean recycled;
+		private boolean endOfStream;
+		private boolean targetFailed;
+		private boolean targetShutdown;
+
+
+		/**
+		 * Creates a new instance.
+		 * @param source the source channel
+		 * @param target the target channel
+		 * @param recordSink the record sink
+		 * @param filterFactory a function that returns a filter channel writing into the given
+		 *        byte sink, or the byte sink itself if the transported data needs no filtering
+		 * @param meter the connection meter
+		 * @param request {@code true} for the client to server direction, {@code false} otherwise
+		 */
+		public Transport (final ByteChannel source, final ByteChannel target, final WritableByteChannel recordSink, final Function<WritableByteChannel,WritableByteChannel> filterFactory, final TcpMonitorMetrics.ConnectionMeter meter, final boolean request) {
+			final WritableByteChannel pendingSink = new PendingSink();
+			final WritableByteChannel filter = filterFactory.apply(pendingSink);
+
+			this.source = source;
+			this.target = target;
+			this.recordSink = recordSink;
+			this.filter = filter == pendingSink ? null : filter;
+			this.meter = meter;
+			this.request = request;
+			this.buffer = BufferPool.getDefault().acquireBuffer(MAX_PACKET_SIZE, this.filter == null);
+			this.pendingBuffer = this.filter == null ? this.buffer : BufferPool.getDefault().acquireBuffer(MAX_PACKET_SIZE, false);
+		}
+
+
+		/**
+		 * Releases this transport's buffers into the default buffer pool, unless this has happened
+		 * before. The transport must not be used afterwards.
+		 */
+		public void recycle () {
+			if (this.recycled) return;
+			this.recycled = true;
+
+			BufferPool.getDefault().release(this.buffer);
+			if (this.pendingBuffer != this.buffer) BufferPool.getDefault().release(this.pendingBuffer);
+		}
+
+
+		/**
+		 * Returns whether or not all data has been transported.
+		 * @return {@code true} if the source has reached end of stream, and all data read has been
+		 *         written to the target, {@code false} otherwise
+		 */
+		public boolean isComplete () {
+			return this.endOfStream & this.pendingBuffer.position() == 0 & !this.hasPendingOutput();
+		}
+
+
+		/**
+		 * Returns whether or not the source is a TLS channel with pending input.
+		 * @return the pending input state
+		 */
+		public boolean hasPendingInput () {
+			return this.source instanceof TcpMonitorTlsChannel && ((TcpMonitorTlsChannel) this.source).hasPendingInput();
+		}
+
+
+		/**
+		 * Returns whether or not the target is a working TLS channel with pending output.
+		 * @return the pending output state
+		 */
+		public boolean hasPendingOutput () {
+			return !this.targetFailed && this.target instanceof TcpMonitorTlsChannel && ((TcpMonitorTlsChannel) this.target).hasPendingOutput();
+		}
+
+
+		/**
+		 * Returns the interest set required of the source connection.
+		 * @return either {@link SelectionKey#OP_READ} or {@code 0}
+		 */
+		public int readInterest () {
+			final boolean readable = this.filter == null ? this.buffer.hasRemaining() : this.pendingBuffer.position() == 0;
+			return !this.endOfStream & readable ? SelectionKey.OP_READ : 0;
+		}
+
+
+		/**
+		 * Returns the interest set required of the target connection.
+		 * @return either {@link SelectionKey#OP_WRITE} or {@code 0}
+		 */
+		public int writeInterest () {
+			return this.pendingBuffer.position() > 0 | this.hasPendingOutput() ? SelectionKey.OP_WRITE : 0;
+		}
+
+
+		/**
+		 * Reads available data from the source, records and filters it, and writes as much as
+		 * possible of it to the target without blocking. Note that I/O exceptions of the source
+		 * are treated as a kind of EOF due to the other side terminating the stream.
+		 * @throws IOException if recording or filtering fails
+		 */
+		public void read () throws IOException {
+			final int offset = this.buffer.position();
+			int bytesRead;
+			try {
+				bytesRead = this.source.read(this.buffer);
+			} catch (final IOException exception) {
+				bytesRead = -1;
+			}
+
+			if (bytesRead == -1) {
+				this.endOfStream = true;
+			} else {
+				this.meter.transported(this.request, bytesRead);
+				this.buffer.flip().position(offset);
+				this.recordSink.write(this.buffer);
+				this.buffer.limit(this.buffer.capacity());
+			}
+
+			if (this.filter != null) {
+				this.buffer.flip();
+				this.filter.write(this.buffer);
+				this.buffer.clear();
+				if (this.endOfStream && this.filter instanceof Flushable) ((Flushable) this.filter).flush();
+			}
+
+			this.write();
+		}
+
+
+		/**
+		 * Reads as long as the source has pending input, and there is room for it.
+		 * @throws IOException if recording or filtering fails
+		 */
+		public void drain () throws IOException {
+			while (this.readInterest() != 0 && this.hasPendingInput()) {
+				this.read();
+			}
+		}
+
+
+		/**
+		 * Writes as much as possible of the pending data to the target without blocking, and shuts
+		 * down the target for writing once the source has reached end of stream, and no more data is
+		 * pending. Note that I/O exceptions are treated as a kind of EOF due to the other side
+		 * terminating the stream, discarding any data pending.
+		 */
+		public void write () {
+			try {
+				if (this.pendingBuffer.position() > 0 | this.hasPendingOutput()) {
+					this.pendingBuffer.flip();
+					try {
+						this.target.write(this.pendingBuffer);
+					} finally {
+						this.pendingBuffer.compact();
+					}
+				}
+
+				if (this.endOfStream & !this.targetShutdown & this.pendingBuffer.position() == 0) {
+					this.targetShutdown = true;
+					TcpMonitorServer.shutdownOutput(this.target);
+				}
+			} catch (final IOException exception) {
+				this.pendingBuffer.clear();
+				this.endOfStream = true;
+				this.targetFailed = true;
+			}
+		}
+
+
+
+		/**
+		 * Instances of this inner class append the output of a transport's filter to it's pending
+		 * buffer, enlarging the latter if necessary.
+		 */
+		private class PendingSink implements WritableByteChannel {
+
+			/**
+			 * {@inheritDoc}
+			 */
+			public boolean isOpen () {
+				return true;
+			}
+
+
+			/**
+			 * {@inheritDoc}
+			 */
+			public void close () {}
+
+
+			/**
+			 * {@inheritDoc}
+			 */
+			public int write (final ByteBuffer buffer) {
+				final Transport transport = Transport.this;
+				final int bytesWritten = buffer.remaining();
+				if (transport.pendingBuffer.remaining() < bytesWritten) {
+					final ByteBuffer pendingBuffer = BufferPool.getDefault().acquireBuffer(Math.max(2 * transport.pendingBuffer.capacity(), transport.pendingBuffer.position() + bytesWritten), false);
+					transport.pendingBuffer.flip();
+					pendingBuffer.put(transport.pendingBuffer);
+					BufferPool.getDefault().release(transport.pendingBuffer);
+					transport.pendingBuffer = pendingBuffer;
+				}
+
+				transport.pendingBuffer.put(buffer);
+				return bytesWritten;
+			}
+		}
+	}
+}
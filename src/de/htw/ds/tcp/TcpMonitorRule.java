@@ -0,0 +1,192 @@
+package de.htw.ds.tcp;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import de.htw.tool.ByteArrays;
+import de.htw.tool.Copyright;
+
+
+/**
+ * Instances of this class model capture rules for TCP monitors. A rule selects connections by
+ * sampling, by client network, and by a byte pattern contained within the prefix of the request
+ * data, and limits the number of bytes captured per communication direction of the connections
+ * selected. Rules are compiled upon creation, i.e. the client network is converted into an
+ * address/mask pair, and the pattern into bytes, which allows them to be evaluated within
+ * nanoseconds per connection.<br />
+ * Note that the header pattern is only searched within the first {@value #HEADER_PREFIX_LIMIT}
+ * bytes of the first chunk of request data received, which usually contains the whole header
+ * section of protocols like HTTP; if a server sends data before it's client, the pattern doesn't
+ * match.
+ */
+@Copyright(year=2017, holders="Sascha Baumeister")
+public class TcpMonitorRule {
+	static public final int HEADER_PREFIX_LIMIT = 0x2000;
+
+	private final double sampleRate;
+	private final String clientNetwork;
+	private final byte[] networkAddress;
+	private final byte[] networkMask;
+	private final String headerPattern;
+	private final byte[] patternBytes;
+	private final long captureLimit;
+
+
+	/**
+	 * Creates a new instance.
+	 * @param sampleRate the fraction of connections selected, within range [0, 1]
+	 * @param clientNetwork the client network in CIDR notation, like {@code 10.0.0.0/8} or
+	 *        {@code fd00::/8}, or {@code null} for any; addresses without prefix length select a
+	 *        single host
+	 * @param headerPattern the pattern required within the request prefix, or {@code null} for any
+	 * @param captureLimit the maximum number of bytes captured per communication direction
+	 * @throws IllegalArgumentException if the given sample rate is out of range, if the given
+	 *         client network is not a valid IP address literal with optional prefix length, if the
+	 *         given header pattern is empty, or if the given capture limit is negative
+	 */
+	public TcpMonitorRule (final double sampleRate, final String clientNetwork, final String headerPattern, final long captureLimit) throws IllegalArgumentException {
+		if (!(sampleRate >= 0 & sampleRate <= 1) | captureLimit < 0) throw new IllegalArgumentException();
+		if (headerPattern != null && headerPattern.isEmpty()) throw new IllegalArgumentException();
+
+		this.sampleRate = sampleRate;
+		this.clientNetwork = clientNetwork;
+		this.headerPattern = headerPattern;
+		this.patternBytes = headerPattern == null ? null : headerPattern.getBytes(StandardCharsets.UTF_8);
+		this.captureLimit = captureLimit;
+
+		if (clientNetwork == null) {
+			this.networkAddress = null;
+			this.networkMask = null;
+		} else {
+			final int separatorIndex = clientNetwork.indexOf('/');
+			final String addressText = separatorIndex == -1 ? clientNetwork : clientNetwork.substring(0, separatorIndex);
+			this.networkAddress = parseAddress(addressText);
+
+			final int prefixLength;
+			try {
+				prefixLength = separatorIndex == -1 ? 8 * this.networkAddress.length : Integer.parseInt(clientNetwork.substring(separatorIndex + 1));
+			} catch (final NumberFormatException exception) {
+				throw new IllegalArgumentException(clientNetwork, exception);
+			}
+			if (prefixLength < 0 | prefixLength > 8 * this.networkAddress.length) throw new IllegalArgumentException(clientNetwork);
+
+			this.networkMask = new byte[this.networkAddress.length];
+			for (int index = 0; index < this.networkMask.length; ++index) {
+				final int bits = Math.max(0, Math.min(8, prefixLength - 8 * index));
+				this.networkMask[index] = (byte) (0xFF00 >>> bits);
+				this.networkAddress[index] &= this.networkMask[index];
+			}
+		}
+	}
+
+
+	/**
+	 * Returns the sample rate.
+	 * @return the fraction of connections selected, within range [0, 1]
+	 */
+	public double getSampleRate () {
+		return this.sampleRate;
+	}
+
+
+	/**
+	 * Returns the client network.
+	 * @return the client network in CIDR notation, or {@code null} for any
+	 */
+	public String getClientNetwork () {
+		return this.clientNetwork;
+	}
+
+
+	/**
+	 * Returns the header pattern.
+	 * @return the pattern required within the request prefix, or {@code null} for any
+	 */
+	public String getHeaderPattern () {
+		return this.headerPattern;
+	}
+
+
+	/**
+	 * Returns the capture limit.
+	 * @return the maximum number of bytes captured per communication direction
+	 */
+	public long getCaptureLimit () {
+		return this.captureLimit;
+	}
+
+
+	/**
+	 * Returns whether or not this rule requires the request prefix to be evaluated.
+	 * @return {@code true} if there is a header pattern, {@code false} otherwise
+	 */
+	public boolean hasHeaderPattern () {
+		return this.patternBytes != null;
+	}
+
+
+	/**
+	 * Returns whether or not a connection from the given client address is selected, based on
+	 * the client network and the sample rate. Note that the sampling implies that repeated calls
+	 * may return different results.
+	 * @param clientAddress the client address, or {@code null} if unknown
+	 * @return {@code true} if the connection is selected, {@code false} otherwise
+	 */
+	public boolean selects (final InetAddress clientAddress) {
+		if (this.networkAddress != null) {
+			if (clientAddress == null) return false;
+
+			final byte[] address = clientAddress.getAddress();
+			if (address.length != this.networkAddress.length) return false;
+			for (int index = 0; index < address.length; ++index) {
+				if ((address[index] & this.networkMask[index]) != this.networkAddress[index]) return false;
+			}
+		}
+
+		return this.sampleRate >= 1 || ThreadLocalRandom.current().nextDouble() < this.sampleRate;
+	}
+
+
+	/**
+	 * Returns whether or not the given request prefix contains the header pattern.
+	 * @param buffer the buffer containing the request prefix
+	 * @param offset the prefix offset
+	 * @param length the prefix length, of which only the first {@value #HEADER_PREFIX_LIMIT} bytes
+	 *        are searched
+	 * @return {@code true} if there is no header pattern, or the prefix contains it, {@code false}
+	 *         otherwise
+	 */
+	public boolean selects (final byte[] buffer, final int offset, final int length) {
+		return this.patternBytes == null || ByteArrays.indexOf(buffer, this.patternBytes, offset, offset + Math.min(length, HEADER_PREFIX_LIMIT)) != -1;
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String toString () {
+		return String.format("%s[sampleRate=%s, clientNetwork=%s, headerPattern=%s, captureLimit=%d]", this.getClass().getSimpleName(), this.sampleRate, this.clientNetwork, this.headerPattern, this.captureLimit);
+	}
+
+
+	/**
+	 * Returns the given IP address literal as bytes, without performing any name service lookups.
+	 * @param text the IP address literal
+	 * @return the address bytes
+	 * @throws IllegalArgumentException if the given text is not an IP address literal
+	 */
+	static private byte[] parseAddress (final String text) throws IllegalArgumentException {
+		if (text.indexOf('.') == -1 & text.indexOf(':') == -1) throw new IllegalArgumentException(text);
+		for (final char character : text.toCharArray()) {
+			if (Character.digit(character, 16) == -1 & character != '.' & character != ':') throw new IllegalArgumentException(text);
+		}
+
+		try {
+			return InetAddress.getByName(text).getAddress();
+		} catch (final UnknownHostException exception) {
+			throw new IllegalArgumentException(text, exception);
+		}
+	}
+}
@@ -1,47 +1,169 @@
 package de.htw.ds.tcp;
 
-import java.io.ByteArrayOutputStream;
+import java.io.Flushable;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyManagementException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.UnrecoverableKeyException;
+import java.security.cert.CertificateException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javax.net.SocketFactory;
-import javax.net.ssl.SSLSocketFactory;
-import de.htw.ds.sync.ExampleCheckedException;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import de.htw.tool.BufferPool;
 import de.htw.tool.Copyright;
+import de.htw.tool.IOStreams;
+import de.htw.tool.TeeOutputStream;
+import de.htw.tool.Uninterruptibles;
 
 
 /**
  * This class models a TCP monitor, i.e. a TCP server that redirects all incoming client connections
- * towards another host, while logging all traffic.
+ * towards another host, while logging all traffic. Alternatively, the monitor may act as a layer 4
+ * load balancer, redirecting each incoming client connection towards one of several upstream hosts
+ * chosen by it's balancing policy.
  */
 
 @Copyright(year=2008, holders="Sascha Baumeister")
 public class TcpMonitorServer implements Runnable, AutoCloseable {
 	static private final int MAX_PACKET_SIZE = 0xffff - 20 - 20;
+	static private final byte[] HTTP_HOST_NAME = "Host:".getBytes(StandardCharsets.UTF_8);
 	static private final byte[] HTTP_HOST_START = "Host: ".getBytes(StandardCharsets.UTF_8);
 	static private final byte[] HTTP_HOST_STOP = "\n".getBytes(StandardCharsets.UTF_8);
-	static private SocketFactory TLS_SOCKET_FACTORY = SSLSocketFactory.getDefault();
+	static private final int DEFAULT_CAPTURE_MEMORY_LIMIT = 0x100000;
+	static private final int DEFAULT_CAPTURE_QUEUE_CAPACITY = 64;
+	static private final int HEADER_CAPTURE_LIMIT = 0x2000;
+	static private final long DEFAULT_THROUGHPUT_WINDOW = 10000;
+	static private final int SERVICE_BACKLOG = 0x1000;
 
+	/**
+	 * The thread models available for relaying client connections.
+	 */
+	static public enum ThreadModel {
+
+		/**
+		 * Each connection is handled by a pooled platform thread, plus one thread for each of it's
+		 * two communication directions.
+		 */
+		PLATFORM,
+
+		/**
+		 * All connections are multiplexed by a small fixed number of selector based I/O threads.
+		 */
+		SELECTOR,
+
+		/**
+		 * Each connection is handled by a virtual thread, plus one virtual thread for each of it's
+		 * two communication directions. Note that this model requires a Java 21+ runtime.
+		 */
+		VIRTUAL
+	}
+
+
+	/**
+	 * The capture modes available for relayed connections.
+	 */
+	static public enum CaptureMode {
+
+		/**
+		 * All data relayed is captured.
+		 */
+		FULL,
+
+		/**
+		 * The data of each direction is captured up to and including the first empty line, i.e. the
+		 * header section of protocols like HTTP, but no more than 8KiB.
+		 */
+		HEADER,
+
+		/**
+		 * No data is captured, which turns the monitor into a pure relay.
+		 */
+		NONE
+	}
+
+
+	/**
+	 * The policies available for balancing client connections across upstreams. Note that all of
+	 * them skip upstreams that are currently ejected, unless all upstreams are.
+	 */
+	static public enum BalancingPolicy {
+
+		/**
+		 * Upstreams are chosen in turn.
+		 */
+		ROUND_ROBIN,
+
+		/**
+		 * The upstream with the fewest active connections is chosen, with ties being broken in turn.
+		 */
+		LEAST_CONNECTIONS,
+
+		/**
+		 * Two upstreams are chosen randomly, and the one with fewer active connections is used. This
+		 * approximates least connections without scanning all upstreams, and avoids herding towards
+		 * a single upstream.
+		 */
+		POWER_OF_TWO_CHOICES
+	}
+
+	private final ThreadModel threadModel;
 	private final ExecutorService threadPool;
+	private final TcpMonitorRelay relay;
 	private final ServerSocket host;
-	private final InetSocketAddress redirectHostAddress;
+	private final TcpMonitorUpstream[] upstreams;
+	private final AtomicInteger balancingCount;
+	private final TcpMonitorMetrics metrics;
+	private final TcpMonitorTimerWheel timerWheel;
 	private final Consumer<TcpMonitorRecord> recordConsumer;
 	private final Consumer<Throwable> exceptionConsumer;
+	private volatile int captureMemoryLimit;
+	private volatile CaptureMode captureMode;
+	private volatile int captureQueueCapacity;
+	private volatile TeeOutputStream.OverflowPolicy captureOverflowPolicy;
+	private volatile boolean hostRewriting;
+	private volatile boolean httpFraming;
+	private volatile SSLContext tlsTermination;
+	private volatile SSLContext tlsOrigination;
+	private volatile TcpMonitorRule[] captureRules;
+	private volatile BalancingPolicy balancingPolicy;
+	private volatile long connectTimeout;
+	private volatile long idleTimeout;
+	private volatile long lifetimeTimeout;
+	private volatile long minimumThroughput;
+	private volatile long throughputWindow;
 
 
 	/**
@@ -55,35 +177,802 @@ public class TcpMonitorServer implements Runnable, AutoCloseable {
 	 * @throws IOException if the given service port is already in use, or cannot be bound
 	 */
 	public TcpMonitorServer (final int servicePort, final InetSocketAddress redirectHostAddress, final Consumer<TcpMonitorRecord> recordConsumer, final Consumer<Throwable> exceptionConsumer) throws IOException {
-		if (redirectHostAddress == null | recordConsumer == null | exceptionConsumer == null) throw new NullPointerException();
+		this(servicePort, redirectHostAddress, ThreadModel.PLATFORM, recordConsumer, exceptionConsumer);
+	}
 
-		this.threadPool = Executors.newCachedThreadPool();
-		this.host = new ServerSocket(servicePort);
-		this.redirectHostAddress = redirectHostAddress;
+
+	/**
+	 * Creates a new instance using the given thread model. Note that the selector thread model uses
+	 * one I/O thread per available processor.
+	 * @param servicePort the service port
+	 * @param redirectHostAddress the redirect host address
+	 * @param threadModel the thread model
+	 * @param recordConsumer the record consumer
+	 * @param exceptionConsumer the exception consumer
+	 * @throws NullPointerException if any of the given arguments is {@code null}
+	 * @throws IllegalArgumentException if the given service port is outside range [0, 0xFFFF]
+	 * @throws UnsupportedOperationException if the virtual thread model is requested, but the
+	 *         current runtime doesn't support virtual threads
+	 * @throws IOException if the given service port is already in use, or cannot be bound
+	 */
+	public TcpMonitorServer (final int servicePort, final InetSocketAddress redirectHostAddress, final ThreadModel threadModel, final Consumer<TcpMonitorRecord> recordConsumer, final Consumer<Throwable> exceptionConsumer) throws IOException {
+		this(servicePort, Collections.singletonList(redirectHostAddress), threadModel, recordConsumer, exceptionConsumer);
+	}
+
+
+	/**
+	 * Creates a new instance that balances client connections across the given upstream addresses,
+	 * using the given thread model. Each upstream maintains it's own connection pool and metrics.
+	 * @param servicePort the service port
+	 * @param upstreamAddresses the upstream addresses
+	 * @param threadModel the thread model
+	 * @param recordConsumer the record consumer
+	 * @param exceptionConsumer the exception consumer
+	 * @throws NullPointerException if any of the given arguments, or any of the upstream addresses,
+	 *         is {@code null}
+	 * @throws IllegalArgumentException if the given service port is outside range [0, 0xFFFF], or if
+	 *         there are no upstream addresses
+	 * @throws UnsupportedOperationException if the virtual thread model is requested, but the
+	 *         current runtime doesn't support virtual threads
+	 * @throws IOException if the given service port is already in use, or cannot be bound
+	 */
+	public TcpMonitorServer (final int servicePort, final List<InetSocketAddress> upstreamAddresses, final ThreadModel threadModel, final Consumer<TcpMonitorRecord> recordConsumer, final Consumer<Throwable> exceptionConsumer) throws IOException {
+		if (upstreamAddresses.contains(null) | threadModel == null | recordConsumer == null | exceptionConsumer == null) throw new NullPointerException();
+		if (upstreamAddresses.isEmpty()) throw new IllegalArgumentException();
+
+		this.threadModel = threadModel;
+		this.threadPool = threadModel == ThreadModel.VIRTUAL ? newVirtualThreadPool() : Executors.newCachedThreadPool();
+		this.upstreams = new TcpMonitorUpstream[upstreamAddresses.size()];
+		for (int index = 0; index < this.upstreams.length; ++index) {
+			this.upstreams[index] = new TcpMonitorUpstream(upstreamAddresses.get(index));
+		}
+		this.balancingCount = new AtomicInteger();
+		this.balancingPolicy = BalancingPolicy.ROUND_ROBIN;
+		this.metrics = new TcpMonitorMetrics();
 		this.recordConsumer = recordConsumer;
 		this.exceptionConsumer = exceptionConsumer;
+		this.captureMemoryLimit = DEFAULT_CAPTURE_MEMORY_LIMIT;
+		this.captureMode = CaptureMode.FULL;
+		this.captureQueueCapacity = DEFAULT_CAPTURE_QUEUE_CAPACITY;
+		this.captureOverflowPolicy = TeeOutputStream.OverflowPolicy.BLOCK;
+		this.captureRules = new TcpMonitorRule[0];
+		this.throughputWindow = DEFAULT_THROUGHPUT_WINDOW;
+		this.timerWheel = new TcpMonitorTimerWheel();
+
+		// channel based connections allow direct buffers to be reused during relaying, and are a
+		// prerequisite for selectors; the default backlog of 50 overflows during connection bursts,
+		// which delays the affected connects by a second until their SYN is retransmitted
+		this.host = ServerSocketChannel.open().socket();
+		try {
+			this.host.bind(new InetSocketAddress(servicePort), SERVICE_BACKLOG);
+			this.relay = threadModel == ThreadModel.SELECTOR ? new TcpMonitorRelay(this, Runtime.getRuntime().availableProcessors()) : null;
+		} catch (final Throwable exception) {
+			try { this.host.close(); } catch (final Throwable nestedException) { exception.addSuppressed(nestedException); }
+			this.threadPool.shutdown();
+			this.timerWheel.close();
+			for (final TcpMonitorUpstream upstream : this.upstreams) upstream.close();
+			throw exception;
+		}
+	}
+
+
+	/**
+	 * Returns a new executor service that starts a new virtual thread for each task. Note that
+	 * the executor is looked up reflectively, as virtual threads require a Java 21+ runtime.
+	 * @return the executor service created
+	 * @throws UnsupportedOperationException if the current runtime doesn't support virtual threads
+	 */
+	static private ExecutorService newVirtualThreadPool () throws UnsupportedOperationException {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (final NoSuchMethodException exception) {
+			throw new UnsupportedOperationException("virtual threads require a Java 21+ runtime", exception);
+		} catch (final IllegalAccessException | InvocationTargetException exception) {
+			throw new AssertionError(exception);
+		}
 	}
 
 
 	/**
-	 * Closes this server.
+	 * Returns a new TLS context based on a JKS key store, suitable for TLS termination. The
+	 * context trusts the default certificate authorities, which also makes it suitable for TLS
+	 * origination.
+	 * @param keyStoreFile the key store file path
+	 * @param keyRecoveryPassword the key recovery password
+	 * @param keyManagementPassword the key management password
+	 * @return the TLS context created
+	 * @throws NullPointerException if any of the given arguments is {@code null}
+	 * @throws IOException if an I/O related problem occurs during key store file access
+	 * @throws CertificateException if any of the certificates in the key store could not be loaded
+	 * @throws UnrecoverableKeyException if there is a key recovery problem, like incorrect passwords
+	 * @throws KeyManagementException if there is a key management problem, like key expiration
+	 */
+	static public SSLContext newTlsContext (final Path keyStoreFile, final String keyRecoveryPassword, final String keyManagementPassword) throws NullPointerException, IOException, CertificateException, UnrecoverableKeyException, KeyManagementException {
+		try {
+			final KeyStore keyStore = KeyStore.getInstance("JKS");
+			try {
+				try (InputStream byteSource = Files.newInputStream(keyStoreFile)) {
+					keyStore.load(byteSource, keyRecoveryPassword.toCharArray());
+				}
+			} catch (final IOException exception) {
+				if (exception.getCause() instanceof UnrecoverableKeyException) throw (UnrecoverableKeyException) exception.getCause();
+				throw exception;
+			}
+
+			final KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+			kmf.init(keyStore, keyManagementPassword.toCharArray());
+
+			final SSLContext context = SSLContext.getInstance("TLS");
+			context.init(kmf.getKeyManagers(), null, null);
+			return context;
+		} catch (final NoSuchAlgorithmException | KeyStoreException exception) {
+			throw new AssertionError(exception);
+		}
+	}
+
+
+	/**
+	 * Closes this server, including all connections that are currently being relayed.
 	 * @throws IOException {@inheritDoc}
 	 */
 	public void close () throws IOException {
 		try {
 			this.host.close();
 		} finally {
-			this.threadPool.shutdown();
+			// interrupting the relay threads closes their connections
+			this.threadPool.shutdownNow();
+			for (final TcpMonitorUpstream upstream : this.upstreams) upstream.close();
+			if (this.relay != null) this.relay.close();
+			this.timerWheel.close();
 		}
 	}
 
 
 	/**
-	 * Returns the redirect host address.
+	 * Drains this server, and closes it afterwards. Draining stops accepting new connections
+	 * immediately, and waits for the connections that are currently being relayed to complete,
+	 * but not beyond the given timeout. Connections still active afterwards are cut, i.e. closed
+	 * regardless of their state, and metered as failed. This allows a monitor to be replaced by
+	 * another one without losing any connections, provided the new one has taken over the service
+	 * port, and the old one's connections complete within the timeout.
+	 * @param timeout the maximum time to wait, in milliseconds
+	 * @return the number of connections cut
+	 * @throws IllegalArgumentException if the given timeout is negative
+	 * @throws IOException if there is an I/O related problem
+	 */
+	public long drain (final long timeout) throws IllegalArgumentException, IOException {
+		if (timeout < 0) throw new IllegalArgumentException();
+
+		final long deadline = System.currentTimeMillis() + timeout;
+		try {
+			this.host.close();
+			Uninterruptibles.poll(() -> this.metrics.activeConnections() == 0 || System.currentTimeMillis() >= deadline);
+			return this.metrics.activeConnections();
+		} finally {
+			this.close();
+		}
+	}
+
+
+	/**
+	 * Shuts down the given channel for writing, i.e. propagates a half-close towards it's peer,
+	 * while reading remains possible. Channels that neither are TLS channels nor socket channels
+	 * are left unchanged.
+	 * @param channel the channel
+	 * @throws IOException if there is an I/O related problem
+	 */
+	static void shutdownOutput (final ByteChannel channel) throws IOException {
+		if (channel instanceof TcpMonitorTlsChannel) {
+			((TcpMonitorTlsChannel) channel).shutdownOutput();
+		} else if (channel instanceof SocketChannel) {
+			((SocketChannel) channel).shutdownOutput();
+		}
+	}
+
+
+	/**
+	 * Returns the thread model.
+	 * @return the thread model
+	 */
+	public ThreadModel getThreadModel () {
+		return this.threadModel;
+	}
+
+
+	/**
+	 * Returns the connection pool of the first upstream, which allows pooling to be configured and
+	 * monitored. Note that pooling is disabled by default, and that the pools of other upstreams are
+	 * available via {@link #getUpstreams()}.
+	 * @return the connection pool
+	 */
+	public TcpMonitorConnectionPool getConnectionPool () {
+		return this.upstreams[0].getConnectionPool();
+	}
+
+
+	/**
+	 * Returns the upstreams, which allows their connection pools and failure detection to be
+	 * configured, and their metrics to be monitored.
+	 * @return the upstreams, in order of their addresses
+	 */
+	public List<TcpMonitorUpstream> getUpstreams () {
+		return Collections.unmodifiableList(Arrays.asList(this.upstreams));
+	}
+
+
+	/**
+	 * Returns the balancing policy.
+	 * @return the balancing policy
+	 */
+	public BalancingPolicy getBalancingPolicy () {
+		return this.balancingPolicy;
+	}
+
+
+	/**
+	 * Sets the balancing policy. Note that the change affects connections accepted afterwards.
+	 * @param balancingPolicy the balancing policy
+	 * @throws NullPointerException if the given policy is {@code null}
+	 */
+	public void setBalancingPolicy (final BalancingPolicy balancingPolicy) throws NullPointerException {
+		if (balancingPolicy == null) throw new NullPointerException();
+		this.balancingPolicy = balancingPolicy;
+	}
+
+
+	/**
+	 * Returns the upstream the next connection is assigned to, based on the balancing policy.
+	 * Upstreams that are currently ejected are skipped, unless all of them are, in which case
+	 * ejection is ignored in order to keep serving clients.
+	 * @return the upstream chosen
+	 */
+	TcpMonitorUpstream selectUpstream () {
+		final TcpMonitorUpstream[] upstreams = this.upstreams;
+		if (upstreams.length == 1) return upstreams[0];
+
+		final long now = System.currentTimeMillis();
+		final int offset = (this.balancingCount.getAndIncrement() & Integer.MAX_VALUE) % upstreams.length;
+		switch (this.balancingPolicy) {
+			case POWER_OF_TWO_CHOICES: {
+				final int left = ThreadLocalRandom.current().nextInt(upstreams.length);
+				final int right = (left + 1 + ThreadLocalRandom.current().nextInt(upstreams.length - 1)) % upstreams.length;
+				final TcpMonitorUpstream upstream = lessLoaded(upstreams[left], upstreams[right], now);
+				if (upstream.isAvailable(now)) return upstream;
+				break;
+			}
+			case LEAST_CONNECTIONS: {
+				TcpMonitorUpstream upstream = upstreams[offset];
+				for (int index = 1; index < upstreams.length; ++index) {
+					upstream = lessLoaded(upstream, upstreams[(offset + index) % upstreams.length], now);
+				}
+				if (upstream.isAvailable(now)) return upstream;
+				break;
+			}
+			default: {
+				// round robin is the fallback of the other policies as well
+				break;
+			}
+		}
+
+		// a random fallback scan avoids burdening the successors of ejected upstreams
+		final TcpMonitorUpstream preferred = upstreams[offset];
+		if (preferred.isAvailable(now)) return preferred;
+		final int start = ThreadLocalRandom.current().nextInt(upstreams.length);
+		for (int index = 0; index < upstreams.length; ++index) {
+			final TcpMonitorUpstream upstream = upstreams[(start + index) % upstreams.length];
+			if (upstream.isAvailable(now)) return upstream;
+		}
+		return preferred;
+	}
+
+
+	/**
+	 * Returns the less loaded of the given upstreams, preferring available ones over ejected ones,
+	 * and the left one over the right one in case of a tie.
+	 * @param left the left upstream
+	 * @param right the right upstream
+	 * @param timestamp the timestamp, in milliseconds since 1/1/1970
+	 * @return the less loaded upstream
+	 */
+	static private TcpMonitorUpstream lessLoaded (final TcpMonitorUpstream left, final TcpMonitorUpstream right, final long timestamp) {
+		final boolean leftAvailable = left.isAvailable(timestamp), rightAvailable = right.isAvailable(timestamp);
+		if (leftAvailable != rightAvailable) return leftAvailable ? left : right;
+		return right.getActiveConnections() < left.getActiveConnections() ? right : left;
+	}
+
+
+	/**
+	 * Returns the connect timeout, i.e. the maximum time between accepting a client connection and
+	 * establishing the connection to the redirect host.
+	 * @return the connect timeout in milliseconds, or {@code 0} for none
+	 */
+	public long getConnectTimeout () {
+		return this.connectTimeout;
+	}
+
+
+	/**
+	 * Sets the connect timeout, i.e. the maximum time between accepting a client connection and
+	 * establishing the connection to the redirect host, including the client's TLS handshake. Note
+	 * that the change affects connections accepted afterwards.
+	 * @param connectTimeout the connect timeout in milliseconds, or {@code 0} for none
+	 * @throws IllegalArgumentException if the given timeout is negative
+	 */
+	public void setConnectTimeout (final long connectTimeout) throws IllegalArgumentException {
+		if (connectTimeout < 0) throw new IllegalArgumentException();
+		this.connectTimeout = connectTimeout;
+	}
+
+
+	/**
+	 * Returns the idle timeout, i.e. the maximum time a connection may transport no data in either
+	 * direction.
+	 * @return the idle timeout in milliseconds, or {@code 0} for none
+	 */
+	public long getIdleTimeout () {
+		return this.idleTimeout;
+	}
+
+
+	/**
+	 * Sets the idle timeout, i.e. the maximum time a connection may transport no data in either
+	 * direction. Note that the change affects connections accepted afterwards.
+	 * @param idleTimeout the idle timeout in milliseconds, or {@code 0} for none
+	 * @throws IllegalArgumentException if the given timeout is negative
+	 */
+	public void setIdleTimeout (final long idleTimeout) throws IllegalArgumentException {
+		if (idleTimeout < 0) throw new IllegalArgumentException();
+		this.idleTimeout = idleTimeout;
+	}
+
+
+	/**
+	 * Returns the lifetime timeout, i.e. the maximum time a connection may remain open.
+	 * @return the lifetime timeout in milliseconds, or {@code 0} for none
+	 */
+	public long getLifetimeTimeout () {
+		return this.lifetimeTimeout;
+	}
+
+
+	/**
+	 * Sets the lifetime timeout, i.e. the maximum time a connection may remain open, regardless of
+	 * it's activity. Note that the change affects connections accepted afterwards.
+	 * @param lifetimeTimeout the lifetime timeout in milliseconds, or {@code 0} for none
+	 * @throws IllegalArgumentException if the given timeout is negative
+	 */
+	public void setLifetimeTimeout (final long lifetimeTimeout) throws IllegalArgumentException {
+		if (lifetimeTimeout < 0) throw new IllegalArgumentException();
+		this.lifetimeTimeout = lifetimeTimeout;
+	}
+
+
+	/**
+	 * Returns the minimum throughput of connections transporting data.
+	 * @return the minimum throughput in bytes per second, or {@code 0} for none
+	 */
+	public long getMinimumThroughput () {
+		return this.minimumThroughput;
+	}
+
+
+	/**
+	 * Sets the minimum throughput of connections transporting data, which protects against
+	 * slowloris style clients trickling data in order to exhaust the monitor's resources. The
+	 * throughput of both directions combined is measured per throughput window, and connections
+	 * falling below the minimum are cut, unless they haven't transported any data during a window,
+	 * which leaves them to the idle timeout. Note that the change affects connections accepted
+	 * afterwards.
+	 * @param minimumThroughput the minimum throughput in bytes per second, or {@code 0} for none
+	 * @throws IllegalArgumentException if the given throughput is negative
+	 */
+	public void setMinimumThroughput (final long minimumThroughput) throws IllegalArgumentException {
+		if (minimumThroughput < 0) throw new IllegalArgumentException();
+		this.minimumThroughput = minimumThroughput;
+	}
+
+
+	/**
+	 * Returns the throughput window, i.e. the time span the minimum throughput is measured over.
+	 * @return the throughput window in milliseconds
+	 */
+	public long getThroughputWindow () {
+		return this.throughputWindow;
+	}
+
+
+	/**
+	 * Sets the throughput window, i.e. the time span the minimum throughput is measured over. Note
+	 * that the change affects connections accepted afterwards.
+	 * @param throughputWindow the throughput window in milliseconds
+	 * @throws IllegalArgumentException if the given window is not strictly positive
+	 */
+	public void setThroughputWindow (final long throughputWindow) throws IllegalArgumentException {
+		if (throughputWindow <= 0) throw new IllegalArgumentException();
+		this.throughputWindow = throughputWindow;
+	}
+
+
+	/**
+	 * Returns the timer wheel shared by the watchdogs of all connections.
+	 * @return the timer wheel
+	 */
+	TcpMonitorTimerWheel getTimerWheel () {
+		return this.timerWheel;
+	}
+
+
+	/**
+	 * Returns the live metrics of this monitor, which cover all connections accepted since it's
+	 * creation.
+	 * @return the metrics
+	 */
+	public TcpMonitorMetrics getMetrics () {
+		return this.metrics;
+	}
+
+
+	/**
+	 * Returns the record consumer.
+	 * @return the record consumer
+	 */
+	public Consumer<TcpMonitorRecord> getRecordConsumer () {
+		return this.recordConsumer;
+	}
+
+
+	/**
+	 * Returns the exception consumer.
+	 * @return the exception consumer
+	 */
+	public Consumer<Throwable> getExceptionConsumer () {
+		return this.exceptionConsumer;
+	}
+
+
+	/**
+	 * Returns the capture memory limit, i.e. the maximum number of bytes each connection keeps on
+	 * the heap per communication direction. Any traffic beyond this limit is spilled to disk.
+	 * @return the capture memory limit
+	 */
+	public int getCaptureMemoryLimit () {
+		return this.captureMemoryLimit;
+	}
+
+
+	/**
+	 * Sets the capture memory limit, i.e. the maximum number of bytes each connection keeps on the
+	 * heap per communication direction. Note that the change affects connections accepted afterwards.
+	 * @param captureMemoryLimit the capture memory limit
+	 * @throws IllegalArgumentException if the given limit is negative
+	 */
+	public void setCaptureMemoryLimit (final int captureMemoryLimit) throws IllegalArgumentException {
+		if (captureMemoryLimit < 0) throw new IllegalArgumentException();
+		this.captureMemoryLimit = captureMemoryLimit;
+	}
+
+
+	/**
+	 * Returns the capture mode.
+	 * @return the capture mode
+	 */
+	public CaptureMode getCaptureMode () {
+		return this.captureMode;
+	}
+
+
+	/**
+	 * Sets the capture mode. Note that the change affects connections accepted afterwards.
+	 * @param captureMode the capture mode
+	 * @throws NullPointerException if the given capture mode is {@code null}
+	 */
+	public void setCaptureMode (final CaptureMode captureMode) throws NullPointerException {
+		if (captureMode == null) throw new NullPointerException();
+		this.captureMode = captureMode;
+	}
+
+
+	/**
+	 * Returns the capture queue capacity, i.e. the maximum number of chunks of up to 64KiB each
+	 * connection queues for being recorded asynchronously, or zero if connections are recorded
+	 * synchronously by their relay threads.
+	 * @return the capture queue capacity
+	 */
+	public int getCaptureQueueCapacity () {
+		return this.captureQueueCapacity;
+	}
+
+
+	/**
+	 * Sets the capture queue capacity, i.e. the maximum number of chunks of up to 64KiB each
+	 * connection queues for being recorded asynchronously, or zero for connections to be recorded
+	 * synchronously by their relay threads. Queueing keeps slow captures, like those spilling to
+	 * disk, off the relay's critical path. Note that the change affects connections accepted
+	 * afterwards.
+	 * @param captureQueueCapacity the capture queue capacity
+	 * @throws IllegalArgumentException if the given capacity is negative
+	 */
+	public void setCaptureQueueCapacity (final int captureQueueCapacity) throws IllegalArgumentException {
+		if (captureQueueCapacity < 0) throw new IllegalArgumentException();
+		this.captureQueueCapacity = captureQueueCapacity;
+	}
+
+
+	/**
+	 * Returns the policy applied once a connection's capture queue is full.
+	 * @return the capture overflow policy
+	 */
+	public TeeOutputStream.OverflowPolicy getCaptureOverflowPolicy () {
+		return this.captureOverflowPolicy;
+	}
+
+
+	/**
+	 * Sets the policy applied once a connection's capture queue is full. Blocking slows the
+	 * relay down to the capture's pace, which with the selector thread model affects all
+	 * connections sharing an I/O thread. Dropping keeps the relay's pace, at the cost of gaps
+	 * within the records, which are metered as dropped capture bytes. Connections framed as HTTP
+	 * messages always block, as gaps would break their framing. Note that the change affects
+	 * connections accepted afterwards.
+	 * @param captureOverflowPolicy the capture overflow policy
+	 * @throws NullPointerException if the given policy is {@code null}
+	 */
+	public void setCaptureOverflowPolicy (final TeeOutputStream.OverflowPolicy captureOverflowPolicy) throws NullPointerException {
+		if (captureOverflowPolicy == null) throw new NullPointerException();
+		this.captureOverflowPolicy = captureOverflowPolicy;
+	}
+
+
+	/**
+	 * Returns the capture rules.
+	 * @return the capture rules, in order of precedence
+	 */
+	public List<TcpMonitorRule> getCaptureRules () {
+		return Collections.unmodifiableList(Arrays.asList(this.captureRules));
+	}
+
+
+	/**
+	 * Sets the capture rules. If there are none, all connections are recorded. Otherwise, the
+	 * first rule selecting a connection determines it's capture limit, while connections that
+	 * aren't selected by any rule are relayed without being recorded, and without buffering any
+	 * of their data. The capture limits apply in addition to the capture mode. Note that the
+	 * change affects connections accepted afterwards.
+	 * @param captureRules the capture rules, in order of precedence
+	 * @throws NullPointerException if the given list, or any of it's elements, is {@code null}
+	 */
+	public void setCaptureRules (final List<TcpMonitorRule> captureRules) throws NullPointerException {
+		final TcpMonitorRule[] rules = captureRules.toArray(new TcpMonitorRule[captureRules.size()]);
+		for (final TcpMonitorRule rule : rules) {
+			if (rule == null) throw new NullPointerException();
+		}
+		this.captureRules = rules;
+	}
+
+
+	/**
+	 * Returns the capture rules without copying them, which must not be modified.
+	 * @return the capture rules, in order of precedence
+	 */
+	TcpMonitorRule[] getCompiledCaptureRules () {
+		return this.captureRules;
+	}
+
+
+	/**
+	 * Returns whether or not the {@code Host} headers of HTTP requests are rewritten to match the
+	 * redirect host address.
+	 * @return the host rewriting state
+	 */
+	public boolean isHostRewriting () {
+		return this.hostRewriting;
+	}
+
+
+	/**
+	 * Sets whether or not the {@code Host} headers of HTTP requests are rewritten to match the
+	 * redirect host address, which is required by most HTTP 1.1+ servers hosting multiple sites.
+	 * Note that the change affects connections accepted afterwards.
+	 * @param hostRewriting the host rewriting state
+	 */
+	public void setHostRewriting (final boolean hostRewriting) {
+		this.hostRewriting = hostRewriting;
+	}
+
+
+	/**
+	 * Returns whether or not records are published per HTTP request/response exchange, instead of
+	 * per connection.
+	 * @return the HTTP framing state
+	 */
+	public boolean isHttpFraming () {
+		return this.httpFraming;
+	}
+
+
+	/**
+	 * Sets whether or not records are published per HTTP request/response exchange, instead of per
+	 * connection. Framing follows {@code Content-Length} and chunked message boundaries, which
+	 * causes the records of keep-alive connections to be published as soon as each exchange is
+	 * complete, and to be timed per exchange. Note that the capture mode and memory limit apply to
+	 * each exchange separately, and that the change affects connections accepted afterwards.
+	 * @param httpFraming the HTTP framing state
+	 */
+	public void setHttpFraming (final boolean httpFraming) {
+		this.httpFraming = httpFraming;
+	}
+
+
+	/**
+	 * Returns the TLS termination context.
+	 * @return the context used to terminate TLS on client connections, or {@code null} if client
+	 *         connections are relayed as they are
+	 */
+	public SSLContext getTlsTermination () {
+		return this.tlsTermination;
+	}
+
+
+	/**
+	 * Sets the TLS termination context. If set, the monitor acts as the TLS server towards it's
+	 * clients, using the context's server certificate, and relays and records their traffic in
+	 * plaintext. Note that the change affects connections accepted afterwards.
+	 * @param tlsTermination the context used to terminate TLS on client connections, or
+	 *        {@code null} for none
+	 */
+	public void setTlsTermination (final SSLContext tlsTermination) {
+		this.tlsTermination = tlsTermination;
+	}
+
+
+	/**
+	 * Returns the TLS origination context.
+	 * @return the context used to originate TLS towards the redirect host, or {@code null} if
+	 *         data is relayed to the redirect host as it is
+	 */
+	public SSLContext getTlsOrigination () {
+		return this.tlsOrigination;
+	}
+
+
+	/**
+	 * Sets the TLS origination context. If set, the monitor acts as a TLS client towards the
+	 * redirect host, verifying the latter's certificate against the context's trusted certificates;
+	 * {@link SSLContext#getDefault()} is usually appropriate. Sessions are cached by the context per
+	 * redirect host address, which allows subsequent connections to resume them using abbreviated
+	 * handshakes. Combined with TLS termination, this allows HTTPS traffic to be monitored in
+	 * plaintext. Note that the change affects connections accepted afterwards.
+	 * @param tlsOrigination the context used to originate TLS towards the redirect host, or
+	 *        {@code null} for none
+	 */
+	public void setTlsOrigination (final SSLContext tlsOrigination) {
+		this.tlsOrigination = tlsOrigination;
+	}
+
+
+	/**
+	 * Returns whether or not the monitor terminates or originates TLS.
+	 * @return the TLS state
+	 */
+	boolean isTls () {
+		return this.tlsTermination != null | this.tlsOrigination != null;
+	}
+
+
+	/**
+	 * Returns a channel for the given client connection, terminating TLS if a TLS termination
+	 * context is set. Note that the connection must be in blocking mode, as the TLS handshake is
+	 * performed before this method returns.
+	 * @param clientConnection the client connection
+	 * @param meter the connection meter
+	 * @return the client channel, or the given connection if there is no need for TLS termination
+	 * @throws IOException if there is an I/O related problem, or the TLS handshake fails
+	 */
+	ByteChannel newClientChannel (final SocketChannel clientConnection, final TcpMonitorMetrics.ConnectionMeter meter) throws IOException {
+		final SSLContext context = this.tlsTermination;
+		if (context == null) return clientConnection;
+
+		final TcpMonitorTlsChannel channel = TcpMonitorTlsChannel.newServerChannel(clientConnection, context);
+		channel.handshake(meter);
+		return channel;
+	}
+
+
+	/**
+	 * Returns a channel for the given server connection, originating TLS if a TLS origination
+	 * context is set. Note that the connection must be in blocking mode, as the TLS handshake is
+	 * performed before this method returns.
+	 * @param serverConnection the server connection
+	 * @param upstreamAddress the address of the upstream connected to
+	 * @param meter the connection meter
+	 * @return the server channel, or the given connection if there is no need for TLS origination
+	 * @throws IOException if there is an I/O related problem, or the TLS handshake fails
+	 */
+	ByteChannel newServerChannel (final SocketChannel serverConnection, final InetSocketAddress upstreamAddress, final TcpMonitorMetrics.ConnectionMeter meter) throws IOException {
+		final SSLContext context = this.tlsOrigination;
+		if (context == null) return serverConnection;
+
+		final TcpMonitorTlsChannel channel = TcpMonitorTlsChannel.newClientChannel(serverConnection, context, upstreamAddress);
+		channel.handshake(meter);
+		return channel;
+	}
+
+
+	/**
+	 * Returns a channel for the client to server direction that writes into the given byte sink,
+	 * rewriting HTTP {@code Host} headers on the way if host rewriting is enabled. The port is
+	 * omitted from rewritten headers if it is the default port of the upstream's scheme, i.e. 443
+	 * with TLS origination, and 80 otherwise. Rewriting channels are {@link Flushable}, and must be
+	 * flushed once the client has ended it's stream, as they may withhold an incomplete line.
+	 * @param byteSink the byte sink
+	 * @param upstreamAddress the address of the upstream the byte sink is connected to
+	 * @return the request channel, or the given byte sink if there is no need for rewriting
+	 */
+	WritableByteChannel newRequestChannel (final WritableByteChannel byteSink, final InetSocketAddress upstreamAddress) {
+		return this.hostRewriting ? new HostRewriter(byteSink, upstreamAddress, this.tlsOrigination == null ? 80 : 443) : byteSink;
+	}
+
+
+	/**
+	 * Returns a new capture queue for a single connection, based on the current capture queue
+	 * capacity and capture overflow policy. Bytes dropped are registered with the given meter.
+	 * Connections whose data isn't captured at all, either because the capture mode is
+	 * {@link CaptureMode#NONE} or because no capture rule selects them, are passed to their
+	 * recorder synchronously, as queuing would copy their data for nothing. Connections framed
+	 * as HTTP messages always block once their queue is full, as the framing of the recorder
+	 * cannot recover from gaps within the data.
+	 * @param recorder the connection recorder
+	 * @param meter the connection meter
+	 * @return the capture queue created, or {@code null} if the connection is recorded
+	 *         synchronously
+	 */
+	TeeOutputStream.Ring newCaptureQueue (final TcpMonitorRecorder recorder, final TcpMonitorMetrics.ConnectionMeter meter) {
+		final int capacity = this.captureQueueCapacity;
+		if (capacity == 0 | this.captureMode == CaptureMode.NONE || recorder.isDiscarding()) return null;
+
+		final TeeOutputStream.OverflowPolicy overflowPolicy = recorder.isHttpFraming() ? TeeOutputStream.OverflowPolicy.BLOCK : this.captureOverflowPolicy;
+		return new TeeOutputStream.Ring(capacity, overflowPolicy, meter::captureDropped);
+	}
+
+
+	/**
+	 * Runs the given recorder action once all data queued before has been recorded.
+	 * @param captureQueue the capture queue, or {@code null} to run the action immediately
+	 * @param action the action
+	 */
+	static void runQueued (final TeeOutputStream.Ring captureQueue, final Runnable action) {
+		if (captureQueue == null) {
+			action.run();
+		} else {
+			captureQueue.execute(action);
+		}
+	}
+
+
+	/**
+	 * Returns a new capture for a single communication direction, based on the current capture mode
+	 * and capture memory limit.
+	 * @param captureLimit the maximum number of bytes captured
+	 * @return the capture created
+	 */
+	TcpMonitorCapture newCapture (final long captureLimit) {
+		switch (this.captureMode) {
+			case FULL:
+				return new TcpMonitorCapture(this.captureMemoryLimit, captureLimit, false);
+			case HEADER:
+				return new TcpMonitorCapture(this.captureMemoryLimit, Math.min(HEADER_CAPTURE_LIMIT, captureLimit), true);
+			default:
+				return new TcpMonitorCapture(0, 0, false);
+		}
+	}
+
+
+	/**
+	 * Returns the redirect host address, which is the address of the first upstream.
 	 * @return the redirect host address
 	 */
 	public InetSocketAddress getRedirectHostAddress () {
-		return redirectHostAddress;
+		return this.upstreams[0].getAddress();
 	}
 
 
@@ -98,15 +987,62 @@ public class TcpMonitorServer implements Runnable, AutoCloseable {
 
 
 	/**
-	 * Periodically blocks until a request arrives, handles the latter subsequently.
+	 * Periodically blocks until a request arrives, handles the latter subsequently. In the
+	 * virtual thread model, the connections are accepted by a virtual thread as well, while the
+	 * calling thread waits for the latter to complete.
 	 */
 	public void run () {
+		if (this.threadModel != ThreadModel.VIRTUAL) {
+			this.accept();
+			return;
+		}
+
+		final Future<?> acceptor;
+		try {
+			acceptor = this.threadPool.submit(this::accept);
+		} catch (final RejectedExecutionException exception) {
+			return;
+		}
+
+		try {
+			acceptor.get();
+		} catch (final InterruptedException exception) {
+			acceptor.cancel(true);
+			Thread.currentThread().interrupt();
+		} catch (final CancellationException exception) {
+			// closing the monitor cancels the acceptor
+		} catch (final ExecutionException exception) {
+			Logger.getGlobal().log(Level.WARNING, exception.getCause().getMessage(), exception.getCause());
+		}
+	}
+
+
+	/**
+	 * Periodically blocks until a request arrives, handles the latter subsequently, until the
+	 * service socket is closed.
+	 */
+	private void accept () {
 		while (true) {
 			Socket clientConnection = null;
 			try {
 				clientConnection = this.host.accept();
-				this.threadPool.execute(new ConnectionHandler(this, clientConnection));
-			} catch (final SocketException exception) {
+				final SocketChannel clientChannel = clientConnection.getChannel();
+				if (this.relay == null) {
+					this.threadPool.execute(new ConnectionHandler(this, clientChannel));
+				} else if (!this.isTls()) {
+					this.relay.register(clientChannel);
+				} else {
+					// TLS handshakes block, and are therefore performed before relaying is taken over
+					this.threadPool.execute(() -> {
+						try {
+							this.relay.register(clientChannel);
+						} catch (final Throwable exception) {
+							try { clientChannel.close(); } catch (final IOException nestedException) {}
+							this.exceptionConsumer.accept(exception);
+						}
+					});
+				}
+			} catch (final SocketException | ClosedChannelException exception) {
 				break;
 			} catch (final Throwable exception) {
 				try {
@@ -127,7 +1063,7 @@ public class TcpMonitorServer implements Runnable, AutoCloseable {
 	 */
 	static private class ConnectionHandler implements Runnable {
 		private final TcpMonitorServer parent;
-		private final Socket clientConnection;
+		private final SocketChannel clientConnection;
 
 
 		/**
@@ -136,7 +1072,7 @@ public class TcpMonitorServer implements Runnable, AutoCloseable {
 		 * @param clientConnection the connection
 		 * @throws NullPointerException if any of the given arguments is {@code null}
 		 */
-		public ConnectionHandler (final TcpMonitorServer parent, final Socket clientConnection) {
+		public ConnectionHandler (final TcpMonitorServer parent, final SocketChannel clientConnection) {
 			if (parent == null | clientConnection == null) throw new NullPointerException();
 
 			this.parent = parent;
@@ -146,103 +1082,296 @@ public class TcpMonitorServer implements Runnable, AutoCloseable {
 
 		/**
 		 * Handles the client connection by transporting all data to a new server connection, and
-		 * vice versa. Closes all connections upon completion.
+		 * vice versa, terminating and originating TLS as configured. Closes all connections upon
+		 * completion, or once one of the connection's timeouts expires.
 		 */
+		@SuppressWarnings("try")
 		public void run () {
-			final String serverName = this.parent.redirectHostAddress.getHostName();
-			final int serverPort = this.parent.redirectHostAddress.getPort();
-//			final boolean transportLayerSecurity = serverPort == 22 | serverPort == 443;
-
-//			TLS_SOCKET_FACTORY.createSocket(serverName, serverPort)
-			try (Socket clientConnection = this.clientConnection) {
-				try (Socket serverConnection = new Socket(serverName, serverPort)) {
-					InputStream clientIn = clientConnection.getInputStream();
-					OutputStream clientOut = clientConnection.getOutputStream();
-					InputStream serverIn = serverConnection.getInputStream();
-					OutputStream serverOut = serverConnection.getOutputStream();
-					ByteArrayOutputStream clientOut2 = new ByteArrayOutputStream();
-					ByteArrayOutputStream serverOut2 = new ByteArrayOutputStream();
-					
-					final RunnableFuture<?>[] futures = new RunnableFuture[2];
-					
-					final Callable<?> clientInToServerOut = () -> {
-						OutputStream out = de.htw.tool.IOStreams.newMultiOutputStream(serverOut, serverOut2);
-						de.htw.tool.IOStreams.copy(clientIn, out, MAX_PACKET_SIZE);
-						return null;
-					};
-					final Callable<?> serverInToClientOut = () -> {
-						OutputStream out = de.htw.tool.IOStreams.newMultiOutputStream(clientOut, clientOut2);
-						de.htw.tool.IOStreams.copy(serverIn, out, MAX_PACKET_SIZE);
-						return null;						
-					};
-					
-					final long begin = System.currentTimeMillis();
-					futures[0] = new FutureTask<>(clientInToServerOut);
-					futures[1] = new FutureTask<>(serverInToClientOut);
-					for (int i = 0; i < futures.length; i++) {
-						new Thread(futures[i]).start();
-					}
-					
-					try {
-						for (final Future<?> future: futures) {
-							try {
-								future.get();		
-								clientOut2.close();
-								serverOut2.close();
-							} catch (final ExecutionException exception) {
-								final Throwable cause = exception.getCause();	// manual precise rethrow for cause!
-								if (cause instanceof Error) throw (Error) cause;
-								if (cause instanceof RuntimeException) throw (RuntimeException) cause;
-								if (cause instanceof ExampleCheckedException) throw (ExampleCheckedException) cause;
-								throw new AssertionError();
-							}
+			final TcpMonitorMetrics.ConnectionMeter meter = this.parent.metrics.openConnection();
+			final TcpMonitorWatchdog watchdog = new TcpMonitorWatchdog(this.parent, meter, this.clientConnection.socket().getInetAddress());
+			watchdog.setCutter(() -> {
+				try { this.clientConnection.close(); } catch (final IOException exception) {}
+			});
+
+			try (ByteChannel clientChannel = this.parent.newClientChannel(this.clientConnection, meter)) {
+				final TcpMonitorUpstream upstream = this.parent.selectUpstream();
+				meter.assign(upstream);
+				final TcpMonitorConnectionPool connectionPool = upstream.getConnectionPool();
+				final SocketChannel pooledConnection = connectionPool.poll();
+				try (SocketChannel serverConnection = pooledConnection == null ? SocketChannel.open() : pooledConnection) {
+					// new server connections are connected after setting the cutter, which allows
+					// timeouts to abort blocking connects
+					watchdog.setCutter(() -> {
+						try { this.clientConnection.close(); } catch (final IOException exception) {}
+						try { serverConnection.close(); } catch (final IOException exception) {}
+					});
+					if (!serverConnection.isConnected()) serverConnection.connect(connectionPool.getResolvedAddress());
+					meter.connected();
+					try (ByteChannel serverChannel = this.parent.newServerChannel(serverConnection, upstream.getAddress(), meter)) {
+						// the recorder is closed once it has been passed all data queued
+						final TcpMonitorRecorder recorder = new TcpMonitorRecorder(this.parent, this.clientConnection.socket().getInetAddress(), upstream.getAddress());
+						final TeeOutputStream.Ring captureQueue = this.parent.newCaptureQueue(recorder, meter);
+						try {
+							this.relay(clientChannel, serverChannel, upstream, recorder, captureQueue, meter);
+						} finally {
+							runQueued(captureQueue, recorder::close);
 						}
-					} finally {
-						for (final Future<?> future : futures)
-							future.cancel(true);
 					}
-					
-					final long end = System.currentTimeMillis();
-					final TcpMonitorRecord record = new TcpMonitorRecord(begin, end, clientOut2.toByteArray(), serverOut2.toByteArray());
-					this.parent.recordConsumer.accept(record);
-					
-					// TODO: Transport all content from the client connection's input stream into
-					// both the server connection's output stream and a byte output stream. In
-					// parallel, transport all content from the server connection's input stream
-					// into both the client connection's output stream and another byte output stream.
-					// Note that the existing utility class de.htw.tool.IOStreams offers a highly
-					// elegant (and compact) solution, especially in conjunction with Java 8 Lambda-Operators.
-	
-					// Start two transporter threads, and resynchronize them before closing all
-					// resources. If all goes well, use "ByteArrayOutputStream#toByteArray()" to get
-					// the respective request and response data; use it to create a TcpMonitorRecord,
-					// and flush it using "this.parent.recordConsumer.accept()". If anything goes
-					// wrong, use "this.parent.exceptionConsumer.accept()" instead.
-	
-					// Note that you'll need 2 transporters in 1-2 separate threads to complete this
-					// task, as you cannot foresee if the client or the server closes the connection,
-					// or if the protocol communicated involves handshakes. Either case implies you'd
-					// end up reading "too much" if you try to transport both communication directions
-					// within a single thread, creating a deadlock scenario. The easiest solution probably
-					// involves the ConnectionHandler's executor service (see Method submit()), and
-					// resynchronization using the futures returned by said method.
-
-					// Be aware that HTTP 1.1+ requires the "Host" header value to be replaced by the
-					// redirect hostname - see de.htw.tool.ByteArrays.indexOf() for support. Also, HTTP
-					// usually implies delayed closing of connections after transmission due to connection
-					// caching. Finally, transport layer security (TLS, like in HTTPS or SFTP) requires the
-					// resynchronizing Future.get() methods to specify a timeout (for example 10s), and
-					// catching of the resulting TimeoutException, apart from the usual ExecutionException,
-					// in order to proceed normally.
-
-					// Note that closing one socket stream closes the underlying socket connection (and
-					// therefore also the second socket stream) as well. Also note that a socket stream's
-					// read() method will throw a SocketException when interrupted while blocking, which is
-					// "normal" behavior and should be handled as if the read() Method returned -1!
 				}
+
+				// connections cut by closing the monitor, or by timeouts, end as if reaching EOF
+				meter.close(Thread.currentThread().isInterrupted() | watchdog.isExpired());
 			} catch (final Throwable exception) {
-				this.parent.exceptionConsumer.accept(exception);
+				try { this.clientConnection.close(); } catch (final IOException nestedException) {}
+				meter.close(true);
+
+				// connections cut by timeouts have been reported already
+				if (!watchdog.isExpired()) this.parent.exceptionConsumer.accept(exception);
+			} finally {
+				watchdog.cancel();
+			}
+		}
+
+
+		/**
+		 * Transports all data from the given client connection to the given server connection, and
+		 * vice versa, while passing it to the given recorder and meter. Once a direction reaches end
+		 * of stream, it's target connection is shut down for writing, which propagates half-closes
+		 * like those of request/response protocols. Flushes the recorder once both directions are
+		 * complete. Note that each direction reuses a single pooled buffer for all it's transfers,
+		 * and that data is recorded, or queued for being recorded, before it is forwarded; as both
+		 * directions share the capture queue, requests are always recorded before their responses.
+		 * @param clientConnection the client connection
+		 * @param serverConnection the server connection
+		 * @param upstream the upstream the server connection belongs to
+		 * @param recorder the recorder
+		 * @param captureQueue the capture queue, or {@code null} to record synchronously
+		 * @param meter the connection meter
+		 * @throws IOException if there is an I/O related problem
+		 */
+		private void relay (final ByteChannel clientConnection, final ByteChannel serverConnection, final TcpMonitorUpstream upstream, final TcpMonitorRecorder recorder, final TeeOutputStream.Ring captureQueue, final TcpMonitorMetrics.ConnectionMeter meter) throws IOException {
+			final Callable<?> clientInToServerOut = () -> {
+				final WritableByteChannel serverOut = this.parent.newRequestChannel(serverConnection, upstream.getAddress());
+				final WritableByteChannel out = meter.newChannel(true, captureQueue == null ? IOStreams.newMultiChannel(recorder.getRequestChannel(), serverOut) : new TeeOutputStream(serverOut, recorder.getRequestChannel(), captureQueue));
+				final ByteBuffer buffer = BufferPool.getDefault().acquireBuffer(MAX_PACKET_SIZE, serverOut == serverConnection);
+				try {
+					final long bytesCopied = IOStreams.copy(clientConnection, out, buffer);
+					if (serverOut instanceof Flushable) ((Flushable) serverOut).flush();
+					halfClose(serverConnection);
+					return bytesCopied;
+				} finally {
+					BufferPool.getDefault().release(buffer);
+				}
+			};
+			final Callable<?> serverInToClientOut = () -> {
+				final WritableByteChannel out = meter.newChannel(false, captureQueue == null ? IOStreams.newMultiChannel(recorder.getResponseChannel(), clientConnection) : new TeeOutputStream(clientConnection, recorder.getResponseChannel(), captureQueue));
+				final ByteBuffer buffer = BufferPool.getDefault().acquireBuffer(MAX_PACKET_SIZE, true);
+				try {
+					final long bytesCopied = IOStreams.copy(serverConnection, out, buffer);
+					halfClose(clientConnection);
+					return bytesCopied;
+				} finally {
+					BufferPool.getDefault().release(buffer);
+				}
+			};
+
+			final RunnableFuture<?>[] futures = { new FutureTask<>(clientInToServerOut), new FutureTask<>(serverInToClientOut) };
+			for (final RunnableFuture<?> future : futures) {
+				this.parent.threadPool.execute(future);
+			}
+
+			try {
+				for (final Future<?> future : futures) {
+					try {
+						Uninterruptibles.get(future);
+					} catch (final ExecutionException exception) {
+						final Throwable cause = exception.getCause();	// manual precise rethrow for cause!
+						if (cause instanceof Error) throw (Error) cause;
+						if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+						if (cause instanceof IOException) throw (IOException) cause;
+						throw new AssertionError();
+					}
+				}
+			} finally {
+				for (final Future<?> future : futures)
+					future.cancel(true);
+			}
+
+			runQueued(captureQueue, recorder::flush);
+
+			// Note that closing one socket stream closes the underlying socket connection (and
+			// therefore also the second socket stream) as well. Also note that a socket stream's
+			// read() method will throw a SocketException when interrupted while blocking, which is
+			// "normal" behavior and should be handled as if the read() Method returned -1!
+		}
+
+
+		/**
+		 * Shuts down the given channel for writing, ignoring I/O problems.
+		 * @param channel the channel
+		 */
+		static private void halfClose (final ByteChannel channel) {
+			try {
+				shutdownOutput(channel);
+			} catch (final IOException exception) {
+				// do nothing because the peer may already be gone
+			}
+		}
+	}
+
+
+
+	/**
+	 * Instances of this inner class rewrite the {@code Host} headers of a stream of HTTP requests
+	 * to match a redirect host address, while passing everything else unchanged to a byte sink.
+	 * Rewriting is streaming, i.e. requests are never buffered as a whole; header lines split
+	 * across multiple writes, and multiple pipelined requests are supported. The header lines
+	 * framed within a single write are collected and passed on with a single write, which avoids
+	 * sending tiny segments per header line. Note that written buffers without an accessible array
+	 * are copied into a scratch array.
+	 */
+	static private class HostRewriter implements WritableByteChannel, Flushable, HttpMessageFramer.Listener {
+		private final WritableByteChannel byteSink;
+		private final HttpMessageFramer framer;
+		private final byte[] hostValue;
+		private byte[] scratch;
+		private byte[] headerBuffer;
+		private int headerLength;
+
+
+		/**
+		 * Creates a new instance.
+		 * @param byteSink the byte sink
+		 * @param redirectHostAddress the redirect host address
+		 * @param defaultPort the default port of the redirect host's scheme, which is omitted from
+		 *        rewritten headers
+		 * @throws NullPointerException if any of the given arguments is {@code null}
+		 */
+		public HostRewriter (final WritableByteChannel byteSink, final InetSocketAddress redirectHostAddress, final int defaultPort) throws NullPointerException {
+			if (byteSink == null) throw new NullPointerException();
+
+			final String hostName = redirectHostAddress.getHostString();
+			final int hostPort = redirectHostAddress.getPort();
+			this.byteSink = byteSink;
+			this.framer = new HttpMessageFramer(this);
+			this.hostValue = (hostPort == defaultPort ? hostName : hostName + ":" + hostPort).getBytes(StandardCharsets.US_ASCII);
+			this.scratch = new byte[0];
+			this.headerBuffer = new byte[0x400];
+		}
+
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public boolean isOpen () {
+			return this.byteSink.isOpen();
+		}
+
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public void close () throws IOException {
+			try {
+				this.flush();
+			} finally {
+				this.byteSink.close();
+			}
+		}
+
+
+		/**
+		 * Writes any data withheld to the byte sink, including an incomplete line, and relays the
+		 * remaining stream unchanged. This is expected to be called once the stream has ended.
+		 * @throws IOException if there is an I/O related problem
+		 */
+		public void flush () throws IOException {
+			this.framer.finish();
+			this.flushHeaders();
+		}
+
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public int write (final ByteBuffer buffer) throws IOException {
+			final int bytesWritten = buffer.remaining();
+			if (buffer.hasArray()) {
+				this.framer.parse(buffer.array(), buffer.arrayOffset() + buffer.position(), bytesWritten);
+				buffer.position(buffer.limit());
+			} else {
+				if (this.scratch.length < bytesWritten) this.scratch = new byte[bytesWritten];
+				buffer.get(this.scratch, 0, bytesWritten);
+				this.framer.parse(this.scratch, 0, bytesWritten);
+			}
+			this.flushHeaders();
+			return bytesWritten;
+		}
+
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public void segment (final byte[] buffer, final int offset, final int length, final boolean headerLine) throws IOException {
+			if (!headerLine) {
+				this.flushHeaders();
+				this.writeFully(ByteBuffer.wrap(buffer, offset, length));
+			} else if (HttpMessageFramer.startsWithIgnoreCase(buffer, offset, length, HTTP_HOST_NAME)) {
+				// the name is matched regardless of the whitespace preceding the value
+				final boolean crlf = length > 1 && buffer[offset + length - 2] == '\r';
+				this.appendHeader(HTTP_HOST_START, 0, HTTP_HOST_START.length);
+				this.appendHeader(this.hostValue, 0, this.hostValue.length);
+				if (crlf) this.appendHeader(buffer, offset + length - 2, 1);
+				this.appendHeader(HTTP_HOST_STOP, 0, HTTP_HOST_STOP.length);
+			} else {
+				this.appendHeader(buffer, offset, length);
+			}
+		}
+
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public void messageComplete () {}
+
+
+		/**
+		 * Appends the given header bytes to the header buffer, growing the latter if necessary.
+		 * @param buffer the buffer
+		 * @param offset the offset
+		 * @param length the length
+		 */
+		private void appendHeader (final byte[] buffer, final int offset, final int length) {
+			if (this.headerLength + length > this.headerBuffer.length) {
+				this.headerBuffer = Arrays.copyOf(this.headerBuffer, Math.max(this.headerLength + length, 2 * this.headerBuffer.length));
+			}
+			System.arraycopy(buffer, offset, this.headerBuffer, this.headerLength, length);
+			this.headerLength += length;
+		}
+
+
+		/**
+		 * Writes the header lines collected so far to the byte sink, using a single write.
+		 * @throws IOException if there is an I/O related problem
+		 */
+		private void flushHeaders () throws IOException {
+			if (this.headerLength == 0) return;
+
+			final int headerLength = this.headerLength;
+			this.headerLength = 0;
+			this.writeFully(ByteBuffer.wrap(this.headerBuffer, 0, headerLength));
+		}
+
+
+		/**
+		 * Writes the given buffer's content completely to the byte sink.
+		 * @param buffer the buffer
+		 * @throws IOException if there is an I/O related problem
+		 */
+		private void writeFully (final ByteBuffer buffer) throws IOException {
+			while (buffer.hasRemaining()) {
+				this.byteSink.write(buffer);
 			}
 		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,66 @@
+package de.htw.ds.tcp;
+
+import java.net.SocketTimeoutException;
+import de.htw.tool.Copyright;
+
+
+/**
+ * This exception indicates a relayed connection having been cut by a TCP monitor because one of
+ * it's timeouts expired.
+ */
+@Copyright(year=2017, holders="Sascha Baumeister")
+public class TcpMonitorTimeoutException extends SocketTimeoutException {
+	static private final long serialVersionUID = 1L;
+
+	/**
+	 * The reasons for connections to time out.
+	 */
+	static public enum Reason {
+
+		/**
+		 * The connection to the redirect host hasn't been established in time.
+		 */
+		CONNECT,
+
+		/**
+		 * No data has been transported in either direction for too long.
+		 */
+		IDLE,
+
+		/**
+		 * The connection has been open for too long, regardless of it's activity.
+		 */
+		LIFETIME,
+
+		/**
+		 * The data transported has fallen below the minimum throughput, as caused by slowloris
+		 * style clients, or stalling upstreams.
+		 */
+		THROUGHPUT
+	}
+
+	private final Reason reason;
+
+
+	/**
+	 * Creates a new instance with the specified reason and detail message.
+	 * @param reason the reason
+	 * @param message the message
+	 * @throws NullPointerException if the given reason is {@code null}
+	 */
+	public TcpMonitorTimeoutException (final Reason reason, final String message) throws NullPointerException {
+		super(message);
+		if (reason == null) throw new NullPointerException();
+
+		this.reason = reason;
+	}
+
+
+	/**
+	 * Returns the reason for the connection to time out.
+	 * @return the reason
+	 */
+	public Reason getReason () {
+		return this.reason;
+	}
+}
@@ -0,0 +1,158 @@
+package de.htw.ds.tcp;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import de.htw.tool.Copyright;
+
+
+/**
+ * Instances of this class model hashed timer wheels, which allow large numbers of timeouts to be
+ * scheduled and cancelled in constant time, at the cost of a limited resolution. A single
+ * background thread advances the wheel once per tick, and runs the tasks of the timeouts that
+ * expired since. This allows all the connections of a TCP monitor to be supervised without each of
+ * them requiring a timer of it's own. Note that timeouts are passed to the background thread via
+ * a lock-free queue, which keeps the wheel's buckets confined to the latter, and that tasks are run
+ * by the latter as well, and should therefore be short.
+ */
+@Copyright(year=2017, holders="Sascha Baumeister")
+class TcpMonitorTimerWheel implements AutoCloseable {
+	static private final long DEFAULT_TICK_DURATION = 100;
+	static private final int DEFAULT_BUCKET_COUNT = 512;
+
+	private final long tickDuration;
+	private final Queue<Timeout>[] buckets;
+	private final Queue<Timeout> registrations;
+	private final Thread thread;
+	private final long startTime;
+	private volatile boolean closed;
+
+
+	/**
+	 * Creates a new instance with a tick duration of 100ms, and 512 buckets, and starts it's
+	 * background thread.
+	 */
+	public TcpMonitorTimerWheel () {
+		this(DEFAULT_TICK_DURATION, DEFAULT_BUCKET_COUNT);
+	}
+
+
+	/**
+	 * Creates a new instance, and starts it's background thread.
+	 * @param tickDuration the tick duration in milliseconds, i.e. the resolution of the timeouts
+	 * @param bucketCount the number of buckets, with timeouts exceeding the product of bucket count
+	 *        and tick duration requiring multiple rounds
+	 * @throws IllegalArgumentException if any of the given arguments is not strictly positive
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public TcpMonitorTimerWheel (final long tickDuration, final int bucketCount) throws IllegalArgumentException {
+		if (tickDuration <= 0 | bucketCount <= 0) throw new IllegalArgumentException();
+
+		this.tickDuration = tickDuration;
+		this.buckets = new Queue[bucketCount];
+		for (int index = 0; index < bucketCount; ++index) {
+			this.buckets[index] = new ArrayDeque<>();
+		}
+		this.registrations = new ConcurrentLinkedQueue<>();
+		this.startTime = System.nanoTime();
+		this.thread = new Thread(this::advance, "tcp-timer");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+
+	/**
+	 * Stops the background thread, which discards all timeouts pending.
+	 */
+	public void close () {
+		this.closed = true;
+		this.thread.interrupt();
+	}
+
+
+	/**
+	 * Schedules the given task to be run once the given delay has passed, give or take a tick.
+	 * Timeouts scheduled after this wheel has been closed never expire.
+	 * @param task the task
+	 * @param delay the delay in milliseconds
+	 * @return the timeout, which allows the task to be cancelled
+	 * @throws NullPointerException if the given task is {@code null}
+	 */
+	public Timeout schedule (final Runnable task, final long delay) throws NullPointerException {
+		if (task == null) throw new NullPointerException();
+
+		final long deadline = System.nanoTime() - this.startTime + Math.max(0, delay) * 1000000;
+		final Timeout timeout = new Timeout(task, (deadline + this.tickDuration * 1000000 - 1) / (this.tickDuration * 1000000));
+		if (!this.closed) this.registrations.add(timeout);
+		return timeout;
+	}
+
+
+	/**
+	 * Periodically sleeps until the next tick, distributes the timeouts scheduled since the
+	 * previous one across the buckets, and runs the tasks of those that expired.
+	 */
+	private void advance () {
+		try {
+			for (long tick = 1; !this.closed; ++tick) {
+				final long delay = this.startTime + tick * this.tickDuration * 1000000 - System.nanoTime();
+				if (delay > 0) Thread.sleep(delay / 1000000, (int) (delay % 1000000));
+
+				for (Timeout timeout = this.registrations.poll(); timeout != null; timeout = this.registrations.poll()) {
+					// timeouts that are already due are run with the current tick
+					this.buckets[(int) (Math.max(timeout.tick, tick) % this.buckets.length)].add(timeout);
+				}
+
+				final Queue<Timeout> bucket = this.buckets[(int) (tick % this.buckets.length)];
+				for (int count = bucket.size(); count > 0; --count) {
+					final Timeout timeout = bucket.remove();
+					if (timeout.cancelled) continue;
+
+					if (timeout.tick > tick) {
+						bucket.add(timeout);
+					} else try {
+						timeout.task.run();
+					} catch (final Throwable exception) {
+						Logger.getGlobal().log(Level.WARNING, exception.getMessage(), exception);
+					}
+				}
+			}
+		} catch (final InterruptedException exception) {
+			// do nothing because the wheel has been closed
+		}
+	}
+
+
+
+	/**
+	 * Instances of this static inner class model timeouts scheduled with a timer wheel.
+	 */
+	static public class Timeout {
+		private final Runnable task;
+		private final long tick;
+		private volatile boolean cancelled;
+
+
+		/**
+		 * Creates a new instance.
+		 * @param task the task
+		 * @param tick the tick the timeout expires with
+		 */
+		public Timeout (final Runnable task, final long tick) {
+			this.task = task;
+			this.tick = tick;
+		}
+
+
+		/**
+		 * Cancels this timeout, which prevents it's task from being run if it hasn't been run yet.
+		 * Note that cancelled timeouts are discarded lazily, i.e. the next time their bucket is
+		 * visited.
+		 */
+		public void cancel () {
+			this.cancelled = true;
+		}
+	}
+}
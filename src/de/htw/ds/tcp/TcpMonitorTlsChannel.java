@@ -0,0 +1,383 @@
+package de.htw.ds.tcp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SocketChannel;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLEngineResult.Status;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import de.htw.tool.Copyright;
+
+
+/**
+ * Instances of this class model TLS secured channels based on socket channels and SSL engines.
+ * The initial handshake is performed in blocking mode, while the subsequent data transfer supports
+ * both blocking and non-blocking mode. In non-blocking mode, decrypted data may remain buffered
+ * after a read, and encrypted data may remain pending after a write; non-blocking callers must
+ * therefore keep reading while there is {@linkplain #hasPendingInput() pending input}, and keep
+ * the underlying connection registered for writing while there is
+ * {@linkplain #hasPendingOutput() pending output}. Half-closing is supported as well, which is
+ * symmetric with TLS 1.3, while TLS 1.2 peers usually respond by closing the session
+ * altogether.<br />
+ * Note that reading and writing may happen concurrently in separate threads, and that
+ * renegotiation is not supported.
+ */
+@Copyright(year=2017, holders="Sascha Baumeister")
+class TcpMonitorTlsChannel implements ByteChannel {
+	static private final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
+
+	private final SocketChannel connection;
+	private final SSLEngine engine;
+	private final Object readMonitor;
+	private final Object writeMonitor;
+	private ByteBuffer networkInput;
+	private ByteBuffer applicationInput;
+	private ByteBuffer networkOutput;
+	private boolean underflow;
+	private boolean inputClosed;
+	private boolean outputClosed;
+
+
+	/**
+	 * Creates a new instance. Note that the network input buffer is kept in write mode, while the
+	 * application input and network output buffers are kept in read mode.
+	 * @param connection the connection
+	 * @param engine the SSL engine
+	 * @throws NullPointerException if any of the given arguments is {@code null}
+	 */
+	public TcpMonitorTlsChannel (final SocketChannel connection, final SSLEngine engine) throws NullPointerException {
+		if (connection == null | engine == null) throw new NullPointerException();
+
+		final int packetBufferSize = engine.getSession().getPacketBufferSize();
+		this.connection = connection;
+		this.engine = engine;
+		this.readMonitor = new Object();
+		this.writeMonitor = new Object();
+		this.networkInput = ByteBuffer.allocate(packetBufferSize);
+		this.applicationInput = (ByteBuffer) ByteBuffer.allocate(engine.getSession().getApplicationBufferSize()).flip();
+		this.networkOutput = (ByteBuffer) ByteBuffer.allocate(packetBufferSize).flip();
+	}
+
+
+	/**
+	 * Returns a new instance that terminates TLS on the given client connection, i.e. acts as the
+	 * TLS server.
+	 * @param connection the client connection
+	 * @param context the TLS context, providing the server certificate
+	 * @return the channel created
+	 * @throws NullPointerException if any of the given arguments is {@code null}
+	 */
+	static public TcpMonitorTlsChannel newServerChannel (final SocketChannel connection, final SSLContext context) throws NullPointerException {
+		final SSLEngine engine = context.createSSLEngine();
+		engine.setUseClientMode(false);
+		return new TcpMonitorTlsChannel(connection, engine);
+	}
+
+
+	/**
+	 * Returns a new instance that originates TLS on the given server connection, i.e. acts as the
+	 * TLS client. The engine is created for the given peer address, which enables server name
+	 * indication and host name verification, and allows the context to resume sessions cached for
+	 * the same peer with abbreviated handshakes.
+	 * @param connection the server connection
+	 * @param context the TLS context, providing the trusted certificates
+	 * @param peerAddress the peer address
+	 * @return the channel created
+	 * @throws NullPointerException if any of the given arguments is {@code null}
+	 */
+	static public TcpMonitorTlsChannel newClientChannel (final SocketChannel connection, final SSLContext context, final InetSocketAddress peerAddress) throws NullPointerException {
+		final SSLEngine engine = context.createSSLEngine(peerAddress.getHostString(), peerAddress.getPort());
+		engine.setUseClientMode(true);
+
+		final SSLParameters parameters = engine.getSSLParameters();
+		parameters.setEndpointIdentificationAlgorithm("HTTPS");
+		engine.setSSLParameters(parameters);
+		return new TcpMonitorTlsChannel(connection, engine);
+	}
+
+
+	/**
+	 * Returns the underlying connection.
+	 * @return the connection
+	 */
+	public SocketChannel getConnection () {
+		return this.connection;
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean isOpen () {
+		return this.connection.isOpen();
+	}
+
+
+	/**
+	 * Closes this channel, sending a close notification to the peer on a best effort basis before
+	 * closing the underlying connection.
+	 * @throws IOException {@inheritDoc}
+	 */
+	public void close () throws IOException {
+		try {
+			synchronized (this.writeMonitor) {
+				this.engine.closeOutbound();
+				this.wrap(EMPTY_BUFFER);
+				this.flush();
+			}
+		} catch (final IOException exception) {
+			// do nothing because the peer may already be gone
+		} finally {
+			this.connection.close();
+		}
+	}
+
+
+	/**
+	 * Shuts down this channel for writing, i.e. sends a close notification to the peer, and shuts
+	 * down the underlying connection for writing once the former has been written, while reading
+	 * remains possible. In non-blocking mode, the close notification may remain
+	 * {@linkplain #hasPendingOutput() pending}, in which case it is written by subsequent writes,
+	 * which must be empty.
+	 * @throws IOException if there is an I/O related problem
+	 */
+	public void shutdownOutput () throws IOException {
+		synchronized (this.writeMonitor) {
+			this.outputClosed = true;
+			this.engine.closeOutbound();
+			this.wrap(EMPTY_BUFFER);
+			if (this.flush()) this.connection.shutdownOutput();
+		}
+	}
+
+
+	/**
+	 * Returns whether or not decrypted data, or complete encrypted records, are buffered, which
+	 * implies the next read may succeed without the underlying connection being readable. Also
+	 * returns {@code true} once the peer has closed the TLS session, in order for the next read
+	 * to signal end of stream.
+	 * @return the pending input state
+	 */
+	public boolean hasPendingInput () {
+		synchronized (this.readMonitor) {
+			return this.applicationInput.hasRemaining() | this.inputClosed | (this.networkInput.position() > 0 & !this.underflow);
+		}
+	}
+
+
+	/**
+	 * Returns whether or not encrypted data is pending to be written to the underlying connection.
+	 * @return the pending output state
+	 */
+	public boolean hasPendingOutput () {
+		synchronized (this.writeMonitor) {
+			return this.networkOutput.hasRemaining();
+		}
+	}
+
+
+	/**
+	 * Performs the initial TLS handshake, and registers it's duration with the given connection
+	 * meter. Note that the underlying connection must be in blocking mode.
+	 * @param meter the connection meter
+	 * @throws IOException if there is an I/O related problem, or the handshake fails
+	 */
+	public void handshake (final TcpMonitorMetrics.ConnectionMeter meter) throws IOException {
+		final long startTime = System.nanoTime();
+		final long startTimestamp = System.currentTimeMillis();
+
+		this.engine.beginHandshake();
+		for (HandshakeStatus status = this.engine.getHandshakeStatus(); status != HandshakeStatus.NOT_HANDSHAKING & status != HandshakeStatus.FINISHED; status = this.engine.getHandshakeStatus()) {
+			if (status == HandshakeStatus.NEED_TASK | status == HandshakeStatus.NEED_WRAP) {
+				this.proceed(status);
+				continue;
+			}
+
+			synchronized (this.readMonitor) {
+				final SSLEngineResult result = this.unwrap();
+				if (result.getStatus() == Status.CLOSED) throw new EOFException("TLS session closed during handshake");
+				if (result.getStatus() == Status.BUFFER_UNDERFLOW && this.fill() == -1) throw new EOFException("connection closed during TLS handshake");
+			}
+		}
+
+		// resumed sessions have been created before the handshake started
+		final boolean resumed = this.engine.getSession().getCreationTime() < startTimestamp;
+		meter.handshakeCompleted(System.nanoTime() - startTime, resumed);
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public int read (final ByteBuffer buffer) throws IOException {
+		synchronized (this.readMonitor) {
+			while (!this.applicationInput.hasRemaining()) {
+				if (this.inputClosed) return -1;
+
+				final SSLEngineResult result = this.unwrap();
+				this.proceed(result.getHandshakeStatus());
+				if (result.getStatus() == Status.CLOSED) {
+					this.inputClosed = true;
+				} else if (result.getStatus() == Status.BUFFER_UNDERFLOW || result.bytesConsumed() == 0) {
+					final int bytesRead = this.fill();
+					if (bytesRead == 0) return 0;
+					if (bytesRead == -1) {
+						this.inputClosed = true;
+						try { this.engine.closeInbound(); } catch (final SSLException exception) {}
+					}
+				}
+			}
+
+			final int bytesRead = Math.min(buffer.remaining(), this.applicationInput.remaining());
+			final ByteBuffer slice = this.applicationInput.duplicate();
+			slice.limit(slice.position() + bytesRead);
+			buffer.put(slice);
+			this.applicationInput.position(slice.position());
+			return bytesRead;
+		}
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public int write (final ByteBuffer buffer) throws IOException {
+		synchronized (this.writeMonitor) {
+			int bytesWritten = 0;
+			while (this.flush() && buffer.hasRemaining()) {
+				final SSLEngineResult result = this.wrap(buffer);
+				if (result.getStatus() == Status.CLOSED) throw new SSLException("TLS session closed");
+				if (result.getHandshakeStatus() == HandshakeStatus.NEED_UNWRAP & result.bytesConsumed() == 0) throw new SSLException("TLS renegotiation is not supported");
+
+				bytesWritten += result.bytesConsumed();
+				this.proceed(result.getHandshakeStatus());
+			}
+
+			if (this.outputClosed && !this.networkOutput.hasRemaining()) this.connection.shutdownOutput();
+			return bytesWritten;
+		}
+	}
+
+
+	/**
+	 * Performs the handshake steps that don't require network input, i.e. runs delegated tasks,
+	 * and wraps handshake messages, until no further such steps are required. This covers the
+	 * messages sent during the initial handshake, as well as close notifications and key updates
+	 * sent in response to peer messages.
+	 * @param status the current handshake status
+	 * @throws IOException if there is an I/O related problem
+	 */
+	private void proceed (HandshakeStatus status) throws IOException {
+		while (true) {
+			if (status == HandshakeStatus.NEED_TASK) {
+				for (Runnable task = this.engine.getDelegatedTask(); task != null; task = this.engine.getDelegatedTask()) {
+					task.run();
+				}
+			} else if (status == HandshakeStatus.NEED_WRAP) {
+				synchronized (this.writeMonitor) {
+					final SSLEngineResult result = this.wrap(EMPTY_BUFFER);
+					this.flush();
+					if (result.bytesProduced() == 0) return;
+				}
+			} else {
+				return;
+			}
+
+			status = this.engine.getHandshakeStatus();
+		}
+	}
+
+
+	/**
+	 * Decrypts as much network input as possible into the application input, enlarging the latter
+	 * if necessary. Must be called while synchronized on the read monitor.
+	 * @return the result of the last unwrap operation
+	 * @throws SSLException if decryption fails
+	 */
+	private SSLEngineResult unwrap () throws SSLException {
+		this.networkInput.flip();
+		this.applicationInput.compact();
+		try {
+			SSLEngineResult result;
+			while ((result = this.engine.unwrap(this.networkInput, this.applicationInput)).getStatus() == Status.BUFFER_OVERFLOW) {
+				this.applicationInput = enlarge(this.applicationInput, this.engine.getSession().getApplicationBufferSize());
+			}
+
+			this.underflow = result.getStatus() == Status.BUFFER_UNDERFLOW;
+			return result;
+		} finally {
+			this.networkInput.compact();
+			this.applicationInput.flip();
+		}
+	}
+
+
+	/**
+	 * Encrypts as much of the given buffer's content as possible into the network output,
+	 * enlarging the latter if necessary. Must be called while synchronized on the write monitor.
+	 * @param buffer the buffer
+	 * @return the result of the last wrap operation
+	 * @throws SSLException if encryption fails
+	 */
+	private SSLEngineResult wrap (final ByteBuffer buffer) throws SSLException {
+		this.networkOutput.compact();
+		try {
+			SSLEngineResult result;
+			while ((result = this.engine.wrap(buffer, this.networkOutput)).getStatus() == Status.BUFFER_OVERFLOW) {
+				this.networkOutput = enlarge(this.networkOutput, this.engine.getSession().getPacketBufferSize());
+			}
+			return result;
+		} finally {
+			this.networkOutput.flip();
+		}
+	}
+
+
+	/**
+	 * Reads data from the underlying connection into the network input, enlarging the latter if
+	 * it is full. Must be called while synchronized on the read monitor.
+	 * @return the number of bytes read, or {@code -1} for end of stream
+	 * @throws IOException if there is an I/O related problem
+	 */
+	private int fill () throws IOException {
+		if (!this.networkInput.hasRemaining()) this.networkInput = enlarge(this.networkInput, this.engine.getSession().getPacketBufferSize());
+
+		final int bytesRead = this.connection.read(this.networkInput);
+		if (bytesRead > 0) this.underflow = false;
+		return bytesRead;
+	}
+
+
+	/**
+	 * Writes as much network output as possible to the underlying connection. Must be called while
+	 * synchronized on the write monitor.
+	 * @return whether or not all network output has been written
+	 * @throws IOException if there is an I/O related problem
+	 */
+	private boolean flush () throws IOException {
+		while (this.networkOutput.hasRemaining()) {
+			if (this.connection.write(this.networkOutput) == 0) return false;
+		}
+		return true;
+	}
+
+
+	/**
+	 * Returns a copy of the given buffer in write mode, enlarged by the given number of bytes.
+	 * @param buffer the buffer in write mode
+	 * @param byteCount the number of bytes to enlarge the buffer by
+	 * @return the enlarged buffer in write mode
+	 */
+	static private ByteBuffer enlarge (final ByteBuffer buffer, final int byteCount) {
+		final ByteBuffer result = ByteBuffer.allocate(buffer.position() + byteCount);
+		buffer.flip();
+		return result.put(buffer);
+	}
+}
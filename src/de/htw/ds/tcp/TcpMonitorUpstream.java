@@ -0,0 +1,212 @@
+package de.htw.ds.tcp;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import de.htw.tool.Copyright;
+
+
+/**
+ * Instances of this class model the upstream hosts a TCP monitor balances it's connections across.
+ * Each upstream owns a connection pool, and metrics covering the connections assigned to it, which
+ * allows upstreams to be compared. Additionally, upstreams perform passive failure detection:
+ * connections that fail to connect, or that end without any response data after request data has
+ * been sent, count as failures, while any response data counts as success. Once the number of
+ * consecutive failures reaches the failure threshold, the upstream is ejected from balancing for
+ * the ejection time. Afterwards, it is on probation, i.e. a single further failure ejects it again,
+ * while a single success restores it.
+ */
+@Copyright(year=2017, holders="Sascha Baumeister")
+public class TcpMonitorUpstream {
+	static private final int DEFAULT_FAILURE_THRESHOLD = 3;
+	static private final long DEFAULT_EJECTION_TIME = 10000;
+
+	private final InetSocketAddress address;
+	private final TcpMonitorConnectionPool connectionPool;
+	private final TcpMonitorMetrics metrics;
+	private final AtomicInteger consecutiveFailures;
+	private final LongAdder ejectionCount;
+	private volatile long ejectionTimestamp;
+	private volatile int failureThreshold;
+	private volatile long ejectionTime;
+
+
+	/**
+	 * Creates a new instance, including it's connection pool.
+	 * @param address the upstream address
+	 * @throws NullPointerException if the given address is {@code null}
+	 */
+	public TcpMonitorUpstream (final InetSocketAddress address) throws NullPointerException {
+		if (address == null) throw new NullPointerException();
+
+		this.address = address;
+		this.connectionPool = new TcpMonitorConnectionPool(address);
+		this.metrics = new TcpMonitorMetrics();
+		this.consecutiveFailures = new AtomicInteger();
+		this.ejectionCount = new LongAdder();
+		this.ejectionTimestamp = 0;
+		this.failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+		this.ejectionTime = DEFAULT_EJECTION_TIME;
+	}
+
+
+	/**
+	 * Returns the upstream address.
+	 * @return the upstream address
+	 */
+	public InetSocketAddress getAddress () {
+		return this.address;
+	}
+
+
+	/**
+	 * Returns the connection pool, which allows pooling to be configured and monitored for this
+	 * upstream. Note that pooling is disabled by default.
+	 * @return the connection pool
+	 */
+	public TcpMonitorConnectionPool getConnectionPool () {
+		return this.connectionPool;
+	}
+
+
+	/**
+	 * Returns the live metrics of the connections assigned to this upstream. Note that their
+	 * timings are relative to the time a connection has been assigned, not to the time it has been
+	 * accepted, and that their accepted connection count is the number of connections assigned.
+	 * @return the metrics
+	 */
+	public TcpMonitorMetrics getMetrics () {
+		return this.metrics;
+	}
+
+
+	/**
+	 * Returns the failure threshold, i.e. the number of consecutive failures that cause this
+	 * upstream to be ejected.
+	 * @return the failure threshold
+	 */
+	public int getFailureThreshold () {
+		return this.failureThreshold;
+	}
+
+
+	/**
+	 * Sets the failure threshold, i.e. the number of consecutive failures that cause this upstream
+	 * to be ejected.
+	 * @param failureThreshold the failure threshold
+	 * @throws IllegalArgumentException if the given threshold is not strictly positive
+	 */
+	public void setFailureThreshold (final int failureThreshold) throws IllegalArgumentException {
+		if (failureThreshold <= 0) throw new IllegalArgumentException();
+		this.failureThreshold = failureThreshold;
+	}
+
+
+	/**
+	 * Returns the ejection time, i.e. the time this upstream is excluded from balancing once it
+	 * has been ejected.
+	 * @return the ejection time in milliseconds
+	 */
+	public long getEjectionTime () {
+		return this.ejectionTime;
+	}
+
+
+	/**
+	 * Sets the ejection time, i.e. the time this upstream is excluded from balancing once it has
+	 * been ejected. A time of zero disables ejection.
+	 * @param ejectionTime the ejection time in milliseconds
+	 * @throws IllegalArgumentException if the given time is negative
+	 */
+	public void setEjectionTime (final long ejectionTime) throws IllegalArgumentException {
+		if (ejectionTime < 0) throw new IllegalArgumentException();
+		this.ejectionTime = ejectionTime;
+	}
+
+
+	/**
+	 * Returns the number of consecutive failures.
+	 * @return the consecutive failure count
+	 */
+	public int getConsecutiveFailures () {
+		return this.consecutiveFailures.get();
+	}
+
+
+	/**
+	 * Returns the number of times this upstream has been ejected.
+	 * @return the ejection count
+	 */
+	public long getEjectionCount () {
+		return this.ejectionCount.sum();
+	}
+
+
+	/**
+	 * Returns whether or not this upstream is currently available for balancing, i.e. not ejected.
+	 * @return the availability state
+	 */
+	public boolean isAvailable () {
+		return this.isAvailable(System.currentTimeMillis());
+	}
+
+
+	/**
+	 * Returns whether or not this upstream is available for balancing at the given time.
+	 * @param timestamp the timestamp, in milliseconds since 1/1/1970
+	 * @return the availability state
+	 */
+	boolean isAvailable (final long timestamp) {
+		return timestamp - this.ejectionTimestamp >= this.ejectionTime;
+	}
+
+
+	/**
+	 * Returns the number of connections currently assigned to this upstream.
+	 * @return the active connection count
+	 */
+	long getActiveConnections () {
+		return this.metrics.activeConnections();
+	}
+
+
+	/**
+	 * Registers a connection assigned to this upstream having succeeded, which resets the number
+	 * of consecutive failures.
+	 */
+	void succeeded () {
+		if (this.consecutiveFailures.get() != 0) this.consecutiveFailures.set(0);
+	}
+
+
+	/**
+	 * Registers a connection assigned to this upstream having failed, and ejects the latter if
+	 * the number of consecutive failures reaches the failure threshold.
+	 */
+	void failed () {
+		if (this.consecutiveFailures.incrementAndGet() >= this.failureThreshold) {
+			final long now = System.currentTimeMillis();
+			if (this.isAvailable(now)) {
+				this.ejectionTimestamp = now;
+				this.ejectionCount.increment();
+			}
+		}
+	}
+
+
+	/**
+	 * Closes the connection pool.
+	 */
+	void close () {
+		this.connectionPool.close();
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String toString () {
+		return this.address.getHostString() + ":" + this.address.getPort();
+	}
+}
@@ -0,0 +1,174 @@
+package de.htw.ds.tcp;
+
+import java.net.InetAddress;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import de.htw.tool.Copyright;
+
+
+/**
+ * Instances of this class supervise the timeouts of a single relayed connection, based on the
+ * activity tracked by it's connection meter. Instead of being rescheduled whenever data is
+ * transported, a watchdog checks it's connection once the earliest of it's deadlines has passed,
+ * and reschedules itself with the parent's timer wheel if the connection has been active in the
+ * meantime; this keeps the relay threads free of any timer operations. Once a timeout expires, the
+ * connection is cut using the cutter currently set, metered as having timed out, and reported to
+ * the parent's exception consumer as a {@link TcpMonitorTimeoutException}.<br />
+ * Note that the minimum throughput applies to each throughput window during which any data has
+ * been transported, which cuts connections trickling data like slowloris clients, while leaving
+ * the supervision of completely idle connections to the idle timeout.
+ */
+@Copyright(year=2017, holders="Sascha Baumeister")
+class TcpMonitorWatchdog {
+	static private final Runnable NO_CUTTER = () -> {};
+
+	private final TcpMonitorServer parent;
+	private final TcpMonitorMetrics.ConnectionMeter meter;
+	private final InetAddress clientAddress;
+	private final long connectTimeout;
+	private final long idleTimeout;
+	private final long lifetimeTimeout;
+	private final long minimumThroughput;
+	private final long throughputWindow;
+	private final AtomicBoolean expired;
+	private volatile Runnable cutter;
+	private volatile TcpMonitorTimerWheel.Timeout timeout;
+	private long windowTime;
+	private long windowBytes;
+
+
+	/**
+	 * Creates a new instance based on the parent's current timeout configuration, and schedules it
+	 * if any timeout is enabled.
+	 * @param parent the parent monitor
+	 * @param meter the connection meter
+	 * @param clientAddress the client address
+	 * @throws NullPointerException if any of the given arguments is {@code null}
+	 */
+	public TcpMonitorWatchdog (final TcpMonitorServer parent, final TcpMonitorMetrics.ConnectionMeter meter, final InetAddress clientAddress) throws NullPointerException {
+		if (parent == null | meter == null | clientAddress == null) throw new NullPointerException();
+
+		this.parent = parent;
+		this.meter = meter;
+		this.clientAddress = clientAddress;
+		this.connectTimeout = TimeUnit.MILLISECONDS.toNanos(parent.getConnectTimeout());
+		this.idleTimeout = TimeUnit.MILLISECONDS.toNanos(parent.getIdleTimeout());
+		this.lifetimeTimeout = TimeUnit.MILLISECONDS.toNanos(parent.getLifetimeTimeout());
+		this.minimumThroughput = parent.getMinimumThroughput();
+		this.throughputWindow = TimeUnit.MILLISECONDS.toNanos(parent.getThroughputWindow());
+		this.expired = new AtomicBoolean();
+		this.cutter = NO_CUTTER;
+		this.windowTime = meter.getOpenTime();
+
+		if (this.connectTimeout > 0 | this.idleTimeout > 0 | this.lifetimeTimeout > 0 | this.minimumThroughput > 0) this.check();
+	}
+
+
+	/**
+	 * Returns whether or not a timeout has expired, in which case the connection has been cut and
+	 * reported already.
+	 * @return the expiration state
+	 */
+	public boolean isExpired () {
+		return this.expired.get();
+	}
+
+
+	/**
+	 * Sets the cutter, i.e. the task that closes the connection if a timeout expires. Runs the
+	 * given cutter immediately if a timeout has expired already.
+	 * @param cutter the cutter
+	 * @throws NullPointerException if the given cutter is {@code null}
+	 */
+	public void setCutter (final Runnable cutter) throws NullPointerException {
+		if (cutter == null) throw new NullPointerException();
+
+		this.cutter = cutter;
+		if (this.expired.get()) cutter.run();
+	}
+
+
+	/**
+	 * Stops supervising the connection.
+	 */
+	public void cancel () {
+		final TcpMonitorTimerWheel.Timeout timeout = this.timeout;
+		if (timeout != null) timeout.cancel();
+	}
+
+
+	/**
+	 * Checks all deadlines of the connection, and either expires the first one that has passed,
+	 * or reschedules this watchdog for the earliest one that hasn't. Note that this method is
+	 * called by the timer wheel's thread, except for the initial check.
+	 */
+	private void check () {
+		final TcpMonitorMetrics.ConnectionMeter meter = this.meter;
+		if (meter.isClosed()) return;
+
+		final long now = System.nanoTime();
+		long delay = Long.MAX_VALUE;
+		if (this.connectTimeout > 0 && !meter.isEstablished()) {
+			final long remaining = meter.getOpenTime() + this.connectTimeout - now;
+			if (remaining <= 0) {
+				this.expire(TcpMonitorTimeoutException.Reason.CONNECT, this.connectTimeout);
+				return;
+			}
+			delay = Math.min(delay, remaining);
+		}
+
+		if (this.lifetimeTimeout > 0) {
+			final long remaining = meter.getOpenTime() + this.lifetimeTimeout - now;
+			if (remaining <= 0) {
+				this.expire(TcpMonitorTimeoutException.Reason.LIFETIME, this.lifetimeTimeout);
+				return;
+			}
+			delay = Math.min(delay, remaining);
+		}
+
+		if (this.idleTimeout > 0) {
+			final long remaining = meter.getActivityTime() + this.idleTimeout - now;
+			if (remaining <= 0) {
+				this.expire(TcpMonitorTimeoutException.Reason.IDLE, this.idleTimeout);
+				return;
+			}
+			delay = Math.min(delay, remaining);
+		}
+
+		if (this.minimumThroughput > 0) {
+			long remaining = this.windowTime + this.throughputWindow - now;
+			if (remaining <= 0) {
+				final long transportedBytes = meter.getTransportedBytes();
+				final long windowBytes = transportedBytes - this.windowBytes;
+				if (windowBytes > 0 && windowBytes < this.minimumThroughput * ((now - this.windowTime) / 1E9)) {
+					this.expire(TcpMonitorTimeoutException.Reason.THROUGHPUT, this.throughputWindow);
+					return;
+				}
+
+				this.windowTime = now;
+				this.windowBytes = transportedBytes;
+				remaining = this.throughputWindow;
+			}
+			delay = Math.min(delay, remaining);
+		}
+
+		this.timeout = this.parent.getTimerWheel().schedule(this::check, TimeUnit.NANOSECONDS.toMillis(delay) + 1);
+	}
+
+
+	/**
+	 * Expires the given timeout, unless the connection has already been cut.
+	 * @param reason the timeout reason
+	 * @param duration the timeout duration in nanoseconds
+	 */
+	private void expire (final TcpMonitorTimeoutException.Reason reason, final long duration) {
+		if (!this.expired.compareAndSet(false, true)) return;
+
+		this.meter.timedOut(reason);
+		this.cutter.run();
+
+		final String message = String.format("%s timeout of %dms expired for connection from %s", reason.name().toLowerCase(Locale.ROOT), TimeUnit.NANOSECONDS.toMillis(duration), this.clientAddress.getHostAddress());
+		this.parent.getExceptionConsumer().accept(new TcpMonitorTimeoutException(reason, message));
+	}
+}
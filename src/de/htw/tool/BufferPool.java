@@ -0,0 +1,374 @@
+package de.htw.tool;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Instances of this class pool byte arrays, heap byte buffers and direct byte buffers in power-of-two size classes ranging from
+ * 4KiB to 1MiB, which avoids allocating a fresh transfer buffer for every copy operation. Each thread owns a small cache per
+ * size class that is accessed without any synchronization, backed by lock-free pools shared by all threads, which allows
+ * buffers released by one thread to be reused by another. Requests beyond the largest size class are served by fresh
+ * allocations, and are left to the garbage collector upon release. Note that virtual threads bypass their thread caches, as
+ * these would be discarded together with the usually short-lived threads, and that pooled buffers are neither zeroed upon
+ * acquisition nor upon release.<br />
+ * In debug mode, every buffer handed out is tracked until it is released. Buffers that become unreachable without having been
+ * released are logged as leaks, including the stack trace of their acquisition, and so are buffers released twice, or buffers
+ * that haven't been acquired from the pool at all. The default pool's debug mode is activated using the system property
+ * {@value #DEBUG_PROPERTY}. Note that debug mode is costly, and therefore not suitable for production use.
+ */
+@Copyright(year = 2017, holders = "Sascha Baumeister")
+public class BufferPool {
+	static public final String DEBUG_PROPERTY = "de.htw.tool.BufferPool.debug";
+	static private final int MIN_SIZE_SHIFT = 12;
+	static private final int MAX_SIZE_SHIFT = 20;
+	static private final int SIZE_CLASS_COUNT = MAX_SIZE_SHIFT - MIN_SIZE_SHIFT + 1;
+	static private final int ARRAY = 0, HEAP_BUFFER = 1, DIRECT_BUFFER = 2, KIND_COUNT = 3;
+	static private final MethodHandle IS_VIRTUAL = isVirtualHandle();
+	static private final BufferPool DEFAULT = new BufferPool(0x80000, 0x1000000, Boolean.getBoolean(DEBUG_PROPERTY));
+
+	private final int threadCacheSize;
+	private final int sharedSize;
+	private final boolean debug;
+	private final ThreadLocal<Queue<Object>[][]> threadCaches;
+	private final Queue<Object>[][] sharedPools;
+	private final AtomicInteger[][] sharedCounts;
+	private final LongAdder allocationCount;
+	private final LongAdder reuseCount;
+	private final LongAdder leakCount;
+	private final ReferenceQueue<Object> leakQueue;
+	private final Map<Integer,List<Acquisition>> acquisitions;
+
+
+	/**
+	 * Creates a new instance.
+	 * @param threadCacheSize the maximum number of bytes cached per thread, size class and buffer kind; note that at least one
+	 *        buffer is cached regardless
+	 * @param sharedSize the maximum number of bytes pooled for all threads, per size class and buffer kind; note that at least
+	 *        one buffer is pooled regardless
+	 * @param debug whether or not leak detection is enabled
+	 * @throws IllegalArgumentException if any of the given sizes is negative
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public BufferPool (final int threadCacheSize, final int sharedSize, final boolean debug) throws IllegalArgumentException {
+		if (threadCacheSize < 0 | sharedSize < 0) throw new IllegalArgumentException();
+
+		this.threadCacheSize = threadCacheSize;
+		this.sharedSize = sharedSize;
+		this.debug = debug;
+		this.sharedPools = new Queue[KIND_COUNT][SIZE_CLASS_COUNT];
+		this.sharedCounts = new AtomicInteger[KIND_COUNT][SIZE_CLASS_COUNT];
+		for (int kind = 0; kind < KIND_COUNT; ++kind) {
+			for (int sizeClass = 0; sizeClass < SIZE_CLASS_COUNT; ++sizeClass) {
+				this.sharedPools[kind][sizeClass] = new ConcurrentLinkedQueue<>();
+				this.sharedCounts[kind][sizeClass] = new AtomicInteger();
+			}
+		}
+
+		this.threadCaches = ThreadLocal.withInitial(() -> {
+			final Queue<Object>[][] threadCache = new Queue[KIND_COUNT][SIZE_CLASS_COUNT];
+			for (int kind = 0; kind < KIND_COUNT; ++kind) {
+				for (int sizeClass = 0; sizeClass < SIZE_CLASS_COUNT; ++sizeClass) {
+					threadCache[kind][sizeClass] = new ArrayDeque<>();
+				}
+			}
+			return threadCache;
+		});
+
+		this.allocationCount = new LongAdder();
+		this.reuseCount = new LongAdder();
+		this.leakCount = new LongAdder();
+		this.leakQueue = new ReferenceQueue<>();
+		this.acquisitions = new HashMap<>();
+	}
+
+
+	/**
+	 * Returns the default pool, which caches up to 512KiB per thread, size class and buffer kind, and pools up to 16MiB per
+	 * size class and buffer kind for all threads.
+	 * @return the default pool
+	 */
+	static public BufferPool getDefault () {
+		return DEFAULT;
+	}
+
+
+	/**
+	 * Returns a method handle for {@code Thread.isVirtual()}, which requires a Java 21+ runtime.
+	 * @return the method handle, or {@code null} if the current runtime doesn't support virtual threads
+	 */
+	static private MethodHandle isVirtualHandle () {
+		try {
+			return MethodHandles.publicLookup().findVirtual(Thread.class, "isVirtual", MethodType.methodType(boolean.class));
+		} catch (final NoSuchMethodException | IllegalAccessException exception) {
+			return null;
+		}
+	}
+
+
+	/**
+	 * Returns whether or not leak detection is enabled.
+	 * @return the debug state
+	 */
+	public boolean isDebug () {
+		return this.debug;
+	}
+
+
+	/**
+	 * Returns the number of buffers allocated because no pooled buffer was available.
+	 * @return the allocation count
+	 */
+	public long getAllocationCount () {
+		return this.allocationCount.sum();
+	}
+
+
+	/**
+	 * Returns the number of pooled buffers reused.
+	 * @return the reuse count
+	 */
+	public long getReuseCount () {
+		return this.reuseCount.sum();
+	}
+
+
+	/**
+	 * Returns the number of leaks detected so far, which is always zero unless debug mode is enabled.
+	 * @return the leak count
+	 */
+	public long getLeakCount () {
+		return this.leakCount.sum();
+	}
+
+
+	/**
+	 * Returns a byte array with at least the given length, which should be released once it is no longer used. Note that the
+	 * array's content is undefined.
+	 * @param minimumLength the minimum length
+	 * @return the byte array
+	 * @throws IllegalArgumentException if the given length is negative
+	 */
+	public byte[] acquireArray (final int minimumLength) throws IllegalArgumentException {
+		return (byte[]) this.acquire(ARRAY, minimumLength);
+	}
+
+
+	/**
+	 * Returns a cleared byte buffer in big endian order with at least the given capacity, which should be released once it is no
+	 * longer used. Note that the buffer's content is undefined.
+	 * @param minimumCapacity the minimum capacity
+	 * @param direct {@code true} for a direct buffer, {@code false} for a heap buffer
+	 * @return the byte buffer
+	 * @throws IllegalArgumentException if the given capacity is negative
+	 */
+	public ByteBuffer acquireBuffer (final int minimumCapacity, final boolean direct) throws IllegalArgumentException {
+		return (ByteBuffer) this.acquire(direct ? DIRECT_BUFFER : HEAP_BUFFER, minimumCapacity);
+	}
+
+
+	/**
+	 * Releases the given byte array into this pool. The array must not be used by the caller afterwards.
+	 * @param array the byte array
+	 * @throws NullPointerException if the given array is {@code null}
+	 */
+	public void release (final byte[] array) throws NullPointerException {
+		this.release(ARRAY, array, array.length);
+	}
+
+
+	/**
+	 * Releases the given byte buffer into this pool. The buffer must not be used by the caller afterwards, and neither must any
+	 * of it's duplicates or slices.
+	 * @param buffer the byte buffer
+	 * @throws NullPointerException if the given buffer is {@code null}
+	 */
+	public void release (final ByteBuffer buffer) throws NullPointerException {
+		if (buffer.isReadOnly() || (buffer.hasArray() && buffer.arrayOffset() != 0)) return;
+
+		buffer.clear();
+		buffer.order(ByteOrder.BIG_ENDIAN);
+		this.release(buffer.isDirect() ? DIRECT_BUFFER : HEAP_BUFFER, buffer, buffer.capacity());
+	}
+
+
+	/**
+	 * Returns a buffer of the given kind with at least the given size.
+	 * @param kind the buffer kind
+	 * @param minimumSize the minimum size
+	 * @return the buffer
+	 * @throws IllegalArgumentException if the given size is negative
+	 */
+	private Object acquire (final int kind, final int minimumSize) throws IllegalArgumentException {
+		if (minimumSize < 0) throw new IllegalArgumentException();
+		if (minimumSize > 1 << MAX_SIZE_SHIFT) return allocate(kind, minimumSize);
+
+		final int sizeClass = Math.max(0, 32 - Integer.numberOfLeadingZeros(minimumSize - 1) - MIN_SIZE_SHIFT);
+		final Queue<Object>[][] threadCache = this.threadCache();
+		Object buffer = threadCache == null ? null : threadCache[kind][sizeClass].poll();
+		if (buffer == null) {
+			buffer = this.sharedPools[kind][sizeClass].poll();
+			if (buffer != null) this.sharedCounts[kind][sizeClass].decrementAndGet();
+		}
+
+		if (buffer == null) {
+			buffer = allocate(kind, 1 << (sizeClass + MIN_SIZE_SHIFT));
+			this.allocationCount.increment();
+		} else {
+			this.reuseCount.increment();
+		}
+
+		if (this.debug) this.track(buffer);
+		return buffer;
+	}
+
+
+	/**
+	 * Releases the given buffer of the given kind, unless it's size doesn't match any size class.
+	 * @param kind the buffer kind
+	 * @param buffer the buffer
+	 * @param size the buffer size
+	 */
+	private void release (final int kind, final Object buffer, final int size) {
+		if (Integer.bitCount(size) != 1 | size < 1 << MIN_SIZE_SHIFT | size > 1 << MAX_SIZE_SHIFT) return;
+
+		if (this.debug && !this.untrack(buffer)) {
+			Logger.getGlobal().log(Level.WARNING, "buffer released twice, or not acquired from this pool", new IllegalStateException());
+			return;
+		}
+
+		final int sizeShift = Integer.numberOfTrailingZeros(size);
+		final int sizeClass = sizeShift - MIN_SIZE_SHIFT;
+		final Queue<Object>[][] threadCache = this.threadCache();
+		if (threadCache != null && threadCache[kind][sizeClass].size() < Math.max(1, this.threadCacheSize >> sizeShift)) {
+			threadCache[kind][sizeClass].add(buffer);
+		} else if (this.sharedCounts[kind][sizeClass].incrementAndGet() <= Math.max(1, this.sharedSize >> sizeShift)) {
+			this.sharedPools[kind][sizeClass].add(buffer);
+		} else {
+			this.sharedCounts[kind][sizeClass].decrementAndGet();
+		}
+	}
+
+
+	/**
+	 * Returns the current thread's cache.
+	 * @return the thread cache, or {@code null} if the current thread is virtual
+	 */
+	private Queue<Object>[][] threadCache () {
+		if (IS_VIRTUAL != null) {
+			try {
+				if ((boolean) IS_VIRTUAL.invokeExact(Thread.currentThread())) return null;
+			} catch (final Throwable exception) {
+				throw new AssertionError(exception);
+			}
+		}
+		return this.threadCaches.get();
+	}
+
+
+	/**
+	 * Allocates a new buffer of the given kind and size.
+	 * @param kind the buffer kind
+	 * @param size the buffer size
+	 * @return the buffer allocated
+	 */
+	static private Object allocate (final int kind, final int size) {
+		switch (kind) {
+			case ARRAY:
+				return new byte[size];
+			case HEAP_BUFFER:
+				return ByteBuffer.allocate(size);
+			default:
+				return ByteBuffer.allocateDirect(size);
+		}
+	}
+
+
+	/**
+	 * Starts tracking the given buffer, and logs the leaks detected since the last call.
+	 * @param buffer the buffer acquired
+	 */
+	private void track (final Object buffer) {
+		for (Reference<?> reference = this.leakQueue.poll(); reference != null; reference = this.leakQueue.poll()) {
+			final Acquisition acquisition = (Acquisition) reference;
+			synchronized (this.acquisitions) {
+				final List<Acquisition> candidates = this.acquisitions.get(acquisition.identity);
+				if (candidates == null || !candidates.remove(acquisition)) continue;
+				if (candidates.isEmpty()) this.acquisitions.remove(acquisition.identity);
+			}
+
+			this.leakCount.increment();
+			Logger.getGlobal().log(Level.WARNING, "buffer leak detected, i.e. a buffer hasn't been released before becoming unreachable", acquisition.trace);
+		}
+
+		final Acquisition acquisition = new Acquisition(buffer, this.leakQueue);
+		synchronized (this.acquisitions) {
+			this.acquisitions.computeIfAbsent(acquisition.identity, key -> new ArrayList<>(1)).add(acquisition);
+		}
+	}
+
+
+	/**
+	 * Stops tracking the given buffer.
+	 * @param buffer the buffer released
+	 * @return whether or not the buffer has been tracked
+	 */
+	private boolean untrack (final Object buffer) {
+		final Integer identity = System.identityHashCode(buffer);
+		synchronized (this.acquisitions) {
+			final List<Acquisition> candidates = this.acquisitions.get(identity);
+			if (candidates == null) return false;
+
+			for (int index = 0; index < candidates.size(); ++index) {
+				final Acquisition acquisition = candidates.get(index);
+				if (acquisition.get() == buffer) {
+					candidates.remove(index);
+					if (candidates.isEmpty()) this.acquisitions.remove(identity);
+					acquisition.clear();
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+
+
+	/**
+	 * Instances of this static inner class weakly reference buffers handed out in debug mode, together with the stack trace of
+	 * their acquisition. They are enqueued once their buffer becomes unreachable without having been released.
+	 */
+	static private class Acquisition extends WeakReference<Object> {
+		private final Integer identity;
+		private final Throwable trace;
+
+
+		/**
+		 * Creates a new instance.
+		 * @param buffer the buffer acquired
+		 * @param queue the reference queue
+		 */
+		public Acquisition (final Object buffer, final ReferenceQueue<Object> queue) {
+			super(buffer, queue);
+			this.identity = System.identityHashCode(buffer);
+			this.trace = new Throwable("buffer acquisition");
+		}
+	}
+}
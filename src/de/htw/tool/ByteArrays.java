@@ -21,12 +21,26 @@ public class ByteArrays {
 	 * @return the index of the target within the given source, or {@code -1} for none
 	 */
 	static public int indexOf (final byte[] source, final byte[] target, final int offset) throws NullPointerException, IllegalArgumentException {
-		if (offset < 0 | offset > source.length) throw new IllegalArgumentException();
-		if (offset == source.length) return -1;
+		return indexOf(source, target, offset, source.length);
+	}
+
+
+	/**
+	 * Returns the index of the target array found within the given range of the source array, or {@code -1} for none. Note
+	 * that this allows searching partially filled buffers without copying their content.
+	 * @param source the bytes being searched
+	 * @param target the bytes being searched for
+	 * @param offset the offset to begin searching from
+	 * @param limit the offset to stop searching at, exclusive
+	 * @return the index of the target within the given source range, or {@code -1} for none
+	 */
+	static public int indexOf (final byte[] source, final byte[] target, final int offset, final int limit) throws NullPointerException, IllegalArgumentException {
+		if (offset < 0 | offset > limit | limit > source.length) throw new IllegalArgumentException();
+		if (offset == limit) return -1;
 		if (target.length == 0) return offset;
 
 		final byte first = target[0];
-		for (int index = offset, stop = source.length - target.length + 1; index < stop; ++index) {
+		for (int index = offset, stop = limit - target.length + 1; index < stop; ++index) {
 			if (source[index] != first) continue;
 			if (containsAt(source, target, index)) return index;
 		}
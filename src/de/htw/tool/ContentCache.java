@@ -0,0 +1,337 @@
+package de.htw.tool;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Instances of this class cache the content of small and frequently requested resources in memory, within a given byte budget.
+ * Whenever the budget is exceeded, the least recently used entries are evicted until the cached content fits the budget
+ * again. Entries may be associated with arbitrary keys, but file entries keyed by their path are validated against the file's
+ * modification time and size whenever they are requested after the validation interval has passed. Therefore, file entries
+ * requested within the validation interval are served without any system call, at the price of possibly serving stale
+ * content for at most the validation interval's duration. Note that cached content is shared, and must therefore never be
+ * modified.
+ */
+@Copyright(year = 2017, holders = "Sascha Baumeister")
+public class ContentCache {
+	static private final ContentCache DEFAULT = new ContentCache(0x2000000L, 0x40000, 1000);
+
+	private final long capacity;
+	private final int entryLimit;
+	private final long validationInterval;
+	private final Map<Object,Entry> entries;
+	private final LongAdder hitCount;
+	private final LongAdder missCount;
+	private long size;
+
+
+	/**
+	 * Creates a new instance.
+	 * @param capacity the maximum number of content bytes cached
+	 * @param entryLimit the maximum number of content bytes per entry, with larger content never being cached
+	 * @param validationInterval the interval in milliseconds after which file entries are validated against their file
+	 *        when requested, with {@code 0} causing validation upon every request
+	 * @throws IllegalArgumentException if any of the given arguments is negative
+	 */
+	public ContentCache (final long capacity, final int entryLimit, final long validationInterval) throws IllegalArgumentException {
+		if (capacity < 0 | entryLimit < 0 | validationInterval < 0) throw new IllegalArgumentException();
+
+		this.capacity = capacity;
+		this.entryLimit = entryLimit;
+		this.validationInterval = validationInterval;
+		this.entries = new LinkedHashMap<>(16, 0.75f, true);
+		this.hitCount = new LongAdder();
+		this.missCount = new LongAdder();
+	}
+
+
+	/**
+	 * Returns the default cache, which caches up to 32MiB of content in entries of up to 256KiB, and validates file entries
+	 * after one second.
+	 * @return the default cache
+	 */
+	static public ContentCache getDefault () {
+		return DEFAULT;
+	}
+
+
+	/**
+	 * Returns the maximum number of content bytes cached.
+	 * @return the capacity
+	 */
+	public long getCapacity () {
+		return this.capacity;
+	}
+
+
+	/**
+	 * Returns the maximum number of content bytes per entry.
+	 * @return the entry limit
+	 */
+	public int getEntryLimit () {
+		return this.entryLimit;
+	}
+
+
+	/**
+	 * Returns the interval in milliseconds after which file entries are validated against their file when requested.
+	 * @return the validation interval
+	 */
+	public long getValidationInterval () {
+		return this.validationInterval;
+	}
+
+
+	/**
+	 * Returns the number of content bytes currently cached.
+	 * @return the size
+	 */
+	public synchronized long getSize () {
+		return this.size;
+	}
+
+
+	/**
+	 * Returns the number of entries currently cached.
+	 * @return the entry count
+	 */
+	public synchronized int getEntryCount () {
+		return this.entries.size();
+	}
+
+
+	/**
+	 * Returns the number of requests served from a cached entry.
+	 * @return the hit count
+	 */
+	public long getHitCount () {
+		return this.hitCount.sum();
+	}
+
+
+	/**
+	 * Returns the number of requests that couldn't be served from a cached entry.
+	 * @return the miss count
+	 */
+	public long getMissCount () {
+		return this.missCount.sum();
+	}
+
+
+	/**
+	 * Returns the entry associated with the given key, and marks it as most recently used.
+	 * @param key the key
+	 * @return the entry, or {@code null} for none
+	 * @throws NullPointerException if the given key is {@code null}
+	 */
+	public Entry get (final Object key) throws NullPointerException {
+		if (key == null) throw new NullPointerException();
+
+		final Entry entry;
+		synchronized (this) {
+			entry = this.entries.get(key);
+		}
+
+		if (entry == null) {
+			this.missCount.increment();
+		} else {
+			this.hitCount.increment();
+		}
+		return entry;
+	}
+
+
+	/**
+	 * Returns the entry for the given file, loading the file's content if it is not cached yet, or if it's cached content has
+	 * become stale. Cached entries are validated against the file's modification time and size once the validation interval
+	 * has passed since their last validation. Files exceeding the entry limit are not cached, and neither are non-regular
+	 * files.
+	 * @param filePath the file path
+	 * @return the entry, or {@code null} if the given file is not a regular file, or exceeds the entry limit
+	 * @throws NullPointerException if the given file path is {@code null}
+	 * @throws NoSuchFileException if the given file doesn't exist
+	 * @throws IOException if there is an I/O related problem
+	 */
+	public Entry get (final Path filePath) throws NullPointerException, NoSuchFileException, IOException {
+		final Entry cachedEntry;
+		synchronized (this) {
+			cachedEntry = this.entries.get(filePath);
+		}
+
+		final long now = System.currentTimeMillis();
+		if (cachedEntry != null && now - cachedEntry.validated < this.validationInterval) {
+			this.hitCount.increment();
+			return cachedEntry;
+		}
+
+		final BasicFileAttributes attributes;
+		try {
+			attributes = Files.readAttributes(filePath, BasicFileAttributes.class);
+		} catch (final NoSuchFileException exception) {
+			this.remove(filePath);
+			throw exception;
+		}
+
+		final long lastModified = attributes.lastModifiedTime().toMillis();
+		if (cachedEntry != null && cachedEntry.lastModified == lastModified && cachedEntry.content.length == attributes.size()) {
+			cachedEntry.validated = now;
+			this.hitCount.increment();
+			return cachedEntry;
+		}
+
+		this.missCount.increment();
+		if (!attributes.isRegularFile() || attributes.size() > this.entryLimit) {
+			this.remove(filePath);
+			return null;
+		}
+
+		final Entry entry = new Entry(Files.readAllBytes(filePath), lastModified, now);
+		return this.put(filePath, entry) ? entry : null;
+	}
+
+
+	/**
+	 * Associates the given content with the given key, replacing any entry associated with it before. Content exceeding the
+	 * entry limit is not cached.
+	 * @param key the key
+	 * @param content the content, which must not be modified afterwards
+	 * @param lastModified the modification timestamp in milliseconds since 1970-01-01, or {@code -1} for unknown
+	 * @return the entry, or {@code null} if the given content exceeds the entry limit
+	 * @throws NullPointerException if any of the given arguments is {@code null}
+	 */
+	public Entry put (final Object key, final byte[] content, final long lastModified) throws NullPointerException {
+		if (key == null) throw new NullPointerException();
+
+		final Entry entry = new Entry(content, lastModified, System.currentTimeMillis());
+		return this.put(key, entry) ? entry : null;
+	}
+
+
+	/**
+	 * Associates the given entry with the given key, and evicts the least recently used entries until the cached content fits
+	 * the capacity again. Entries exceeding the entry limit or the capacity are not cached.
+	 * @param key the key
+	 * @param entry the entry
+	 * @return whether or not the entry has been cached
+	 */
+	private synchronized boolean put (final Object key, final Entry entry) {
+		if (entry.content.length > this.entryLimit | entry.content.length > this.capacity) {
+			this.remove(key);
+			return false;
+		}
+
+		final Entry replacedEntry = this.entries.put(key, entry);
+		if (replacedEntry != null) this.size -= replacedEntry.content.length;
+		this.size += entry.content.length;
+
+		for (final Iterator<Entry> iterator = this.entries.values().iterator(); this.size > this.capacity; ) {
+			this.size -= iterator.next().content.length;
+			iterator.remove();
+		}
+		return true;
+	}
+
+
+	/**
+	 * Removes the entry associated with the given key.
+	 * @param key the key
+	 * @return whether or not an entry has been removed
+	 */
+	public synchronized boolean remove (final Object key) {
+		final Entry entry = this.entries.remove(key);
+		if (entry != null) this.size -= entry.content.length;
+		return entry != null;
+	}
+
+
+	/**
+	 * Removes all entries.
+	 */
+	public synchronized void clear () {
+		this.entries.clear();
+		this.size = 0;
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized String toString () {
+		return String.format("%s(capacity=%d, size=%d, entryCount=%d)", this.getClass().getName(), this.capacity, this.size, this.entries.size());
+	}
+
+
+
+	/**
+	 * Instances of this class represent cached content, together with it's modification timestamp and entity tag.
+	 */
+	static public class Entry {
+		private final byte[] content;
+		private final long lastModified;
+		private volatile long validated;
+		private volatile String entityTag;
+
+
+		/**
+		 * Creates a new instance.
+		 * @param content the content
+		 * @param lastModified the modification timestamp in milliseconds since 1970-01-01, or {@code -1} for unknown
+		 * @param validated the validation timestamp in milliseconds since 1970-01-01
+		 * @throws NullPointerException if the given content is {@code null}
+		 */
+		private Entry (final byte[] content, final long lastModified, final long validated) throws NullPointerException {
+			if (content == null) throw new NullPointerException();
+
+			this.content = content;
+			this.lastModified = lastModified;
+			this.validated = validated;
+		}
+
+
+		/**
+		 * Returns the content. Note that the content is shared, and must therefore never be modified.
+		 * @return the content
+		 */
+		public byte[] getContent () {
+			return this.content;
+		}
+
+
+		/**
+		 * Returns the modification timestamp.
+		 * @return the modification timestamp in milliseconds since 1970-01-01, or {@code -1} for unknown
+		 */
+		public long getLastModified () {
+			return this.lastModified;
+		}
+
+
+		/**
+		 * Returns a strong HTTP entity tag derived from the content's SHA-256 digest, which is computed upon first request.
+		 * @return the quoted entity tag
+		 */
+		public String getEntityTag () {
+			if (this.entityTag == null) {
+				try {
+					final byte[] digest = MessageDigest.getInstance("SHA-256").digest(this.content);
+					this.entityTag = "\"" + Base64.getUrlEncoder().withoutPadding().encodeToString(digest) + "\"";
+				} catch (final NoSuchAlgorithmException exception) {
+					throw new AssertionError(exception);
+				}
+			}
+			return this.entityTag;
+		}
+	}
+}
@@ -1,16 +1,35 @@
 package de.htw.tool;
 
+import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.SocketException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 
@@ -23,9 +42,15 @@ import com.sun.net.httpserver.HttpHandler;
 public abstract class HttpFileHandler implements HttpHandler {
 	static private final short HTTP_OK = 200;
 	static private final short NO_CONTENT = 204;
+	static private final short HTTP_PARTIAL_CONTENT = 206;
+	static private final short HTTP_NOT_MODIFIED = 304;
 	static private final short HTTP_NOT_FOUND = 404;
 	static private final short HTTP_METHOD_NOT_ALLOWED = 405;
+	static private final short HTTP_RANGE_NOT_SATISFIABLE = 416;
+	static private final int MAX_RANGE_COUNT = 64;
 	static private Map<String,String> DEFAULT_CONTENT_TYPES = new HashMap<>();
+	static private Map<String,String> DEFAULT_CACHE_CONTROLS = new HashMap<>();
+	static private final String DEFAULT_CACHE_CONTROL = "no-cache";
 
 
 	static {
@@ -56,11 +81,31 @@ public abstract class HttpFileHandler implements HttpHandler {
 		DEFAULT_CONTENT_TYPES.put("flv", "video/x-flv");
 		DEFAULT_CONTENT_TYPES.put("qt", "video/quicktime");
 		DEFAULT_CONTENT_TYPES.put("mov", "video/quicktime");
+
+		DEFAULT_CACHE_CONTROLS.put("application/xhtml+xml", "no-cache");
+		DEFAULT_CACHE_CONTROLS.put("text/html", "no-cache");
+		DEFAULT_CACHE_CONTROLS.put("text/javascript", "public, max-age=3600");
+		DEFAULT_CACHE_CONTROLS.put("text/css", "public, max-age=3600");
+		DEFAULT_CACHE_CONTROLS.put("image/jpeg", "public, max-age=86400");
+		DEFAULT_CACHE_CONTROLS.put("image/gif", "public, max-age=86400");
+		DEFAULT_CACHE_CONTROLS.put("image/png", "public, max-age=86400");
+		DEFAULT_CACHE_CONTROLS.put("image/svg+xml", "public, max-age=86400");
+		DEFAULT_CACHE_CONTROLS.put("audio/wav", "public, max-age=86400");
+		DEFAULT_CACHE_CONTROLS.put("audio/mp3", "public, max-age=86400");
+		DEFAULT_CACHE_CONTROLS.put("audio/ogg", "public, max-age=86400");
+		DEFAULT_CACHE_CONTROLS.put("video/mp4", "public, max-age=86400");
+		DEFAULT_CACHE_CONTROLS.put("video/mpeg", "public, max-age=86400");
+		DEFAULT_CACHE_CONTROLS.put("video/webm", "public, max-age=86400");
+		DEFAULT_CACHE_CONTROLS.put("video/x-flv", "public, max-age=86400");
+		DEFAULT_CACHE_CONTROLS.put("video/quicktime", "public, max-age=86400");
 	}
 
 
 	private final String contextPath;
 	private final Map<String,String> contentTypes;
+	private final Map<String,String> cacheControls;
+	private volatile ContentCache contentCache;
+	private volatile MappingCache mappingCache;
 
 
 	/**
@@ -75,6 +120,9 @@ public abstract class HttpFileHandler implements HttpHandler {
 
 		this.contextPath = contextPath;
 		this.contentTypes = Collections.synchronizedMap(new HashMap<>(DEFAULT_CONTENT_TYPES));
+		this.cacheControls = Collections.synchronizedMap(new HashMap<>(DEFAULT_CACHE_CONTROLS));
+		this.contentCache = ContentCache.getDefault();
+		this.mappingCache = MappingCache.getDefault();
 	}
 
 
@@ -97,6 +145,55 @@ public abstract class HttpFileHandler implements HttpHandler {
 	}
 
 
+	/**
+	 * Returns the handler's life (and synchronized) cache control mappings, which associate content types with the value of
+	 * the "Cache-Control" response header. Content types without a mapping use "no-cache", which allows clients to cache
+	 * resources as long as they revalidate them upon every use.
+	 * @return the cache control mappings
+	 */
+	public Map<String,String> getCacheControls () {
+		return this.cacheControls;
+	}
+
+
+	/**
+	 * Returns the cache serving small resources from memory. Note that all handlers share the default cache unless told
+	 * otherwise.
+	 * @return the content cache, or {@code null} for none
+	 */
+	public ContentCache getContentCache () {
+		return this.contentCache;
+	}
+
+
+	/**
+	 * Sets the cache serving small resources from memory.
+	 * @param contentCache the content cache, or {@code null} for none
+	 */
+	public void setContentCache (final ContentCache contentCache) {
+		this.contentCache = contentCache;
+	}
+
+
+	/**
+	 * Returns the cache sharing memory mappings of large files. Note that all handlers share the default cache unless told
+	 * otherwise, and that only handlers serving file system resources use it.
+	 * @return the mapping cache, or {@code null} for none
+	 */
+	public MappingCache getMappingCache () {
+		return this.mappingCache;
+	}
+
+
+	/**
+	 * Sets the cache sharing memory mappings of large files.
+	 * @param mappingCache the mapping cache, or {@code null} for none
+	 */
+	public void setMappingCache (final MappingCache mappingCache) {
+		this.mappingCache = mappingCache;
+	}
+
+
 	/**
 	 * Handles the given HTTP exchange by copying the content of it's request path to it's response. Only GET requests are
 	 * supported. The request path is interpreted to be relative to the handler's context directory, all path's outside of this
@@ -104,8 +201,13 @@ public abstract class HttpFileHandler implements HttpHandler {
 	 * <ul>
 	 * <li>200 OK: if the operation is successful.</li>
 	 * <li>204 OK: if the operation is successful, but the resource size is zero.</li>
+	 * <li>206 PARTIAL CONTENT: if the operation is successful, and the request's "Range" header selects parts of a file system
+	 * resource.</li>
+	 * <li>304 NOT MODIFIED: if the request's "If-None-Match" or "If-Modified-Since" header indicates that the client's copy
+	 * of the resource is still current.</li>
 	 * <li>404 NOT FOUND: if the requested resource could not be found.</li>
 	 * <li>405 METHOD NOT ALLOWED: if the request method is not GET.</li>
+	 * <li>416 RANGE NOT SATISFIABLE: if none of the ranges requested lies within a file system resource.</li>
 	 * <li>500 INTERNAL SERVER ERROR: if this handler was not properly registered.</li>
 	 * </ul>
 	 * @param exchange the HTTP exchange
@@ -157,6 +259,225 @@ public abstract class HttpFileHandler implements HttpHandler {
 	public abstract void handle (final HttpExchange exchange, final String resourcePath) throws NullPointerException, IOException;
 
 
+	/**
+	 * Sets the given exchange's "ETag", "Last-Modified" and "Cache-Control" response headers, and evaluates the request's
+	 * "If-None-Match" and "If-Modified-Since" headers against the given validators. If these indicate that the client's copy
+	 * of the resource is still current, the response headers are sent with code 304. Note that "If-Modified-Since" is ignored
+	 * if "If-None-Match" is present, and that invalid dates are ignored as well.
+	 * @param exchange the HTTP exchange
+	 * @param entityTag the quoted entity tag, or {@code null} for none
+	 * @param lastModified the modification timestamp in milliseconds since 1970-01-01, or {@code -1} for unknown
+	 * @return whether or not the response headers have been sent with code 304
+	 * @throws NullPointerException if the given exchange is {@code null}
+	 * @throws IOException if there is an I/O related problem
+	 */
+	protected boolean sendNotModified (final HttpExchange exchange, final String entityTag, final long lastModified) throws NullPointerException, IOException {
+		final String contentType = exchange.getResponseHeaders().getFirst("Content-Type");
+		exchange.getResponseHeaders().set("Cache-Control", contentType == null ? DEFAULT_CACHE_CONTROL : this.cacheControls.getOrDefault(contentType, DEFAULT_CACHE_CONTROL));
+		if (entityTag != null) exchange.getResponseHeaders().set("ETag", entityTag);
+		if (lastModified >= 0) exchange.getResponseHeaders().set("Last-Modified", DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(lastModified).atZone(ZoneOffset.UTC)));
+
+		final String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+		final String ifModifiedSince = exchange.getRequestHeaders().getFirst("If-Modified-Since");
+		boolean notModified = false;
+		if (ifNoneMatch != null) {
+			if (entityTag != null) {
+				for (final String requestTag : ifNoneMatch.split(",")) {
+					final String tag = requestTag.trim();
+					notModified |= tag.equals("*") || (tag.startsWith("W/") ? tag.substring(2) : tag).equals(entityTag);
+				}
+			}
+		} else if (ifModifiedSince != null & lastModified >= 0) {
+			try {
+				final long since = ZonedDateTime.parse(ifModifiedSince.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+				notModified = lastModified / 1000 <= since / 1000;
+			} catch (final DateTimeParseException exception) {
+				// ignore invalid dates as demanded by RFC 7232
+			}
+		}
+
+		if (notModified) exchange.sendResponseHeaders(HTTP_NOT_MODIFIED, -1);
+		return notModified;
+	}
+
+
+	/**
+	 * Returns a strong entity tag derived from the given file modification timestamp and size.
+	 * @param lastModified the modification timestamp in milliseconds since 1970-01-01
+	 * @param fileSize the file size
+	 * @return the quoted entity tag
+	 */
+	static private String entityTag (final long lastModified, final long fileSize) {
+		return "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(fileSize) + "\"";
+	}
+
+
+	/**
+	 * Returns the byte ranges selected by the request's "Range" header for content of the given length, as pairs of inclusive
+	 * first and last positions sorted by the former, with overlapping or adjacent ranges coalesced. The header is ignored
+	 * if it is syntactically invalid, if it requests more than {@value #MAX_RANGE_COUNT} ranges, if the content is empty,
+	 * or if the request's "If-Range" header doesn't match the given validators; an entity tag matches if it is strongly
+	 * equal to the given one, and a date matches if it is equal to the given modification timestamp.
+	 * @param exchange the HTTP exchange
+	 * @param contentLength the content length
+	 * @param entityTag the quoted entity tag, or {@code null} for none
+	 * @param lastModified the modification timestamp in milliseconds since 1970-01-01, or {@code -1} for unknown
+	 * @return the satisfiable ranges, which may be empty, or {@code null} if the full content is to be sent
+	 * @throws NullPointerException if the given exchange is {@code null}
+	 */
+	static private List<long[]> ranges (final HttpExchange exchange, final long contentLength, final String entityTag, final long lastModified) throws NullPointerException {
+		final String range = exchange.getRequestHeaders().getFirst("Range");
+		if (range == null || contentLength == 0 || !range.regionMatches(true, 0, "bytes=", 0, 6)) return null;
+
+		final String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+		if (ifRange != null) {
+			if (ifRange.trim().startsWith("\"") | ifRange.trim().startsWith("W/")) {
+				if (!ifRange.trim().equals(entityTag)) return null;
+			} else {
+				try {
+					final long since = ZonedDateTime.parse(ifRange.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+					if (lastModified < 0 || lastModified / 1000 != since / 1000) return null;
+				} catch (final DateTimeParseException exception) {
+					return null;
+				}
+			}
+		}
+
+		final String[] specs = range.substring(6).split(",");
+		if (specs.length > MAX_RANGE_COUNT) return null;
+
+		final List<long[]> ranges = new ArrayList<>();
+		try {
+			for (final String spec : specs) {
+				final int separatorOffset = spec.indexOf('-');
+				if (separatorOffset == -1) return null;
+				final String first = spec.substring(0, separatorOffset).trim(), last = spec.substring(separatorOffset + 1).trim();
+
+				if (first.isEmpty()) {
+					final long suffixLength = Long.parseLong(last);
+					if (suffixLength < 0) return null;
+					if (suffixLength > 0) ranges.add(new long[] { Math.max(0, contentLength - suffixLength), contentLength - 1 });
+				} else {
+					final long firstPosition = Long.parseLong(first), lastPosition = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+					if (firstPosition < 0 | lastPosition < firstPosition) return null;
+					if (firstPosition < contentLength) ranges.add(new long[] { firstPosition, Math.min(lastPosition, contentLength - 1) });
+				}
+			}
+		} catch (final NumberFormatException exception) {
+			return null;
+		}
+
+		ranges.sort(Comparator.comparingLong(element -> element[0]));
+		for (int index = 1; index < ranges.size(); ++index) {
+			final long[] previous = ranges.get(index - 1), current = ranges.get(index);
+			if (current[0] <= previous[1] + 1) {
+				previous[1] = Math.max(previous[1], current[1]);
+				ranges.remove(index--);
+			}
+		}
+		return ranges;
+	}
+
+
+	/**
+	 * Sends content of the given length as the given exchange's response, including the response headers. Honors the request's
+	 * "Range" and "If-Range" headers, and therefore sends either the full content, a single range of it, or multiple ranges
+	 * as a "multipart/byteranges" entity. The given transfer is invoked once per range sent, and allows the content to be read
+	 * using positional reads that only cost the range's I/O.
+	 * @param exchange the HTTP exchange
+	 * @param contentLength the content length
+	 * @param entityTag the quoted entity tag, or {@code null} for none
+	 * @param lastModified the modification timestamp in milliseconds since 1970-01-01, or {@code -1} for unknown
+	 * @param transfer the transfer of a content range to the response body
+	 * @throws NullPointerException if any of the given arguments except the entity tag is {@code null}
+	 * @throws IOException if there is an I/O related problem
+	 */
+	static private void send (final HttpExchange exchange, final long contentLength, final String entityTag, final long lastModified, final RangeTransfer transfer) throws NullPointerException, IOException {
+		exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+		final List<long[]> ranges = ranges(exchange, contentLength, entityTag, lastModified);
+
+		if (ranges == null) {
+			exchange.sendResponseHeaders(contentLength > 0 ? HTTP_OK : NO_CONTENT, contentLength);
+			transfer.transfer(0, contentLength, exchange.getResponseBody());
+		} else if (ranges.isEmpty()) {
+			exchange.getResponseHeaders().set("Content-Range", "bytes */" + contentLength);
+			exchange.sendResponseHeaders(HTTP_RANGE_NOT_SATISFIABLE, -1);
+		} else if (ranges.size() == 1) {
+			final long[] range = ranges.get(0);
+			exchange.getResponseHeaders().set("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + contentLength);
+			exchange.sendResponseHeaders(HTTP_PARTIAL_CONTENT, range[1] - range[0] + 1);
+			transfer.transfer(range[0], range[1] - range[0] + 1, exchange.getResponseBody());
+		} else {
+			final String contentType = exchange.getResponseHeaders().getFirst("Content-Type");
+			final String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong()) + Long.toHexString(ThreadLocalRandom.current().nextLong());
+			final byte[][] partHeaders = new byte[ranges.size()][];
+			final byte[] trailer = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+
+			long multipartLength = trailer.length;
+			for (int index = 0; index < ranges.size(); ++index) {
+				final long[] range = ranges.get(index);
+				final String partHeader = "\r\n--" + boundary + "\r\nContent-Type: " + contentType + "\r\nContent-Range: bytes " + range[0] + "-" + range[1] + "/" + contentLength + "\r\n\r\n";
+				partHeaders[index] = partHeader.getBytes(StandardCharsets.US_ASCII);
+				multipartLength += partHeaders[index].length + range[1] - range[0] + 1;
+			}
+
+			exchange.getResponseHeaders().set("Content-Type", "multipart/byteranges; boundary=" + boundary);
+			exchange.sendResponseHeaders(HTTP_PARTIAL_CONTENT, multipartLength);
+			try {
+				for (int index = 0; index < ranges.size(); ++index) {
+					final long[] range = ranges.get(index);
+					exchange.getResponseBody().write(partHeaders[index]);
+					transfer.transfer(range[0], range[1] - range[0] + 1, exchange.getResponseBody());
+				}
+				exchange.getResponseBody().write(trailer);
+			} catch (final EOFException | SocketException exception) {
+				// treat as EOF because a TCP stream has been closed asynchronously
+			}
+		}
+	}
+
+
+	/**
+	 * Sends the given content as the given exchange's response, including the response headers.
+	 * @param exchange the HTTP exchange
+	 * @param content the content
+	 * @throws NullPointerException if any of the given arguments is {@code null}
+	 * @throws IOException if there is an I/O related problem
+	 */
+	static private void send (final HttpExchange exchange, final byte[] content) throws IOException {
+		exchange.sendResponseHeaders(content.length > 0 ? HTTP_OK : NO_CONTENT, content.length);
+
+		try {
+			exchange.getResponseBody().write(content);
+		} catch (final EOFException | SocketException exception) {
+			// treat as EOF because a TCP stream has been closed asynchronously
+		}
+	}
+
+
+	/**
+	 * Reads bytes from the given byte source until either the given number of bytes has been read, or the source's end has
+	 * been reached. Closes the byte source in neither case.
+	 * @param byteSource the byte source
+	 * @param limit the maximum number of bytes to read
+	 * @return the bytes read
+	 * @throws NullPointerException if the given byte source is {@code null}
+	 * @throws IOException if there is an I/O related problem
+	 */
+	static private byte[] read (final InputStream byteSource, final long limit) throws IOException {
+		final ByteArrayOutputStream byteSink = new ByteArrayOutputStream();
+		final byte[] buffer = BufferPool.getDefault().acquireArray(0x10000);
+		try {
+			for (int bytesRead = 0; byteSink.size() < limit & bytesRead != -1; bytesRead = byteSource.read(buffer, 0, (int) Math.min(buffer.length, limit - byteSink.size()))) {
+				byteSink.write(buffer, 0, bytesRead);
+			}
+		} finally {
+			BufferPool.getDefault().release(buffer);
+		}
+		return byteSink.toByteArray();
+	}
+
+
 	/**
 	 * Reads all remaining bytes from the given byte source, and writes them to the given byte sink. Returns the number of bytes
 	 * copied, and closes neither source nor sink. Note that {@link SocketException} is treated as a kind of EOF due to to other
@@ -169,13 +490,103 @@ public abstract class HttpFileHandler implements HttpHandler {
 	 * @throws IOException if there is an I/O related problem
 	 */
 	static private void copy (final InputStream byteSource, final OutputStream byteSink) throws IOException {
+		final byte[] buffer = BufferPool.getDefault().acquireArray(0x10000);
 		try {
-			final byte[] buffer = new byte[0x10000];
 			for (int bytesRead = byteSource.read(buffer); bytesRead != -1; bytesRead = byteSource.read(buffer)) {
 				byteSink.write(buffer, 0, bytesRead);
 			}
 		} catch (final EOFException | SocketException exception) {
 			// treat as EOF because a TCP stream has been closed asynchronously
+		} finally {
+			BufferPool.getDefault().release(buffer);
+		}
+	}
+
+
+	/**
+	 * Transfers the given number of bytes starting at the given position from the given file source to the given byte sink,
+	 * using positional reads that neither depend on nor modify the source's position, and closes neither source nor sink. If
+	 * the byte sink is a channel as well, the bytes are transferred using {@link FileChannel#transferTo}, which allows the
+	 * operating system to move them from it's file cache directly into sockets and files, without copying them into the VM.
+	 * Any bytes remaining afterwards, and all bytes for byte sinks that are plain streams, are copied through a pooled direct
+	 * buffer, which unlike heap buffers doesn't require the VM to cache a temporary direct buffer per thread. Note that
+	 * {@link SocketException} is treated as a kind of EOF due to to other side terminating the stream.
+	 * @param fileSource the file source
+	 * @param position the source position
+	 * @param length the number of bytes to transfer, which is truncated to the file size
+	 * @param byteSink the byte sink
+	 * @throws NullPointerException if any of the given arguments is {@code null}
+	 * @throws IOException if there is an I/O related problem
+	 */
+	static private void transfer (final FileChannel fileSource, long position, final long length, final OutputStream byteSink) throws IOException {
+		final long limit = position + length;
+
+		try {
+			if (byteSink instanceof WritableByteChannel) {
+				for (long bytesTransferred = 1; position < limit & bytesTransferred > 0; position += bytesTransferred) {
+					bytesTransferred = fileSource.transferTo(position, limit - position, (WritableByteChannel) byteSink);
+				}
+			}
+
+			final ByteBuffer buffer = BufferPool.getDefault().acquireBuffer(0x10000, true);
+			final byte[] array = byteSink instanceof WritableByteChannel ? null : BufferPool.getDefault().acquireArray(0x10000);
+			try {
+				while (position < limit) {
+					buffer.limit((int) Math.min(buffer.capacity(), limit - position));
+					final int bytesRead = fileSource.read(buffer, position);
+					if (bytesRead == -1) break;
+					position += bytesRead;
+
+					buffer.flip();
+					if (array == null) {
+						while (buffer.hasRemaining()) {
+							((WritableByteChannel) byteSink).write(buffer);
+						}
+					} else {
+						buffer.get(array, 0, bytesRead);
+						byteSink.write(array, 0, bytesRead);
+					}
+					buffer.clear();
+				}
+			} finally {
+				BufferPool.getDefault().release(buffer);
+				if (array != null) BufferPool.getDefault().release(array);
+			}
+		} catch (final EOFException | SocketException exception) {
+			// treat as EOF because a TCP stream has been closed asynchronously
+		}
+	}
+
+
+	/**
+	 * Transfers all remaining bytes from the given buffer to the given byte sink, without closing the latter. If the byte sink is
+	 * a channel as well, the bytes are written to it directly, otherwise they are copied through a pooled array. Note that
+	 * {@link SocketException} is treated as a kind of EOF due to to other side terminating the stream.
+	 * @param buffer the buffer
+	 * @param byteSink the byte sink
+	 * @throws NullPointerException if any of the given arguments is {@code null}
+	 * @throws IOException if there is an I/O related problem
+	 */
+	static private void transfer (final ByteBuffer buffer, final OutputStream byteSink) throws IOException {
+		try {
+			if (byteSink instanceof WritableByteChannel) {
+				while (buffer.hasRemaining()) {
+					((WritableByteChannel) byteSink).write(buffer);
+				}
+			} else {
+				final byte[] array = BufferPool.getDefault().acquireArray(0x10000);
+				try {
+					while (buffer.hasRemaining()) {
+						final int length = Math.min(array.length, buffer.remaining());
+						buffer.get(array, 0, length);
+						byteSink.write(array, 0, length);
+					}
+				} finally {
+					BufferPool.getDefault().release(array);
+				}
+			}
+		} catch (final EOFException | SocketException exception) {
+			// treat as EOF because a TCP stream has been closed asynchronously
 		}
 	}
 
@@ -204,11 +615,31 @@ public abstract class HttpFileHandler implements HttpHandler {
 
 
 
+	/**
+	 * Transfers content ranges to a byte sink.
+	 */
+	@FunctionalInterface
+	static private interface RangeTransfer {
+
+		/**
+		 * Transfers the given number of content bytes starting at the given position to the given byte sink.
+		 * @param position the content position
+		 * @param length the number of bytes to transfer
+		 * @param byteSink the byte sink
+		 * @throws IOException if there is an I/O related problem
+		 */
+		void transfer (long position, long length, OutputStream byteSink) throws IOException;
+	}
+
+
+
 	/**
 	 * HTTP file handlers that provide HTTP access to basic web resources contained within any JAR-file and project within the
 	 * current class-path.
 	 */
 	static private class HttpFileModuleHandler extends HttpFileHandler {
+		static private final Map<ClassLoader,Object> CLASS_LOADER_KEYS = new WeakHashMap<>();
+
 
 		/**
 		 * Creates a new instance.
@@ -227,10 +658,47 @@ public abstract class HttpFileHandler implements HttpHandler {
 		 * @throws IOException if there {@inheritDoc}
 		 */
 		public void handle (final HttpExchange exchange, final String resourcePath) throws NullPointerException, IllegalArgumentException, IOException {
-			try (InputStream fileSource = Thread.currentThread().getContextClassLoader().getResourceAsStream(resourcePath)) {
-				if (fileSource == null) throw new NoSuchFileException(resourcePath);
-				exchange.sendResponseHeaders(HTTP_OK, 0);
-				copy(fileSource, exchange.getResponseBody());
+			final ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+			final ContentCache contentCache = this.getContentCache();
+			final Object cacheKey = new SimpleImmutableEntry<>(classLoaderKey(classLoader), resourcePath);
+			final ContentCache.Entry cacheEntry = contentCache == null ? null : contentCache.get(cacheKey);
+			if (cacheEntry != null) {
+				if (!this.sendNotModified(exchange, cacheEntry.getEntityTag(), cacheEntry.getLastModified())) send(exchange, cacheEntry.getContent());
+				return;
+			}
+
+			final URL resource = classLoader.getResource(resourcePath);
+			if (resource == null) throw new NoSuchFileException(resourcePath);
+			final URLConnection connection = resource.openConnection();
+
+			// resources fitting the cache's entry limit are cached, larger ones are streamed; resources of
+			// unknown size are read up to the entry limit, while larger known sizes are streamed right away
+			final long contentLength = connection.getContentLengthLong();
+			try (InputStream fileSource = connection.getInputStream()) {
+				final boolean cacheable = contentCache != null && contentLength <= contentCache.getEntryLimit();
+				final byte[] content = cacheable ? read(fileSource, contentCache.getEntryLimit() + 1L) : new byte[0];
+				final ContentCache.Entry entry = cacheable && content.length <= contentCache.getEntryLimit() ? contentCache.put(cacheKey, content, -1) : null;
+				if (entry != null) {
+					if (!this.sendNotModified(exchange, entry.getEntityTag(), entry.getLastModified())) send(exchange, content);
+				} else {
+					this.sendNotModified(exchange, null, -1);
+					exchange.sendResponseHeaders(HTTP_OK, 0);
+					exchange.getResponseBody().write(content);
+					copy(fileSource, exchange.getResponseBody());
+				}
+			}
+		}
+
+
+		/**
+		 * Returns a key object representing the given class loader within cache keys. Unlike the class loader itself, the key
+		 * object does not prevent the class loader from being garbage collected while entries keyed by it are cached.
+		 * @param classLoader the class loader
+		 * @return the key object
+		 */
+		static private Object classLoaderKey (final ClassLoader classLoader) {
+			synchronized (CLASS_LOADER_KEYS) {
+				return CLASS_LOADER_KEYS.computeIfAbsent(classLoader, key -> new Object());
 			}
 		}
 
@@ -275,12 +743,39 @@ public abstract class HttpFileHandler implements HttpHandler {
 		 */
 		public void handle (final HttpExchange exchange, final String resourcePath) throws NullPointerException, IOException {
 			final Path filePath = this.resourceDirectory.resolve(resourcePath);
-			final long fileSize = Files.size(filePath);
+			final ContentCache contentCache = this.getContentCache();
+			final ContentCache.Entry cacheEntry = contentCache == null ? null : contentCache.get(filePath);
+			if (cacheEntry != null) {
+				final byte[] content = cacheEntry.getContent();
+				if (!this.sendNotModified(exchange, cacheEntry.getEntityTag(), cacheEntry.getLastModified())) {
+					send(exchange, content.length, cacheEntry.getEntityTag(), cacheEntry.getLastModified(), (position, length, byteSink) -> transfer(ByteBuffer.wrap(content, (int) position, (int) length), byteSink));
+				}
+				return;
+			}
+
+			// large files are served from memory mappings shared by concurrent transfers
+			final MappingCache mappingCache = this.getMappingCache();
+			try (MappingCache.Mapping mapping = mappingCache == null ? null : mappingCache.acquire(filePath)) {
+				if (mapping != null) {
+					final ByteBuffer content = mapping.getContent();
+					final String entityTag = entityTag(mapping.getLastModified(), content.capacity());
+					if (!this.sendNotModified(exchange, entityTag, mapping.getLastModified())) {
+						send(exchange, content.capacity(), entityTag, mapping.getLastModified(), (position, length, byteSink) -> {
+							content.limit((int) (position + length)).position((int) position);
+							transfer(content, byteSink);
+						});
+					}
+					return;
+				}
+			}
+
+			try (FileChannel fileSource = FileChannel.open(filePath, StandardOpenOption.READ)) {
+				final long fileSize = fileSource.size();
+				final long lastModified = Files.getLastModifiedTime(filePath).toMillis();
+				final String entityTag = entityTag(lastModified, fileSize);
+				if (this.sendNotModified(exchange, entityTag, lastModified)) return;
 
-			try (InputStream fileSource = Files.newInputStream(filePath)) {
-				if (fileSource == null) throw new NoSuchFileException(filePath.toString());
-				exchange.sendResponseHeaders(fileSize > 0 ? HTTP_OK : NO_CONTENT, fileSize);
-				copy(fileSource, exchange.getResponseBody());
+				send(exchange, fileSize, entityTag, lastModified, (position, length, byteSink) -> transfer(fileSource, position, length, byteSink));
 			}
 		}
 
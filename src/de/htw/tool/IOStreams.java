@@ -9,6 +9,10 @@ import java.io.Reader;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.FileSystem;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -48,16 +52,18 @@ public class IOStreams {
 	 */
 	static public long copy (final InputStream byteSource, final OutputStream byteSink, final int bufferSize) throws IOException {
 		if (bufferSize <= 0) throw new IllegalArgumentException();
-		final byte[] buffer = new byte[bufferSize];
+		final byte[] buffer = BufferPool.getDefault().acquireArray(bufferSize);
 
 		long bytesCopied = 0;
 		try {
-			for (int bytesRead = byteSource.read(buffer); bytesRead != -1; bytesRead = byteSource.read(buffer)) {
+			for (int bytesRead = byteSource.read(buffer, 0, bufferSize); bytesRead != -1; bytesRead = byteSource.read(buffer, 0, bufferSize)) {
 				byteSink.write(buffer, 0, bytesRead);
 				bytesCopied += bytesRead;
 			}
 		} catch (final SocketException exception) {
 			// treat as EOF because a TCP stream has been closed by the other side
+		} finally {
+			BufferPool.getDefault().release(buffer);
 		}
 		return bytesCopied;
 	}
@@ -92,6 +98,41 @@ public class IOStreams {
 	}
 
 
+	/**
+	 * Reads all remaining bytes from the given byte source channel, and writes them to the given byte sink channel. Returns the
+	 * number of bytes copied, and closes neither source nor sink. Note that the given buffer is used for all transfers, which
+	 * allows callers to reuse (direct) buffers instead of allocating new ones for every copy operation. Also note that
+	 * {@link SocketException} and {@link ClosedChannelException} are treated as a kind of EOF due to to other side terminating
+	 * the stream, or due to the channels being closed asynchronously.
+	 * @param byteSource the byte source
+	 * @param byteSink the byte sink
+	 * @param buffer the transfer buffer
+	 * @return the number of bytes copied
+	 * @throws NullPointerException if any of the given arguments is {@code null}
+	 * @throws IllegalArgumentException if the given buffer has no capacity
+	 * @throws IOException if there is an I/O related problem
+	 */
+	static public long copy (final ReadableByteChannel byteSource, final WritableByteChannel byteSink, final ByteBuffer buffer) throws IOException {
+		if (buffer.capacity() == 0) throw new IllegalArgumentException();
+		buffer.clear();
+
+		long bytesCopied = 0;
+		try {
+			for (int bytesRead = byteSource.read(buffer); bytesRead != -1; bytesRead = byteSource.read(buffer)) {
+				buffer.flip();
+				while (buffer.hasRemaining()) {
+					byteSink.write(buffer);
+				}
+				buffer.clear();
+				bytesCopied += bytesRead;
+			}
+		} catch (final SocketException | ClosedChannelException exception) {
+			// treat as EOF because a TCP stream has been closed by the other side, or asynchronously
+		}
+		return bytesCopied;
+	}
+
+
 	/**
 	 * Reads all remaining bytes from the given byte source, and returns them as a byte array.
 	 * @param byteSource the byte source
@@ -214,6 +255,75 @@ public class IOStreams {
 	}
 
 
+	/**
+	 * Returns a new blocking channel based on a collection of byte sink channels, each written in parallel. Note that each
+	 * write operation writes the buffer content completely to each byte sink, which implies the latter must not be
+	 * non-blocking.
+	 * @param byteSinks the byte sinks
+	 * @return the multi channel created
+	 */
+	static public WritableByteChannel newMultiChannel (final WritableByteChannel... byteSinks) {
+		return new WritableByteChannel() {
+			@Override
+			public synchronized boolean isOpen () {
+				for (final WritableByteChannel byteSink : byteSinks) {
+					if (!byteSink.isOpen()) return false;
+				}
+				return true;
+			}
+
+			@Override
+			public synchronized void close () throws IOException {
+				Throwable exception = null;
+
+				for (final WritableByteChannel byteSink : byteSinks) {
+					try {
+						byteSink.close();
+					} catch (final Throwable e) {
+						exception = e;
+					}
+				}
+
+				if (exception == null) return;
+				if (exception instanceof Error) throw (Error) exception;
+				if (exception instanceof RuntimeException) throw (RuntimeException) exception;
+				if (exception instanceof IOException) throw (IOException) exception;
+				throw new AssertionError();
+			}
+
+			@Override
+			public int write (final ByteBuffer buffer) throws IOException {
+				if (byteSinks.length == 0) throw new EOFException();
+
+				final int position = buffer.position();
+				for (final WritableByteChannel byteSink : byteSinks) {
+					buffer.position(position);
+					while (buffer.hasRemaining()) {
+						byteSink.write(buffer);
+					}
+				}
+				return buffer.position() - position;
+			}
+		};
+	}
+
+
+	/**
+	 * Returns a new output stream that writes the given primary byte sink synchronously, and the given secondary byte sink
+	 * asynchronously through a ring of it's own. This keeps a slow secondary sink from slowing down the primary one.
+	 * @param primarySink the primary byte sink
+	 * @param secondarySink the secondary byte sink
+	 * @param capacity the maximum number of chunks buffered for the secondary sink, each holding up to 64KiB
+	 * @param overflowPolicy the policy applied once the capacity is exhausted
+	 * @return the tee output stream created
+	 * @throws NullPointerException if any of the given arguments is {@code null}
+	 * @throws IllegalArgumentException if the given capacity is not strictly positive
+	 */
+	static public TeeOutputStream newTeeOutputStream (final OutputStream primarySink, final OutputStream secondarySink, final int capacity, final TeeOutputStream.OverflowPolicy overflowPolicy) {
+		return new TeeOutputStream(primarySink, secondarySink, new TeeOutputStream.Ring(capacity, overflowPolicy, null));
+	}
+
+
 	/**
 	 * Returns a new output stream based on a collection of byte sinks, each written in parallel.
 	 * @param byteSinks the byte sinks
@@ -52,13 +52,15 @@ public class JarFileLoader extends ClassLoader {
 		if (jarEntry.getSize() > Integer.MAX_VALUE) throw new ClassFormatError(name + " too large.");
 
 		final ByteArrayOutputStream byteSink = new ByteArrayOutputStream((int) jarEntry.getSize());
+		final byte[] buffer = BufferPool.getDefault().acquireArray(0x10000);
 		try (InputStream byteSource = this.jarFile.getInputStream(jarEntry)) {
-			final byte[] buffer = new byte[0x10000];
 			for (int bytesRead = byteSource.read(buffer); bytesRead != -1; bytesRead = byteSource.read(buffer)) {
 				byteSink.write(buffer, 0, bytesRead);
 			}
 		} catch (final IOException exception) {
 			throw new ClassFormatError(name + " is broken.");
+		} finally {
+			BufferPool.getDefault().release(buffer);
 		}
 
 		final byte[] classBytes = byteSink.toByteArray();
@@ -0,0 +1,389 @@
+package de.htw.tool;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Instances of this class share read-only memory mappings of large files, which allows concurrent transfers of the same file to
+ * share a single mapping, and therefore the operating system's page cache, instead of reading the file on every request. The
+ * number of bytes mapped is bounded by a given capacity, with the least recently used mappings being evicted once it is
+ * exceeded. Cached mappings are validated against their file's modification time and size whenever they are acquired after
+ * the validation interval has passed, and replaced if their file has changed.<br />
+ * Mappings are reference counted: the cache holds one reference for as long as a mapping is cached, and every acquisition
+ * holds another one until the mapping is closed. A mapping is unmapped once it's last reference is released, which implies
+ * that evicted or replaced mappings stay valid until all transfers using them have completed. Note that unmapping requires a
+ * Java 9+ runtime; older runtimes leave unreferenced mappings to the garbage collector. Also note that files truncated while
+ * being mapped may still cause the VM to fail accessing the missing pages, which cannot be prevented by any cache.
+ */
+@Copyright(year = 2017, holders = "Sascha Baumeister")
+public class MappingCache {
+	static private final MethodHandle INVOKE_CLEANER = invokeCleanerHandle();
+	static private final MappingCache DEFAULT = new MappingCache(0x100000L, 0x400000000L, 1000);
+
+	private final long threshold;
+	private final long capacity;
+	private final long validationInterval;
+	private final Map<Path,Mapping> mappings;
+	private final Map<Path,Future<Mapping>> pendingMappings;
+	private long size;
+
+
+	/**
+	 * Creates a new instance.
+	 * @param threshold the minimum size of files to be mapped
+	 * @param capacity the maximum number of bytes mapped by cached mappings
+	 * @param validationInterval the interval in milliseconds after which cached mappings are validated against their file
+	 *        when acquired, with {@code 0} causing validation upon every acquisition
+	 * @throws IllegalArgumentException if any of the given arguments is negative
+	 */
+	public MappingCache (final long threshold, final long capacity, final long validationInterval) throws IllegalArgumentException {
+		if (threshold < 0 | capacity < 0 | validationInterval < 0) throw new IllegalArgumentException();
+
+		this.threshold = threshold;
+		this.capacity = capacity;
+		this.validationInterval = validationInterval;
+		this.mappings = new LinkedHashMap<>(16, 0.75f, true);
+		this.pendingMappings = new HashMap<>();
+	}
+
+
+	/**
+	 * Returns the default cache, which maps files of at least 1MiB up to a total of 16GiB, and validates mappings after one
+	 * second.
+	 * @return the default cache
+	 */
+	static public MappingCache getDefault () {
+		return DEFAULT;
+	}
+
+
+	/**
+	 * Returns a method handle for {@code sun.misc.Unsafe.invokeCleaner(ByteBuffer)} bound to the unsafe singleton, which
+	 * requires a Java 9+ runtime.
+	 * @return the method handle, or {@code null} if the current runtime doesn't support explicit unmapping
+	 */
+	static private MethodHandle invokeCleanerHandle () {
+		try {
+			final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			final Field unsafeField = unsafeClass.getDeclaredField("theUnsafe");
+			unsafeField.setAccessible(true);
+			return MethodHandles.lookup().findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class)).bindTo(unsafeField.get(null));
+		} catch (final ReflectiveOperationException | RuntimeException exception) {
+			return null;
+		}
+	}
+
+
+	/**
+	 * Returns the minimum size of files to be mapped.
+	 * @return the threshold
+	 */
+	public long getThreshold () {
+		return this.threshold;
+	}
+
+
+	/**
+	 * Returns the maximum number of bytes mapped by cached mappings.
+	 * @return the capacity
+	 */
+	public long getCapacity () {
+		return this.capacity;
+	}
+
+
+	/**
+	 * Returns the interval in milliseconds after which cached mappings are validated against their file when acquired.
+	 * @return the validation interval
+	 */
+	public long getValidationInterval () {
+		return this.validationInterval;
+	}
+
+
+	/**
+	 * Returns the number of bytes mapped by cached mappings.
+	 * @return the size
+	 */
+	public synchronized long getSize () {
+		return this.size;
+	}
+
+
+	/**
+	 * Returns the number of cached mappings.
+	 * @return the mapping count
+	 */
+	public synchronized int getMappingCount () {
+		return this.mappings.size();
+	}
+
+
+	/**
+	 * Acquires a mapping of the given file, mapping the file if it is not cached yet, or if it's cached mapping has become
+	 * stale. Files smaller than the threshold are not mapped, and neither are non-regular files or files exceeding 2GiB.
+	 * Concurrent acquisitions of a file that is being mapped wait for the pending mapping, and share it. Note that the
+	 * resulting mapping must be closed once it is no longer used, and that it's content must not be accessed afterwards.
+	 * @param filePath the file path
+	 * @return the mapping, or {@code null} if the given file is not a regular file, or if it's size is not suitable for mapping
+	 * @throws NullPointerException if the given file path is {@code null}
+	 * @throws NoSuchFileException if the given file doesn't exist
+	 * @throws IOException if there is an I/O related problem
+	 */
+	public Mapping acquire (final Path filePath) throws NullPointerException, NoSuchFileException, IOException {
+		if (filePath == null) throw new NullPointerException();
+
+		final long now = System.currentTimeMillis();
+		synchronized (this) {
+			final Mapping mapping = this.mappings.get(filePath);
+			if (mapping != null && now - mapping.validated < this.validationInterval) {
+				mapping.references += 1;
+				return mapping;
+			}
+		}
+
+		final BasicFileAttributes attributes;
+		try {
+			attributes = Files.readAttributes(filePath, BasicFileAttributes.class);
+		} catch (final NoSuchFileException exception) {
+			this.evict(filePath, null);
+			throw exception;
+		}
+
+		final long lastModified = attributes.lastModifiedTime().toMillis();
+		final FutureTask<Mapping> task = new FutureTask<>(() -> this.map(filePath, attributes, now));
+		final Future<Mapping> pendingMapping;
+		synchronized (this) {
+			final Mapping mapping = this.mappings.get(filePath);
+			if (mapping != null && mapping.lastModified == lastModified && mapping.content.capacity() == attributes.size()) {
+				mapping.validated = now;
+				mapping.references += 1;
+				return mapping;
+			}
+
+			// publishing the task before mapping keeps concurrent acquirers from mapping the same file again
+			pendingMapping = this.pendingMappings.putIfAbsent(filePath, task);
+		}
+
+		if (pendingMapping == null) {
+			try {
+				task.run();
+			} finally {
+				synchronized (this) {
+					this.pendingMappings.remove(filePath, task);
+				}
+			}
+		}
+
+		final Mapping mapping;
+		try {
+			mapping = Uninterruptibles.get(pendingMapping == null ? task : pendingMapping);
+		} catch (final ExecutionException exception) {
+			final Throwable cause = exception.getCause();	// manual precise rethrow for cause!
+			if (cause instanceof Error) throw (Error) cause;
+			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			if (cause instanceof IOException) throw (IOException) cause;
+			throw new AssertionError();
+		}
+		if (pendingMapping == null | mapping == null) return mapping;
+
+		// shared mappings may have been evicted and unmapped in the meantime
+		synchronized (this) {
+			if (mapping.references > 0) {
+				mapping.references += 1;
+				return mapping;
+			}
+		}
+		return this.acquire(filePath);
+	}
+
+
+	/**
+	 * Maps the given file, and caches the resulting mapping instead of the one cached before. Files smaller than the threshold
+	 * are not mapped, and neither are non-regular files or files exceeding 2GiB.
+	 * @param filePath the file path
+	 * @param attributes the file attributes
+	 * @param validated the validation timestamp in milliseconds since 1970-01-01
+	 * @return the mapping, which is referenced both by the cache and by the caller, or {@code null} if the given file is not
+	 *         a regular file, or if it's size is not suitable for mapping
+	 * @throws IOException if there is an I/O related problem
+	 */
+	private Mapping map (final Path filePath, final BasicFileAttributes attributes, final long validated) throws IOException {
+		if (!attributes.isRegularFile() || attributes.size() < this.threshold || attributes.size() > Integer.MAX_VALUE) {
+			this.evict(filePath, null);
+			return null;
+		}
+
+		final MappedByteBuffer content;
+		try (FileChannel fileChannel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+			content = fileChannel.map(MapMode.READ_ONLY, 0, attributes.size());
+		}
+
+		final Mapping mapping = new Mapping(filePath, content, attributes.lastModifiedTime().toMillis(), validated);
+		this.evict(filePath, mapping);
+		return mapping;
+	}
+
+
+	/**
+	 * Removes all cached mappings, which are unmapped as soon as they are no longer used.
+	 */
+	public void clear () {
+		final List<Mapping> evictedMappings;
+		synchronized (this) {
+			evictedMappings = new ArrayList<>(this.mappings.values());
+			this.mappings.clear();
+			this.size = 0;
+		}
+
+		for (final Mapping evictedMapping : evictedMappings) {
+			evictedMapping.close();
+		}
+	}
+
+
+	/**
+	 * Removes the mapping cached for the given file, and caches the given mapping instead if it is not {@code null}. Evicts the
+	 * least recently used mappings until the cached mappings fit the capacity again, and releases the cache's reference to
+	 * all mappings removed.
+	 * @param filePath the file path
+	 * @param mapping the mapping, or {@code null} for none
+	 */
+	private void evict (final Path filePath, final Mapping mapping) {
+		final List<Mapping> evictedMappings = new ArrayList<>();
+		synchronized (this) {
+			final Mapping replacedMapping = mapping == null ? this.mappings.remove(filePath) : this.mappings.put(filePath, mapping);
+			if (replacedMapping != null) {
+				this.size -= replacedMapping.content.capacity();
+				evictedMappings.add(replacedMapping);
+			}
+
+			if (mapping != null) {
+				this.size += mapping.content.capacity();
+				for (final Iterator<Mapping> iterator = this.mappings.values().iterator(); this.size > this.capacity & iterator.hasNext(); ) {
+					final Mapping evictedMapping = iterator.next();
+					if (evictedMapping == mapping) continue;
+					this.size -= evictedMapping.content.capacity();
+					evictedMappings.add(evictedMapping);
+					iterator.remove();
+				}
+			}
+		}
+
+		for (final Mapping evictedMapping : evictedMappings) {
+			evictedMapping.close();
+		}
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized String toString () {
+		return String.format("%s(capacity=%d, size=%d, mappingCount=%d)", this.getClass().getName(), this.capacity, this.size, this.mappings.size());
+	}
+
+
+
+	/**
+	 * Instances of this class represent reference counted file mappings, which are unmapped once their last reference is
+	 * closed.
+	 */
+	public class Mapping implements AutoCloseable {
+		private final Path filePath;
+		private final MappedByteBuffer content;
+		private final long lastModified;
+		private volatile long validated;
+		private int references;
+
+
+		/**
+		 * Creates a new instance that is referenced both by the cache and by it's creator.
+		 * @param filePath the file path
+		 * @param content the content
+		 * @param lastModified the modification timestamp in milliseconds since 1970-01-01
+		 * @param validated the validation timestamp in milliseconds since 1970-01-01
+		 */
+		private Mapping (final Path filePath, final MappedByteBuffer content, final long lastModified, final long validated) {
+			this.filePath = filePath;
+			this.content = content;
+			this.lastModified = lastModified;
+			this.validated = validated;
+			this.references = 2;
+		}
+
+
+		/**
+		 * Returns the file path.
+		 * @return the file path
+		 */
+		public Path getFilePath () {
+			return this.filePath;
+		}
+
+
+		/**
+		 * Returns a new read-only view of the mapped content, with it's position set to zero and it's limit set to the file
+		 * size. Note that the view must not be accessed once this mapping has been closed.
+		 * @return the content view
+		 */
+		public ByteBuffer getContent () {
+			return this.content.asReadOnlyBuffer();
+		}
+
+
+		/**
+		 * Returns the modification timestamp.
+		 * @return the modification timestamp in milliseconds since 1970-01-01
+		 */
+		public long getLastModified () {
+			return this.lastModified;
+		}
+
+
+		/**
+		 * Releases one reference to this mapping, and unmaps it if no references remain. Note that the current runtime may not
+		 * support explicit unmapping, in which case unreferenced mappings are left to the garbage collector.
+		 */
+		public void close () {
+			synchronized (MappingCache.this) {
+				if (this.references == 0) return;
+				this.references -= 1;
+				if (this.references > 0) return;
+			}
+
+			if (INVOKE_CLEANER != null) {
+				try {
+					INVOKE_CLEANER.invokeExact((ByteBuffer) this.content);
+				} catch (final Throwable exception) {
+					Logger.getGlobal().log(Level.WARNING, exception.getMessage(), exception);
+				}
+			}
+		}
+	}
+}
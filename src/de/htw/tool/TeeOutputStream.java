@@ -0,0 +1,483 @@
+package de.htw.tool;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.LongConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Instances of this class write all data synchronously to a primary sink, and hand copies of it to a secondary sink through
+ * a bounded ring, which writes them asynchronously. Compared to {@link IOStreams#newMultiOutputStream(OutputStream...)}, this
+ * keeps slow secondary sinks like captures or disk loggers from slowing down the primary sink. Note that the data is handed
+ * to the ring before it is written to the primary sink, which implies that several tees sharing a ring pass their data to
+ * the secondary sinks in an order consistent with the order in which it has been written to the primary sinks. Also note
+ * that the primary sink must be blocking, and that closing a tee closes it's secondary sink asynchronously.
+ */
+@Copyright(year = 2017, holders = "Sascha Baumeister")
+public class TeeOutputStream extends OutputStream implements WritableByteChannel {
+
+	/**
+	 * The policies available for rings whose capacity is exhausted.
+	 */
+	static public enum OverflowPolicy {
+
+		/**
+		 * Writers wait until there is room in the ring, which applies back pressure to the primary sinks.
+		 */
+		BLOCK,
+
+		/**
+		 * The data written is discarded, which implies secondary sinks miss the most recent data.
+		 */
+		DROP_NEWEST,
+
+		/**
+		 * The oldest data within the ring is discarded, which implies secondary sinks miss older data.
+		 */
+		DROP_OLDEST
+	}
+
+	private final WritableByteChannel primarySink;
+	private final Flushable primaryFlushable;
+	private final WritableByteChannel secondarySink;
+	private final Ring ring;
+
+
+	/**
+	 * Creates a new instance.
+	 * @param primarySink the primary sink, which is written synchronously
+	 * @param secondarySink the secondary sink, which is written asynchronously
+	 * @param ring the ring passing data to the secondary sink
+	 * @throws NullPointerException if any of the given arguments is {@code null}
+	 */
+	public TeeOutputStream (final OutputStream primarySink, final OutputStream secondarySink, final Ring ring) throws NullPointerException {
+		this(Channels.newChannel(primarySink), primarySink, Channels.newChannel(secondarySink), ring);
+	}
+
+
+	/**
+	 * Creates a new instance.
+	 * @param primarySink the primary sink, which is written synchronously
+	 * @param secondarySink the secondary sink, which is written asynchronously
+	 * @param ring the ring passing data to the secondary sink
+	 * @throws NullPointerException if any of the given arguments is {@code null}
+	 */
+	public TeeOutputStream (final WritableByteChannel primarySink, final WritableByteChannel secondarySink, final Ring ring) throws NullPointerException {
+		this(primarySink, null, secondarySink, ring);
+	}
+
+
+	/**
+	 * Creates a new instance.
+	 * @param primarySink the primary sink, which is written synchronously
+	 * @param primaryFlushable the primary sink's flushable, or {@code null} for none
+	 * @param secondarySink the secondary sink, which is written asynchronously
+	 * @param ring the ring passing data to the secondary sink
+	 * @throws NullPointerException if any of the given arguments except the flushable is {@code null}
+	 */
+	private TeeOutputStream (final WritableByteChannel primarySink, final Flushable primaryFlushable, final WritableByteChannel secondarySink, final Ring ring) throws NullPointerException {
+		if (primarySink == null | secondarySink == null | ring == null) throw new NullPointerException();
+
+		this.primarySink = primarySink;
+		this.primaryFlushable = primaryFlushable;
+		this.secondarySink = secondarySink;
+		this.ring = ring;
+	}
+
+
+	/**
+	 * Returns the ring passing data to the secondary sink.
+	 * @return the ring
+	 */
+	public Ring getRing () {
+		return this.ring;
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean isOpen () {
+		return this.primarySink.isOpen();
+	}
+
+
+	/**
+	 * Closes the primary sink, and enqueues the secondary sink to be closed once all data written before has been passed to
+	 * it.
+	 * @throws IOException if there is an I/O related problem
+	 */
+	@Override
+	public void close () throws IOException {
+		try {
+			this.primarySink.close();
+		} finally {
+			this.ring.execute(() -> {
+				try { this.secondarySink.close(); } catch (final IOException exception) {}
+			});
+		}
+	}
+
+
+	/**
+	 * Flushes the primary sink. Note that the secondary sink is written asynchronously, and therefore not flushed.
+	 * @throws IOException if there is an I/O related problem
+	 */
+	@Override
+	public void flush () throws IOException {
+		if (this.primaryFlushable != null) this.primaryFlushable.flush();
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int write (final ByteBuffer buffer) throws IOException {
+		final int position = buffer.position();
+		this.ring.enqueue(this.secondarySink, buffer);
+		while (buffer.hasRemaining()) {
+			this.primarySink.write(buffer);
+		}
+		return buffer.position() - position;
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void write (final byte[] buffer, final int offset, final int length) throws IOException {
+		this.write(ByteBuffer.wrap(buffer, offset, length));
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void write (final int value) throws IOException {
+		this.write(new byte[] { (byte) value });
+	}
+
+
+
+	/**
+	 * Instances of this static inner class model bounded rings of pooled chunks, each holding a copy of data written to a
+	 * specific secondary sink. The chunks are written to their sinks by a drain task, which is submitted to an executor
+	 * whenever data arrives at an empty ring, and runs until the ring is empty again. This guarantees that the chunks are
+	 * written in the order they have been enqueued, while sharing the executor's threads among any number of rings. Small
+	 * writes to the same sink are coalesced into a single chunk, and each chunk holds at most 64KiB. Besides data, rings
+	 * accept actions that are run by the drain task once all data enqueued before has been written, like closing or flushing
+	 * a secondary sink.<br />
+	 * Secondary sinks that fail are logged, and receive no further data from the ring. Writers interrupted while waiting for
+	 * room in the ring discard their data, and keep their interrupt status set.
+	 */
+	static public class Ring {
+		static private final int MIN_CHUNK_SIZE = 0x1000;
+		static private final int MAX_CHUNK_SIZE = 0x10000;
+		static private final ExecutorService DEFAULT_EXECUTOR = Executors.newCachedThreadPool(task -> {
+			final Thread thread = new Thread(task, "tee-drain");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		private final int capacity;
+		private final OverflowPolicy overflowPolicy;
+		private final Executor executor;
+		private final LongConsumer dropConsumer;
+		private final Deque<Entry> entries;
+		private final Set<WritableByteChannel> failedSinks;
+		private int chunkCount;
+		private long droppedBytes;
+		private boolean draining;
+
+
+		/**
+		 * Creates a new instance whose drain tasks are run by a shared pool of daemon threads.
+		 * @param capacity the maximum number of chunks within the ring
+		 * @param overflowPolicy the policy applied once the capacity is exhausted
+		 * @param dropConsumer a consumer for the number of bytes dropped, or {@code null} for none
+		 * @throws NullPointerException if the given overflow policy is {@code null}
+		 * @throws IllegalArgumentException if the given capacity is not strictly positive
+		 */
+		public Ring (final int capacity, final OverflowPolicy overflowPolicy, final LongConsumer dropConsumer) throws NullPointerException, IllegalArgumentException {
+			this(capacity, overflowPolicy, dropConsumer, DEFAULT_EXECUTOR);
+		}
+
+
+		/**
+		 * Creates a new instance.
+		 * @param capacity the maximum number of chunks within the ring
+		 * @param overflowPolicy the policy applied once the capacity is exhausted
+		 * @param dropConsumer a consumer for the number of bytes dropped, or {@code null} for none
+		 * @param executor the executor running the drain tasks
+		 * @throws NullPointerException if the given overflow policy or executor is {@code null}
+		 * @throws IllegalArgumentException if the given capacity is not strictly positive
+		 */
+		public Ring (final int capacity, final OverflowPolicy overflowPolicy, final LongConsumer dropConsumer, final Executor executor) throws NullPointerException, IllegalArgumentException {
+			if (overflowPolicy == null | executor == null) throw new NullPointerException();
+			if (capacity <= 0) throw new IllegalArgumentException();
+
+			this.capacity = capacity;
+			this.overflowPolicy = overflowPolicy;
+			this.dropConsumer = dropConsumer;
+			this.executor = executor;
+			this.entries = new ArrayDeque<>();
+			this.failedSinks = Collections.newSetFromMap(new IdentityHashMap<>());
+		}
+
+
+		/**
+		 * Returns the maximum number of chunks within this ring.
+		 * @return the capacity
+		 */
+		public int getCapacity () {
+			return this.capacity;
+		}
+
+
+		/**
+		 * Returns the policy applied once the capacity is exhausted.
+		 * @return the overflow policy
+		 */
+		public OverflowPolicy getOverflowPolicy () {
+			return this.overflowPolicy;
+		}
+
+
+		/**
+		 * Returns the number of bytes dropped so far, either because of the overflow policy, or because writers have been
+		 * interrupted while waiting for room.
+		 * @return the dropped byte count
+		 */
+		public synchronized long getDroppedBytes () {
+			return this.droppedBytes;
+		}
+
+
+		/**
+		 * Returns a new channel that passes all data written to it to the given sink through this ring, which is useful for
+		 * writers that take care of their primary sinks themselves. Note that closing the channel has no effect.
+		 * @param sink the secondary sink
+		 * @return the channel created
+		 * @throws NullPointerException if the given sink is {@code null}
+		 */
+		public WritableByteChannel newChannel (final WritableByteChannel sink) throws NullPointerException {
+			if (sink == null) throw new NullPointerException();
+
+			return new WritableByteChannel() {
+				@Override
+				public boolean isOpen () {
+					return true;
+				}
+
+				@Override
+				public void close () {}
+
+				@Override
+				public int write (final ByteBuffer buffer) {
+					final int bytesWritten = buffer.remaining();
+					Ring.this.enqueue(sink, buffer);
+					buffer.position(buffer.limit());
+					return bytesWritten;
+				}
+			};
+		}
+
+
+		/**
+		 * Enqueues the given action to be run once all data enqueued before has been written. Note that actions are never
+		 * dropped, and don't count against this ring's capacity.
+		 * @param action the action
+		 * @throws NullPointerException if the given action is {@code null}
+		 * @throws RejectedExecutionException if the executor rejects the drain task
+		 */
+		public synchronized void execute (final Runnable action) throws NullPointerException, RejectedExecutionException {
+			if (action == null) throw new NullPointerException();
+
+			this.entries.add(new Entry(null, null, action));
+			this.schedule();
+		}
+
+
+		/**
+		 * Enqueues a copy of the given buffer's remaining content to be written to the given sink, without changing the
+		 * buffer's position. Applies the overflow policy if there is no room for the data.
+		 * @param sink the secondary sink
+		 * @param buffer the buffer
+		 * @throws RejectedExecutionException if the executor rejects the drain task
+		 */
+		synchronized void enqueue (final WritableByteChannel sink, final ByteBuffer buffer) throws RejectedExecutionException {
+			if (!buffer.hasRemaining()) return;
+
+			final int position = buffer.position(), limit = buffer.limit();
+			try {
+				while (buffer.hasRemaining()) {
+					ByteBuffer chunk = null;
+					final Entry tail = this.entries.peekLast();
+					if (tail != null && tail.sink == sink && tail.chunk.hasRemaining()) chunk = tail.chunk;
+
+					if (chunk == null) {
+						if (!this.reserve(buffer.remaining())) break;
+						chunk = BufferPool.getDefault().acquireBuffer(Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, buffer.remaining())), false);
+						this.entries.add(new Entry(sink, chunk, null));
+						this.chunkCount += 1;
+						this.schedule();
+					}
+
+					final int length = Math.min(chunk.remaining(), buffer.remaining());
+					buffer.limit(buffer.position() + length);
+					chunk.put(buffer);
+					buffer.limit(limit);
+				}
+			} finally {
+				buffer.limit(limit).position(position);
+			}
+		}
+
+
+		/**
+		 * Makes room for a new chunk, applying the overflow policy if necessary.
+		 * @param remaining the number of bytes remaining to be enqueued
+		 * @return {@code true} if there is room for a new chunk, {@code false} if the remaining bytes have been dropped
+		 */
+		private boolean reserve (final int remaining) {
+			while (this.chunkCount >= this.capacity) {
+				switch (this.overflowPolicy) {
+					case BLOCK:
+						try {
+							this.wait();
+						} catch (final InterruptedException exception) {
+							Thread.currentThread().interrupt();
+							this.drop(remaining);
+							return false;
+						}
+						break;
+					case DROP_NEWEST:
+						this.drop(remaining);
+						return false;
+					default:
+						for (final Iterator<Entry> iterator = this.entries.iterator(); iterator.hasNext(); ) {
+							final Entry entry = iterator.next();
+							if (entry.chunk == null) continue;
+
+							iterator.remove();
+							this.chunkCount -= 1;
+							this.drop(entry.chunk.position());
+							BufferPool.getDefault().release(entry.chunk);
+							break;
+						}
+						break;
+				}
+			}
+			return true;
+		}
+
+
+		/**
+		 * Registers the given number of bytes as dropped.
+		 * @param byteCount the number of bytes dropped
+		 */
+		private void drop (final long byteCount) {
+			this.droppedBytes += byteCount;
+			if (this.dropConsumer != null) this.dropConsumer.accept(byteCount);
+		}
+
+
+		/**
+		 * Submits the drain task unless it is running already.
+		 * @throws RejectedExecutionException if the executor rejects the drain task
+		 */
+		private void schedule () throws RejectedExecutionException {
+			if (this.draining) return;
+
+			this.executor.execute(this::drain);
+			this.draining = true;
+		}
+
+
+		/**
+		 * Writes the enqueued chunks to their sinks, and runs the enqueued actions, until this ring is empty.
+		 */
+		private void drain () {
+			while (true) {
+				final Entry entry;
+				synchronized (this) {
+					entry = this.entries.poll();
+					if (entry == null) {
+						this.draining = false;
+						return;
+					}
+
+					if (entry.chunk != null) {
+						this.chunkCount -= 1;
+						this.notifyAll();
+					}
+				}
+
+				if (entry.chunk == null) {
+					try {
+						entry.action.run();
+					} catch (final Throwable exception) {
+						Logger.getGlobal().log(Level.WARNING, exception.getMessage(), exception);
+					}
+				} else try {
+					if (!this.failedSinks.contains(entry.sink)) {
+						entry.chunk.flip();
+						while (entry.chunk.hasRemaining()) {
+							entry.sink.write(entry.chunk);
+						}
+					}
+				} catch (final Throwable exception) {
+					this.failedSinks.add(entry.sink);
+					Logger.getGlobal().log(Level.WARNING, exception.getMessage(), exception);
+				} finally {
+					BufferPool.getDefault().release(entry.chunk);
+				}
+			}
+		}
+	}
+
+
+
+	/**
+	 * Instances of this static inner class model ring entries, each of which is either a chunk of data to be written to a
+	 * secondary sink, or an action.
+	 */
+	static private class Entry {
+		private final WritableByteChannel sink;
+		private final ByteBuffer chunk;
+		private final Runnable action;
+
+
+		/**
+		 * Creates a new instance.
+		 * @param sink the secondary sink, or {@code null} for an action
+		 * @param chunk the chunk, or {@code null} for an action
+		 * @param action the action, or {@code null} for a chunk
+		 */
+		public Entry (final WritableByteChannel sink, final ByteBuffer chunk, final Runnable action) {
+			this.sink = sink;
+			this.chunk = chunk;
+			this.action = action;
+		}
+	}
+}